@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+
+import fr.micoq.elasticsearch.NativeUnixDirectory;
+import fr.micoq.elasticsearch.NativeUnixDirectoryConfig;
+import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+
+/*
+ * The files and the directories of the benchmarks, in java.io.tmpdir (which must not be
+ * a tmpfs for the direct I/O). The content is random with a fixed seed so each run reads
+ * the same bytes.
+ */
+final class BenchmarkFiles {
+
+  static final long SEED = 0x5DEECE66DL;
+
+  private BenchmarkFiles() {
+  }
+
+  static Path createTempDir() throws IOException {
+    return Files.createTempDirectory(Paths.get(System.getProperty("java.io.tmpdir")), "benchmark");
+  }
+
+  static void deleteTempDir(Path path) throws IOException {
+    try(Stream<Path> files = Files.walk(path)) {
+      for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  // "nativeunixfs" (the mapped inputs of this store) or "mmapfs" (Lucene's MMapDirectory)
+  static Directory open(String type, Path path) throws IOException {
+    return open(type, path, new NativeUnixDirectoryConfig());
+  }
+
+  static Directory open(String type, Path path, NativeUnixDirectoryConfig config) throws IOException {
+    switch(type) {
+      case "nativeunixfs":
+        return new NativeUnixDirectory(path, FSLockFactory.getDefault(), config.setForceIO(ForceIO.MappedMemory));
+      case "mmapfs":
+        return new MMapDirectory(path);
+      default:
+        throw new IllegalArgumentException("Unknown directory [" + type + "], expected [nativeunixfs] or [mmapfs]");
+    }
+  }
+
+  static byte[] writeRandomFile(Directory dir, String name, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    new Random(SEED).nextBytes(bytes);
+    try(IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+      out.writeBytes(bytes, bytes.length);
+    }
+    return bytes;
+  }
+
+  // Positions in [0, bound), a power of two count so they are cycled with a mask
+  static long[] randomPositions(int count, long bound) {
+    Random random = new Random(SEED);
+    long[] positions = new long[count];
+    for(int i = 0; i < count; ++i) {
+      positions[i] = (long)(random.nextDouble() * bound);
+    }
+    return positions;
+  }
+}
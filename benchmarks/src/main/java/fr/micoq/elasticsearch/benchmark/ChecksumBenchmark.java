@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.micoq.elasticsearch.ChecksumVerifier;
+import fr.micoq.elasticsearch.NativeUnixDirectoryConfig;
+
+/*
+ * The verification of a whole file (cached) with a checksum input skipping to the footer
+ * (Directory.openChecksumInput()) and with CodecUtil.checksumEntireFile() (merges,
+ * check_on_startup), which always reads through the heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+
+  static final int LENGTH = 64 * 1024 * 1024;
+
+  @Param({"nativeunixfs", "mmapfs"})
+  public String directory;
+
+  private Path path;
+  private ChecksumVerifier verifier;
+  private Directory dir;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.path = BenchmarkFiles.createTempDir();
+    this.verifier = new ChecksumVerifier(2, ChecksumVerifier.DEFAULT_PART_SIZE);
+    this.dir = BenchmarkFiles.open(this.directory, this.path,
+        new NativeUnixDirectoryConfig().setChecksumVerifier(this.verifier));
+    byte[] bytes = new byte[LENGTH];
+    new Random(BenchmarkFiles.SEED).nextBytes(bytes);
+    try(IndexOutput out = this.dir.createOutput("checked", IOContext.DEFAULT)) {
+      CodecUtil.writeHeader(out, "benchmark", 0);
+      out.writeBytes(bytes, bytes.length);
+      CodecUtil.writeFooter(out);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.dir.close();
+    this.verifier.close();
+    BenchmarkFiles.deleteTempDir(this.path);
+  }
+
+  @Benchmark
+  public long checksumInput() throws IOException {
+    try(ChecksumIndexInput in = this.dir.openChecksumInput("checked", IOContext.READONCE)) {
+      CodecUtil.checkHeader(in, "benchmark", 0, 0);
+      in.seek(in.length() - CodecUtil.footerLength());
+      return CodecUtil.checkFooter(in);
+    }
+  }
+
+  @Benchmark
+  public long checksumEntireFile() throws IOException {
+    try(IndexInput in = this.dir.openInput("checked", IOContext.READONCE)) {
+      return CodecUtil.checksumEntireFile(in);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Many threads reading the same file through their own clones, like the searches of
+ * a shard. With reopenMicros > 0, a background thread also opens and closes another
+ * file at this interval, like the readers of the refreshes: each close retires a mapping
+ * while the readers are inside their reads. The score is the throughput of the reads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+
+  static final int OPS = 256;
+  static final int LENGTH = 16 * 1024 * 1024;
+
+  @State(Scope.Benchmark)
+  public static class Shared {
+
+    @Param({"nativeunixfs", "mmapfs"})
+    public String directory;
+
+    @Param({"0", "100"})
+    public long reopenMicros;
+
+    Path path;
+    Directory dir;
+    IndexInput input;
+    volatile boolean stopped;
+    Thread reopener;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      this.path = BenchmarkFiles.createTempDir();
+      this.dir = BenchmarkFiles.open(this.directory, this.path);
+      BenchmarkFiles.writeRandomFile(this.dir, "read", LENGTH);
+      BenchmarkFiles.writeRandomFile(this.dir, "reopened", 1024 * 1024);
+      this.input = this.dir.openInput("read", IOContext.DEFAULT);
+      if(this.reopenMicros > 0) {
+        this.reopener = new Thread(this::reopen, "reopener");
+        this.reopener.start();
+      }
+    }
+
+    private void reopen() {
+      while(!this.stopped) {
+        try(IndexInput reopened = this.dir.openInput("reopened", IOContext.DEFAULT)) {
+          reopened.readLong();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(this.reopenMicros));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+      this.stopped = true;
+      if(this.reopener != null)
+        this.reopener.join();
+      this.input.close();
+      this.dir.close();
+      BenchmarkFiles.deleteTempDir(this.path);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Reader {
+
+    IndexInput clone;
+    RandomAccessInput randomClone;
+    long[] positions;
+    int next;
+    final byte[] buffer = new byte[256];
+
+    @Setup(Level.Trial)
+    public void setUp(Shared shared) throws IOException {
+      this.clone = shared.input.clone();
+      this.randomClone = (RandomAccessInput) this.clone;
+      this.positions = BenchmarkFiles.randomPositions(OPS * 64, LENGTH - this.buffer.length);
+      this.next = (int)(Thread.currentThread().getId() * OPS) & (this.positions.length - 1);
+    }
+
+    long read() throws IOException {
+      long sum = 0;
+      for(int i = 0; i < OPS; ++i) {
+        long position = this.positions[this.next];
+        this.next = (this.next + 1) & (this.positions.length - 1);
+        sum += this.randomClone.readLong(position);
+        this.clone.seek(position);
+        sum += this.clone.readByte();
+      }
+      return sum;
+    }
+  }
+
+  @Benchmark
+  @Threads(8)
+  @OperationsPerInvocation(OPS)
+  public long read(Reader reader) throws IOException {
+    return reader.read();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.micoq.elasticsearch.DirectIOEngine;
+import fr.micoq.elasticsearch.IoUringEngine;
+import fr.micoq.elasticsearch.NativeUnixDirectory;
+import fr.micoq.elasticsearch.NativeUnixDirectoryConfig;
+import fr.micoq.elasticsearch.ThreadPoolEngine;
+import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.unsafe.IoUring;
+
+/*
+ * The direct reads and writes of a whole file (O_DIRECT, like a merge or a recovery)
+ * with each engine (index.store.direct.engine): "blocking" reads and writes one buffer
+ * at a time, "threads" and "io_uring" keep the engine depth of buffers in flight.
+ * Each thread uses its own file, the engine is shared like on a node.
+ * The score is the time to read or to write the whole file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectIOBenchmark {
+
+  static final int LENGTH = 64 * 1024 * 1024;
+  static final int CHUNK = 64 * 1024;
+
+  @State(Scope.Benchmark)
+  public static class Engine {
+
+    @Param({"blocking", "threads", "io_uring"})
+    public String engine;
+
+    DirectIOEngine ioEngine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      switch(this.engine) {
+        case "blocking":
+          this.ioEngine = DirectIOEngine.BLOCKING;
+          break;
+        case "threads":
+          this.ioEngine = new ThreadPoolEngine(4);
+          break;
+        case "io_uring":
+          if(!IoUring.isSupported())
+            throw new IOException("io_uring is not supported by this kernel");
+          this.ioEngine = new IoUringEngine(64);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown engine [" + this.engine + "]");
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      if(this.ioEngine instanceof Closeable)
+        ((Closeable) this.ioEngine).close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class File {
+
+    Path path;
+    Directory dir;
+    final byte[] buffer = new byte[CHUNK];
+    int written;
+
+    @Setup(Level.Trial)
+    public void setUp(Engine engine) throws IOException {
+      this.path = BenchmarkFiles.createTempDir();
+      // The blocking engine cannot read ahead, the others keep their depth in flight
+      int depth = engine.ioEngine == DirectIOEngine.BLOCKING ? 0 : engine.ioEngine.depth();
+      this.dir = new NativeUnixDirectory(this.path, FSLockFactory.getDefault(),
+          new NativeUnixDirectoryConfig()
+            .setForceIO(ForceIO.Direct)
+            .setIOEngine(engine.ioEngine)
+            .setDirectReadAhead(depth));
+      BenchmarkFiles.writeRandomFile(this.dir, "read", LENGTH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      this.dir.close();
+      BenchmarkFiles.deleteTempDir(this.path);
+    }
+
+    long read() throws IOException {
+      long sum = 0;
+      try(IndexInput input = this.dir.openInput("read", IOContext.READONCE)) {
+        for(long remaining = input.length(); remaining > 0; remaining -= CHUNK) {
+          input.readBytes(this.buffer, 0, (int) Math.min(CHUNK, remaining));
+          sum += this.buffer[0];
+        }
+      }
+      return sum;
+    }
+
+    void write() throws IOException {
+      String name = "written" + this.written++;
+      try(IndexOutput output = this.dir.createOutput(name, IOContext.DEFAULT)) {
+        for(int i = 0; i < LENGTH; i += CHUNK) {
+          output.writeBytes(this.buffer, 0, CHUNK);
+        }
+      }
+      this.dir.deleteFile(name);
+    }
+  }
+
+  @Benchmark
+  public long read(File file) throws IOException {
+    return file.read();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long readFourFiles(File file) throws IOException {
+    return file.read();
+  }
+
+  @Benchmark
+  public void write(File file) throws IOException {
+    file.write();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The reads of the doc values and of the postings on a warm file: the mapped inputs
+ * of this store against the inputs of Lucene's MMapDirectory.
+ * Each benchmark method does OPS reads, the score is the time of one read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadBenchmark {
+
+  static final int OPS = 1024;
+  static final int LENGTH = 16 * 1024 * 1024;
+
+  @Param({"nativeunixfs", "mmapfs"})
+  public String directory;
+
+  private Path path;
+  private Directory dir;
+  private IndexInput input;
+  private RandomAccessInput randomInput;
+  private IndexInput vInts;
+  private long[] positions;
+  private int next;
+  private final byte[] buffer = new byte[1024];
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.path = BenchmarkFiles.createTempDir();
+    this.dir = BenchmarkFiles.open(this.directory, this.path);
+    BenchmarkFiles.writeRandomFile(this.dir, "random", LENGTH);
+    try(IndexOutput out = this.dir.createOutput("vints", IOContext.DEFAULT)) {
+      // Mostly one and two bytes, like the deltas of the postings
+      for(int i = 0; out.getFilePointer() < LENGTH; ++i) {
+        out.writeVInt(i & 0x3FFF);
+      }
+    }
+    this.input = this.dir.openInput("random", IOContext.DEFAULT);
+    this.randomInput = this.input.randomAccessSlice(0, LENGTH);
+    this.vInts = this.dir.openInput("vints", IOContext.DEFAULT);
+    this.positions = BenchmarkFiles.randomPositions(OPS * 64, LENGTH - this.buffer.length);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.vInts.close();
+    this.input.close();
+    this.dir.close();
+    BenchmarkFiles.deleteTempDir(this.path);
+  }
+
+  private long nextPosition() {
+    long position = this.positions[this.next];
+    this.next = (this.next + 1) & (this.positions.length - 1);
+    return position;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readByteSequential() throws IOException {
+    if(this.input.length() - this.input.getFilePointer() < OPS)
+      this.input.seek(0);
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.input.readByte();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readIntSequential() throws IOException {
+    if(this.input.length() - this.input.getFilePointer() < OPS * 4)
+      this.input.seek(0);
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.input.readInt();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readLongSequential() throws IOException {
+    if(this.input.length() - this.input.getFilePointer() < OPS * 8)
+      this.input.seek(0);
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.input.readLong();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readVIntSequential() throws IOException {
+    if(this.vInts.length() - this.vInts.getFilePointer() < OPS * 5)
+      this.vInts.seek(0);
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.vInts.readVInt();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readShortRandom() throws IOException {
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.randomInput.readShort(nextPosition());
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readIntRandom() throws IOException {
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.randomInput.readInt(nextPosition());
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readLongRandom() throws IOException {
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      sum += this.randomInput.readLong(nextPosition());
+    }
+    return sum;
+  }
+
+  // A block of stored fields or of a compressed postings list
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long readBytesRandom() throws IOException {
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      this.input.seek(nextPosition());
+      this.input.readBytes(this.buffer, 0, this.buffer.length);
+      sum += this.buffer[i & (this.buffer.length - 1)];
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public long cloneAndSlice() throws IOException {
+    long sum = 0;
+    for(int i = 0; i < OPS; ++i) {
+      IndexInput slice = this.input.slice("slice", nextPosition(), 64);
+      sum += slice.clone().length();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+
+/*
+ * An input computing the CRC32 of its data off-heap (see ChecksumVerifier).
+ * The file pointer doesn't move, the parts of an input can be computed concurrently.
+ */
+public interface ChecksumInput {
+
+  // CRC32 of a part of the input (relative to the slice)
+  long checksum(long offset, long length) throws IOException;
+}
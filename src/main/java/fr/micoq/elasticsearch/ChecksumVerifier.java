@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.IndexInput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/*
+ * Node-wide pool of threads verifying the checksum of whole files, like
+ * CodecUtil.checksumEntireFile() but without copying the data to the heap (see ChecksumInput).
+ * A large file is split into parts computed concurrently (the calling thread computes the
+ * first one), the CRC32 of the parts are combined like crc32_combine() of zlib.
+ *
+ * CodecUtil.checksumEntireFile() is static (called by the codecs and by Elasticsearch),
+ * it cannot be routed to the verifier: the verifier computes the bytes skipped by the
+ * checksum inputs of the directories instead (see OffHeapChecksumIndexInput).
+ */
+public final class ChecksumVerifier implements ToXContentFragment, Closeable {
+
+  // Size of the parts of a file computed concurrently
+  public static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024;
+  private static final long PART_ALIGNMENT = MappedIndexInput.CHECKSUM_CHUNK;
+  private static final long MAX_PARTS = 1024;
+  private static final long CRC32_POLYNOMIAL = 0xedb88320L; // Reversed
+
+  private final ThreadPoolExecutor executor;
+  private final long partSize;
+  private final AtomicLong files;
+  private final AtomicLong bytes;
+  private final AtomicLong corrupted;
+  private final AtomicLong timeNanos;
+
+  public ChecksumVerifier(int threads, long partSize) {
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "checksum-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }));
+    this.executor.allowCoreThreadTimeOut(true);
+    this.partSize = partSize;
+    this.files = new AtomicLong();
+    this.bytes = new AtomicLong();
+    this.corrupted = new AtomicLong();
+    this.timeNanos = new AtomicLong();
+  }
+
+  /*
+   * Same checks and errors as CodecUtil.checksumEntireFile(), which is used for the
+   * other inputs. Returns the checksum.
+   */
+  public long checksumEntireFile(IndexInput input) throws IOException {
+    if(!(input instanceof ChecksumInput))
+      return CodecUtil.checksumEntireFile(input);
+    long length = input.length();
+    if(length < CodecUtil.footerLength()) {
+      throw new CorruptIndexException("misplaced codec footer (file truncated?): length=" + length +
+          " but footerLength==" + CodecUtil.footerLength(), input);
+    }
+    long start = System.nanoTime();
+    try {
+      // The checksum covers the whole file but itself
+      long actual = checksum((ChecksumInput) input, length - Long.BYTES);
+      // Checks the footer (the file pointer of the input doesn't move), after the data so
+      // the page of the footer doesn't keep the last part of the file in the cache
+      long expected = CodecUtil.retrieveChecksum(input.clone());
+      if(actual != expected) {
+        this.corrupted.incrementAndGet();
+        throw new CorruptIndexException("checksum failed (hardware problem?) : expected=" + Long.toHexString(expected) +
+            " actual=" + Long.toHexString(actual), input);
+      }
+      return actual;
+    } finally {
+      this.files.incrementAndGet();
+      this.bytes.addAndGet(length);
+      this.timeNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  // CRC32 of a range of the input
+  long checksum(ChecksumInput input, long offset, long length) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return checksum(offset == 0 ? input : (o, l) -> input.checksum(offset + o, l), length);
+    } finally {
+      this.bytes.addAndGet(length);
+      this.timeNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /*
+   * CRC32 of the first bytes of the input. The parts are aligned on the chunks of the inputs
+   * (see MappedIndexInput.checksum()) so two threads never share a page.
+   */
+  long checksum(ChecksumInput input, long length) throws IOException {
+    long part = Math.max(this.partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+    part = (part + PART_ALIGNMENT - 1) / PART_ALIGNMENT * PART_ALIGNMENT;
+    int parts = (int)((length + part - 1) / part);
+    if(parts <= 1)
+      return input.checksum(0, length);
+    // The first part is computed by the caller
+    List<Future<Long>> pending = new ArrayList<>(parts);
+    pending.add(null);
+    for(int i = 1; i < parts; ++i) {
+      final long offset = i * part;
+      final long size = Math.min(part, length - offset);
+      try {
+        pending.add(this.executor.submit(() -> input.checksum(offset, size)));
+      } catch (RejectedExecutionException e) {
+        pending.add(null); // Stopped: computed by the caller
+      }
+    }
+    IOException failure = null;
+    long crc = 0L;
+    try {
+      crc = input.checksum(0, part);
+    } catch (IOException e) {
+      failure = e;
+    }
+    // The parts may still use the input, never give up before their end
+    boolean interrupted = false;
+    try {
+      for(int i = 1; i < parts; ++i) {
+        long offset = i * part;
+        long size = Math.min(part, length - offset);
+        long partCrc = 0L;
+        try {
+          Future<Long> future = pending.get(i);
+          if(future == null) {
+            if(failure == null)
+              partCrc = input.checksum(offset, size);
+          } else {
+            while(true) {
+              try {
+                partCrc = future.get();
+                break;
+              } catch (InterruptedException e) {
+                interrupted = true;
+              }
+            }
+          }
+        } catch (ExecutionException e) {
+          failure = addFailure(failure, e.getCause() instanceof IOException ?
+              (IOException) e.getCause() : new IOException(e.getCause()));
+        } catch (IOException e) {
+          failure = addFailure(failure, e);
+        }
+        if(failure == null)
+          crc = combine(crc, partCrc, size);
+      }
+    } finally {
+      if(interrupted)
+        Thread.currentThread().interrupt();
+    }
+    if(failure != null)
+      throw failure;
+    return crc;
+  }
+
+  private static IOException addFailure(IOException failure, IOException e) {
+    if(failure == null)
+      return e;
+    failure.addSuppressed(e);
+    return failure;
+  }
+
+  /*
+   * CRC32 of the concatenation of two parts from their CRC32 and the length of the second part
+   * (crc32_combine() of zlib): the first CRC is shifted by len2 zero bytes with the square
+   * of the operator matrix for one zero bit, then xored with the second CRC.
+   */
+  public static long combine(long crc1, long crc2, long len2) {
+    if(len2 <= 0)
+      return crc1;
+    long[] even = new long[32]; // Operator for 2^n zero bits
+    long[] odd = new long[32];
+    odd[0] = CRC32_POLYNOMIAL; // One zero bit
+    long row = 1L;
+    for(int n = 1; n < 32; ++n) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    square(even, odd); // Two zero bits
+    square(odd, even); // Four zero bits
+    do {
+      // The first square gives the operator for one zero byte
+      square(even, odd);
+      if((len2 & 1) != 0)
+        crc1 = times(even, crc1);
+      len2 >>>= 1;
+      if(len2 == 0)
+        break;
+      square(odd, even);
+      if((len2 & 1) != 0)
+        crc1 = times(odd, crc1);
+      len2 >>>= 1;
+    } while(len2 != 0);
+    return crc1 ^ crc2;
+  }
+
+  private static long times(long[] matrix, long vector) {
+    long sum = 0L;
+    for(int i = 0; vector != 0; ++i, vector >>>= 1) {
+      if((vector & 1) != 0)
+        sum ^= matrix[i];
+    }
+    return sum;
+  }
+
+  private static void square(long[] square, long[] matrix) {
+    for(int n = 0; n < 32; ++n) {
+      square[n] = times(matrix, matrix[n]);
+    }
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("checksum");
+    builder.field("threads", this.executor.getMaximumPoolSize());
+    builder.field("active", this.executor.getActiveCount());
+    builder.field("files", this.files.get());
+    builder.field("bytes", this.bytes.get());
+    builder.field("corrupted", this.corrupted.get());
+    builder.field("time_in_millis", TimeUnit.NANOSECONDS.toMillis(this.timeNanos.get()));
+    builder.endObject();
+    return builder;
+  }
+
+  @Override
+  public void close() {
+    this.executor.shutdown();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import fr.micoq.unsafe.DirectBufferTools;
+
+/*
+ * Source of the page-aligned buffers of the direct inputs and outputs.
+ */
+public interface DirectBufferAllocator {
+
+  // A new direct buffer for each request (the behavior without the node pool)
+  DirectBufferAllocator UNPOOLED = new DirectBufferAllocator() {
+    @Override
+    public ByteBuffer allocate(int size) {
+      return DirectBufferTools.allocateAlignedByteBuffer(size);
+    }
+
+    @Override
+    public ByteBuffer tryAllocate(int size) {
+      return DirectBufferTools.allocateAlignedByteBuffer(size);
+    }
+
+    @Override
+    public void free(ByteBuffer buffer) {
+      DirectBufferTools.freeBuffer(buffer);
+    }
+  };
+
+  // Waits for free memory if needed, the capacity of the buffer may be bigger than the size
+  ByteBuffer allocate(int size) throws IOException;
+
+  // Returns null instead of waiting for free memory
+  ByteBuffer tryAllocate(int size);
+
+  void free(ByteBuffer buffer);
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.DirectBufferTools;
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * Node-wide pool of the page-aligned buffers of the direct inputs and outputs.
+ *
+ * The buffers are carved in slabs of 2MB of anonymous memory, outside of the Java heap
+ * and of the direct memory of the JVM (optionally backed by transparent huge pages).
+ * A slab only holds buffers of a single size (a power of two), a bigger buffer gets its
+ * own slab. The mapped bytes never exceed the budget: an allocation waits for buffers
+ * to be released (back-pressure) and fails with an IOException after maxWait instead of
+ * an OutOfMemoryError. Only one free slab of each size is kept, the others are unmapped.
+ *
+ * A buffer garbage collected without being freed (usually the buffer of a forgotten clone)
+ * is reported as leaked and returned to the pool by a background thread, as soon as the
+ * GC enqueues it (the pool never calls System.gc(), a no-op with -XX:+DisableExplicitGC).
+ * Each buffer is a distinct direct buffer on its slice of the slab: it stays reachable
+ * while a duplicate is used by an engine.
+ */
+public final class DirectBufferPool implements ToXContentFragment, Closeable {
+
+  public static final int SLAB_SIZE = 2 * 1024 * 1024;
+  public static final int MIN_BUFFER_SIZE = 4096;
+  private static final int MAX_BUFFER_SIZE = 1 << 30;
+
+  private static final class Slab {
+    private final ByteBuffer memory;
+    private final int bufferSize;
+    private final int count;
+    private final ArrayDeque<Long> free; // Addresses of the free buffers
+
+    Slab(ByteBuffer memory, int bufferSize) {
+      this.memory = memory;
+      this.bufferSize = bufferSize;
+      this.count = memory.capacity() / bufferSize;
+      this.free = new ArrayDeque<>(this.count);
+      long address = DirectBufferTools.address(memory);
+      for(int i = 0; i < this.count; ++i) {
+        this.free.add(address + (long)i * bufferSize);
+      }
+    }
+
+    boolean isUnused() {
+      return this.free.size() == this.count;
+    }
+  }
+
+  private static final class Lease extends PhantomReference<ByteBuffer> {
+    private final long address;
+    private final Slab slab;
+    private final Usage usage;
+
+    Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, long address, Slab slab, Usage usage) {
+      super(buffer, queue);
+      this.address = address;
+      this.slab = slab;
+      this.usage = usage;
+    }
+  }
+
+  // Current usage of an index
+  private static final class Usage {
+    private final String index;
+    private long allocatedBytes;
+    private long buffers;
+
+    Usage(String index) {
+      this.index = index;
+    }
+  }
+
+  private final long budget;
+  private final boolean hugePages;
+  private final long maxWait;
+  private final Map<Integer, ArrayDeque<Slab>> available; // The slabs with free buffers, by buffer size
+  private final Map<Long, Lease> leases; // By address
+  private final ReferenceQueue<ByteBuffer> queue;
+  private final ExecutorService reaper;
+  private final Map<String, Usage> indices;
+  private long mappedBytes;
+  private long allocatedBytes;
+  private long slabCount;
+  private long waits;
+  private long timeouts;
+  private long leaks;
+  private boolean closed;
+
+  public DirectBufferPool(long budget, boolean hugePages, long maxWait) {
+    this.budget = budget;
+    this.hugePages = hugePages;
+    this.maxWait = maxWait;
+    this.available = new HashMap<>();
+    this.leases = new HashMap<>();
+    this.queue = new ReferenceQueue<>();
+    this.indices = new HashMap<>();
+    this.mappedBytes = 0L;
+    this.allocatedBytes = 0L;
+    this.slabCount = 0L;
+    this.waits = 0L;
+    this.timeouts = 0L;
+    this.leaks = 0L;
+    this.closed = false;
+    this.reaper = Executors.newSingleThreadExecutor(
+        runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "direct-buffer-reaper");
+          thread.setDaemon(true);
+          return thread;
+        }));
+    this.reaper.execute(this::reap);
+  }
+
+  /*
+   * Size of the buffer of a file: the configured size, or less for a small file
+   * (expectedLength is the length of the file or an estimation, 0 if unknown).
+   */
+  public static int bufferSize(int configured, long expectedLength) {
+    if(expectedLength <= 0 || expectedLength >= configured)
+      return configured;
+    return Math.max(MIN_BUFFER_SIZE, sizeClass((int)expectedLength));
+  }
+
+  // The next power of two: the real size of a buffer
+  static int sizeClass(int size) {
+    if(size <= MIN_BUFFER_SIZE)
+      return MIN_BUFFER_SIZE;
+    if(size > MAX_BUFFER_SIZE)
+      throw new IllegalArgumentException("Buffer too big: " + size);
+    return Integer.highestOneBit(size - 1) << 1;
+  }
+
+  // The allocator of the buffers of an index
+  public DirectBufferAllocator forIndex(String index) {
+    return new DirectBufferAllocator() {
+      @Override
+      public ByteBuffer allocate(int size) throws IOException {
+        return acquire(index, size, true);
+      }
+
+      @Override
+      public ByteBuffer tryAllocate(int size) {
+        try {
+          return acquire(index, size, false);
+        } catch (IOException e) {
+          return null;
+        }
+      }
+
+      @Override
+      public void free(ByteBuffer buffer) {
+        release(buffer);
+      }
+    };
+  }
+
+  private synchronized ByteBuffer acquire(String index, int size, boolean wait) throws IOException {
+    int bufferSize = sizeClass(size);
+    int slabSize = Math.max(SLAB_SIZE, bufferSize);
+    long deadline = 0L;
+    boolean waiting = false;
+    while(true) {
+      if(this.closed)
+        throw new IOException("The direct buffer pool is closed");
+      ArrayDeque<Slab> candidates = this.available.get(bufferSize);
+      Slab slab = candidates == null ? null : candidates.peek();
+      if(slab == null && (this.mappedBytes + slabSize <= this.budget || reclaim(slabSize))) {
+        slab = new Slab(MappedMemory.allocateAnonymous(slabSize, this.hugePages), bufferSize);
+        this.mappedBytes += slabSize;
+        this.slabCount++;
+        if(candidates == null) {
+          candidates = new ArrayDeque<>();
+          this.available.put(bufferSize, candidates);
+        }
+        candidates.push(slab);
+      }
+      if(slab != null) {
+        long address = slab.free.pop();
+        if(slab.free.isEmpty())
+          candidates.remove(slab);
+        ByteBuffer buffer = MappedMemory.wrapAnonymous(address, bufferSize);
+        Usage usage = this.indices.computeIfAbsent(index, Usage::new);
+        this.leases.put(address, new Lease(buffer, this.queue, address, slab, usage));
+        this.allocatedBytes += bufferSize;
+        usage.allocatedBytes += bufferSize;
+        usage.buffers++;
+        return buffer;
+      }
+      if(!wait)
+        return null;
+      long now = System.nanoTime();
+      if(!waiting) {
+        waiting = true;
+        deadline = now + this.maxWait * 1000000L;
+        this.waits++;
+      }
+      if(now >= deadline) {
+        this.timeouts++;
+        throw new IOException("No direct buffer of " + bufferSize + " bytes available after " + this.maxWait
+            + "ms, the budget of " + this.budget + " bytes is exhausted");
+      }
+      try {
+        // Woken up by a release, including the release of a leaked buffer by the reaper
+        wait(Math.max(1L, (deadline - now) / 1000000L));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a direct buffer");
+      }
+    }
+  }
+
+  private synchronized void release(ByteBuffer buffer) {
+    Lease lease = this.leases.remove(DirectBufferTools.address(buffer));
+    if(lease == null)
+      return; // already released (or leaked)
+    lease.clear();
+    giveBack(lease);
+  }
+
+  private void giveBack(Lease lease) {
+    Slab slab = lease.slab;
+    this.allocatedBytes -= slab.bufferSize;
+    lease.usage.allocatedBytes -= slab.bufferSize;
+    lease.usage.buffers--;
+    if(lease.usage.buffers == 0)
+      this.indices.remove(lease.usage.index);
+    slab.free.push(lease.address);
+    ArrayDeque<Slab> slabs = this.available.get(slab.bufferSize);
+    if(slab.free.size() == 1)
+      slabs.push(slab);
+    if(slab.isUnused()) {
+      // Keep a single unused slab of each size
+      for(Slab other : slabs) {
+        if(other != slab && other.isUnused()) {
+          unmap(slab);
+          break;
+        }
+      }
+    }
+    notifyAll();
+  }
+
+  // Unmaps the unused slabs until the new slab fits in the budget
+  private boolean reclaim(long needed) {
+    for(ArrayDeque<Slab> slabs : this.available.values()) {
+      Iterator<Slab> it = slabs.iterator();
+      while(it.hasNext() && this.mappedBytes + needed > this.budget) {
+        Slab slab = it.next();
+        if(slab.isUnused()) {
+          it.remove();
+          free(slab);
+        }
+      }
+    }
+    return this.mappedBytes + needed <= this.budget;
+  }
+
+  private void unmap(Slab slab) {
+    this.available.get(slab.bufferSize).remove(slab);
+    free(slab);
+  }
+
+  private void free(Slab slab) {
+    try {
+      MappedMemory.freeAnonymous(slab.memory);
+    } catch (IOException e) {
+      // ignore, never happens with a valid mapping
+    }
+    this.mappedBytes -= slab.memory.capacity();
+    this.slabCount--;
+  }
+
+  // Returns the buffers collected without being freed, the queue is drained outside of the lock
+  private void reap() {
+    try {
+      while(true) {
+        Reference<?> ref = this.queue.remove();
+        synchronized(this) {
+          Lease lease = (Lease) ref;
+          if(this.leases.get(lease.address) == lease) {
+            this.leases.remove(lease.address);
+            this.leaks++;
+            giveBack(lease);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // The pool is closed
+    }
+  }
+
+  public synchronized long getAllocatedBytes() {
+    return this.allocatedBytes;
+  }
+
+  public synchronized long getMappedBytes() {
+    return this.mappedBytes;
+  }
+
+  public synchronized long getLeaks() {
+    return this.leaks;
+  }
+
+  @Override
+  public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("direct_buffers");
+    builder.field("budget_in_bytes", this.budget);
+    builder.field("mapped_in_bytes", this.mappedBytes);
+    builder.field("allocated_in_bytes", this.allocatedBytes);
+    builder.field("buffers", this.leases.size());
+    builder.field("slabs", this.slabCount);
+    builder.field("huge_pages", this.hugePages);
+    builder.field("waits", this.waits);
+    builder.field("timeouts", this.timeouts);
+    builder.field("leaks", this.leaks);
+    if(!"node".equals(params.param("level", "indices"))) {
+      builder.startObject("indices");
+      for(Usage usage : new TreeMap<>(this.indices).values()) {
+        builder.startObject(usage.index);
+        builder.field("allocated_in_bytes", usage.allocatedBytes);
+        builder.field("buffers", usage.buffers);
+        builder.endObject();
+      }
+      builder.endObject();
+    }
+    builder.endObject();
+    return builder;
+  }
+
+  @Override
+  public synchronized void close() {
+    this.closed = true;
+    this.reaper.shutdownNow();
+    // The slabs still in use are left to the process exit
+    for(ArrayDeque<Slab> slabs : this.available.values()) {
+      Iterator<Slab> it = slabs.iterator();
+      while(it.hasNext()) {
+        Slab slab = it.next();
+        if(slab.isUnused()) {
+          it.remove();
+          free(slab);
+        }
+      }
+    }
+    notifyAll();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Runs the aligned reads and writes of the direct inputs and outputs.
+ *
+ * A request transfers the remaining bytes of the buffer (from its position) without
+ * modifying its position or its limit. The buffer must not be used or freed before
+ * the end of Pending.await(), even if the request failed.
+ */
+public interface DirectIOEngine {
+
+  // The engine used when nothing else is configured: FileChannel.read()/write() in the caller thread
+  DirectIOEngine BLOCKING = new Blocking();
+
+  interface Pending {
+    // Waits for the end of the request, returns the number of bytes transferred (-1 at EOF for a read)
+    int await() throws IOException;
+  }
+
+  interface Handle {
+    Pending read(ByteBuffer buffer, long position) throws IOException;
+    Pending write(ByteBuffer buffer, long position) throws IOException;
+  }
+
+  // A file opened with O_DIRECT, the handle doesn't own the channel
+  Handle open(FileChannel channel, FileDescriptor fd) throws IOException;
+
+  // Number of requests worth keeping in flight for a single file
+  int depth();
+
+  final class Blocking implements DirectIOEngine {
+
+    private Blocking() {
+    }
+
+    @Override
+    public Handle open(FileChannel channel, FileDescriptor fd) {
+      return new Handle() {
+        @Override
+        public Pending read(ByteBuffer buffer, long position) throws IOException {
+          final int n = channel.read(buffer.duplicate(), position);
+          return () -> n;
+        }
+
+        @Override
+        public Pending write(ByteBuffer buffer, long position) throws IOException {
+          final int n = writeFully(channel, buffer.duplicate(), position);
+          return () -> n;
+        }
+      };
+    }
+
+    @Override
+    public int depth() {
+      return 1;
+    }
+  }
+
+  static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    int written = 0;
+    while(buffer.hasRemaining()) {
+      written += channel.write(buffer, position + written);
+    }
+    return written;
+  }
+}
@@ -15,46 +15,81 @@
  */
 package fr.micoq.elasticsearch;
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
 
-import org.apache.lucene.store.BufferedIndexInput;
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
 
-import fr.micoq.unsafe.DirectBufferTools;
 import fr.micoq.unsafe.DirectIO;
 
-final class DirectIndexInput extends IndexInput {
+final class DirectIndexInput extends IndexInput implements RandomAccessInput, ChecksumInput {
+
+  // Maximum size of a single read bypassing the blocks (see readBytes())
+  private static final int MAX_BULK_READ = 1024 * 1024;
 
   private FileInputStream fis;
   private FileChannel channel;
+  private DirectIOEngine.Handle handle;
   private int bufferSize;
   
   private boolean uptodate;
   private boolean cloned;
-  private long pos;
+  private long pos; // Position in the file (not in the slice)
   private long bufferPos;
+  
+  /* A slice shares the file descriptor of its parent and reads the aligned blocks
+   * of the file into its own buffer, only its positions are shifted.
+   */
+  private final long offset; // Start of the slice in the file
+  private final long inputLength; // The length of the slice (the files are never modified once written)
   private ByteBuffer buffer;
   
-  private List<DirectIndexInput> clones;
+  private Set<DirectIndexInput> clones;
+  
+  /* Read-ahead: once two consecutive blocks are read, the next readAhead blocks
+   * are read asynchronously into their own buffers while the current one is consumed.
+   * A block is read in the buffer (slot) (block number % readAhead), the buffer is
+   * swapped with the current one when the block is reached. Any other access
+   * stops the read-ahead until the accesses are sequential again.
+   */
+  private static final int NOT_READ_AHEAD = -2;
+  private final int readAhead;
+  private final DirectBufferAllocator allocator;
+  private final Closeable reservation; // Released by the main input, may be null
+  private ByteBuffer[] aheadBuffers;
+  private DirectIOEngine.Pending[] aheadPending;
+  private long[] aheadPos; // Position of the block read in each buffer, -1 if none
+  private long lastBufferPos; // To detect the sequential accesses
+  private boolean sequential;
   
   DirectIndexInput(Path path, int bufferSize) throws IOException {
+    this(path, bufferSize, DirectIOEngine.BLOCKING, 0, DirectBufferAllocator.UNPOOLED, null);
+  }
+  
+  DirectIndexInput(Path path, int bufferSize, DirectIOEngine engine, int readAhead,
+      DirectBufferAllocator allocator, Closeable reservation) throws IOException {
     super("DirectIndexInput(path=\"" + path + "\")");
     /* Synchronized collection is needed since multiple threads can concurrently
      * clone a single backend (in case of chained clones).
+     * The forgotten clones are not retained: their buffers go back to the pool after a GC.
      */
-    this.clones = Collections.synchronizedList(new LinkedList<DirectIndexInput>());
+    this.clones = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<DirectIndexInput, Boolean>()));
     try {
       this.fis = AccessController.doPrivileged((PrivilegedExceptionAction<FileInputStream>) () -> {
         return new FileInputStream(DirectIO.openDirect(path.toString(), true));
@@ -63,39 +98,84 @@ final class DirectIndexInput extends IndexInput {
       throw (IOException) e.getException();
     }
     this.channel = fis.getChannel();
+    try {
+      this.handle = engine.open(this.channel, this.fis.getFD());
+    } catch (IOException e) {
+      this.channel.close();
+      throw e;
+    }
     this.cloned = false;
     this.buffer = null;
     this.bufferSize = bufferSize;
     this.bufferPos = 0L;
     this.pos = 0L;
+    this.offset = 0L;
+    this.inputLength = this.channel.size();
+    this.readAhead = readAhead;
+    this.allocator = allocator;
+    this.reservation = reservation;
+    resetReadAhead();
     invalidate();
   }
 
   // for clone
   private DirectIndexInput(DirectIndexInput other) throws IOException {
-    super(other.toString());
+    this(other, other.toString(), other.offset, other.inputLength, other.bufferSize);
+    this.bufferPos = other.bufferPos;
+    this.pos = other.pos;
+  }
+  
+  // for slice
+  private DirectIndexInput(DirectIndexInput other, String description, long offset, long length, int bufferSize) throws IOException {
+    super(description);
     this.fis = other.fis;
     this.channel = other.channel;
+    this.handle = other.handle;
     this.cloned = true;
     this.buffer = null;
     this.clones = other.clones; // Needeed for chained clones
     this.clones.add(this);
-    this.bufferSize = other.bufferSize;
-    this.bufferPos = other.bufferPos;
-    this.pos = other.pos;
+    this.bufferSize = bufferSize;
+    this.bufferPos = 0L;
+    this.pos = offset;
+    this.offset = offset;
+    this.inputLength = length;
+    this.readAhead = other.readAhead;
+    this.allocator = other.allocator;
+    this.reservation = null;
+    resetReadAhead();
+    invalidate();
+  }
+  
+  private void resetReadAhead() {
+    this.aheadBuffers = null;
+    this.aheadPending = null;
+    this.aheadPos = null;
+    this.lastBufferPos = -1L;
+    this.sequential = false;
   }
   
   // Lazy init
-  private void requireBuffer() {
+  private void requireBuffer() throws IOException {
     if(this.buffer == null) {
-      this.buffer = DirectBufferTools.allocateAlignedByteBuffer(this.bufferSize);
+      // Big endian like the DataInput of Lucene (for the RandomAccessInput)
+      this.buffer = this.allocator.allocate(this.bufferSize).order(ByteOrder.BIG_ENDIAN);
       this.bufferSize = this.buffer.capacity();
     }
   }
   
   private void closeBuffer() {
+    if(this.aheadBuffers != null) {
+      for(int i = 0; i < this.readAhead; ++i) {
+        // The buffer may still be in use by the engine
+        awaitAhead(i);
+        if(this.aheadBuffers[i] != null)
+          this.allocator.free(this.aheadBuffers[i]);
+      }
+      resetReadAhead();
+    }
     if(this.buffer != null) {
-      DirectBufferTools.freeBuffer(this.buffer);
+      this.allocator.free(this.buffer);
       this.buffer = null;
     }
   }
@@ -104,19 +184,28 @@ final class DirectIndexInput extends IndexInput {
   public void close() throws IOException {
     if(!this.cloned) {
       try {
-        this.channel.close();
-      } finally {
-        try {
-          this.fis.close();
-        }
-        finally {
-          closeBuffer();
-          // We assume child buffers will not be used anymore
+        // The reads in flight (read-ahead of the input and its clones) must end before
+        // the descriptor is closed: a queued request would use a closed or recycled one
+        closeBuffer();
+        // We assume child buffers will not be used anymore
+        synchronized(this.clones) {
           for(DirectIndexInput clone : this.clones ) {
             clone.closeBuffer();
           }
           this.clones.clear();
         }
+      } finally {
+        try {
+          this.channel.close();
+        } finally {
+          try {
+            this.fis.close();
+          }
+          finally {
+            if(this.reservation != null)
+              this.reservation.close();
+          }
+        }
       }
     }
   }
@@ -125,6 +214,7 @@ final class DirectIndexInput extends IndexInput {
   public void seek(long pos) throws IOException {
     if(pos > length())
       throw new EOFException("Reached EOF");
+    pos += this.offset;
     this.pos = pos;
     if(pos < this.bufferPos || pos >= this.bufferPos + this.bufferSize) {
       invalidate();
@@ -165,6 +255,12 @@ final class DirectIndexInput extends IndexInput {
         len -= left;
         offset += left;
         invalidate();
+        int n = readBulk(dst, offset, len);
+        this.pos += n;
+        len -= n;
+        offset += n;
+        if(len == 0)
+          break;
       } else { // enough bytes in the buffer
         this.buffer.get(dst, offset, len);
         this.pos += len;
@@ -176,6 +272,129 @@ final class DirectIndexInput extends IndexInput {
     }
   }
   
+  /* Reads the whole blocks of a large read with a single request into a temporary
+   * buffer (instead of a request for each block). Returns the number of bytes read,
+   * 0 if the read is too small (or there is no memory for it).
+   */
+  private int readBulk(byte[] dst, int offset, int len) throws IOException {
+    final long start = (this.pos / this.bufferSize) * this.bufferSize;
+    final long end = Math.min(this.pos + len, this.offset + length());
+    long bulkEnd = (end / this.bufferSize) * this.bufferSize;
+    bulkEnd = Math.min(bulkEnd, start + Math.max(MAX_BULK_READ / this.bufferSize, 2) * (long)this.bufferSize);
+    if(bulkEnd - start < 2L * this.bufferSize)
+      return 0;
+    final int size = (int)(bulkEnd - start);
+    ByteBuffer bulk = this.allocator.tryAllocate(size);
+    if(bulk == null)
+      return 0;
+    try {
+      ((java.nio.Buffer)bulk).limit(size);
+      int n = this.handle.read(bulk, start).await();
+      int skip = (int)(this.pos - start);
+      if(n <= skip)
+        return 0; // the blocks will be read again (and the error reported)
+      int count = Math.min(n, size) - skip;
+      ((java.nio.Buffer)bulk).position(skip);
+      bulk.get(dst, offset, count);
+      if(this.readAhead > 0)
+        this.lastBufferPos = bulkEnd - this.bufferSize; // still sequential
+      return count;
+    } finally {
+      this.allocator.free(bulk);
+    }
+  }
+  
+  /*
+   * The CRC32 is computed on the aligned blocks read with large requests into a temporary
+   * buffer (the page cache is bypassed like for the other reads).
+   */
+  @Override
+  public long checksum(long offset, long length) throws IOException {
+    if(offset < 0 || length < 0 || offset + length > length())
+      throw new EOFException("Checksum past EOF (offset=" + offset + ", length=" + length + "): " + this);
+    CRC32 crc = new CRC32();
+    if(length == 0)
+      return crc.getValue();
+    ByteBuffer bulk = this.bufferSize < MAX_BULK_READ ? this.allocator.tryAllocate(MAX_BULK_READ) : null;
+    if(bulk == null)
+      bulk = this.allocator.allocate(this.bufferSize);
+    try {
+      final int size = (bulk.capacity() / this.bufferSize) * this.bufferSize;
+      long position = this.offset + offset;
+      final long end = position + length;
+      while(position < end) {
+        long block = (position / this.bufferSize) * this.bufferSize;
+        ((java.nio.Buffer)bulk).clear();
+        ((java.nio.Buffer)bulk).limit(size);
+        int n = this.handle.read(bulk, block).await();
+        int from = (int)(position - block);
+        int to = (int)Math.min(Math.min(n, size), end - block);
+        if(to <= from)
+          throw new EOFException("Read past EOF (pos=" + position + "): " + this);
+        ((java.nio.Buffer)bulk).limit(to);
+        ((java.nio.Buffer)bulk).position(from);
+        crc.update(bulk);
+        position = block + to;
+      }
+    } finally {
+      this.allocator.free(bulk);
+    }
+    return crc.getValue();
+  }
+  
+  // Index of a position of the file in the buffer, the block is read if needed (the file pointer doesn't move)
+  private int loadBlock(long position) throws IOException {
+    if(!this.uptodate || position < this.bufferPos || position >= this.bufferPos + this.buffer.limit()) {
+      final long current = this.pos;
+      this.pos = position;
+      invalidate();
+      refill();
+      this.pos = current;
+      if(current < this.bufferPos || current >= this.bufferPos + this.buffer.limit())
+        invalidate();
+      else
+        ((java.nio.Buffer)this.buffer).position((int)(current - this.bufferPos));
+    }
+    return (int)(position - this.bufferPos);
+  }
+  
+  private long checkRandomAccess(long pos, int size) throws IOException {
+    if(pos < 0 || pos + size > length())
+      throw new EOFException("Read past EOF (pos=" + pos + "): " + this);
+    requireBuffer(); // The size of the blocks is known
+    return this.offset + pos;
+  }
+  
+  @Override
+  public byte readByte(long pos) throws IOException {
+    int index = loadBlock(checkRandomAccess(pos, Byte.BYTES));
+    return this.buffer.get(index);
+  }
+  
+  @Override
+  public short readShort(long pos) throws IOException {
+    long position = checkRandomAccess(pos, Short.BYTES);
+    if(position % this.bufferSize > this.bufferSize - Short.BYTES) // across two blocks
+      return (short) (((readByte(pos) & 0xFF) << 8) | (readByte(pos + 1) & 0xFF));
+    return this.buffer.getShort(loadBlock(position));
+  }
+  
+  @Override
+  public int readInt(long pos) throws IOException {
+    long position = checkRandomAccess(pos, Integer.BYTES);
+    if(position % this.bufferSize > this.bufferSize - Integer.BYTES)
+      return ((readShort(pos) & 0xFFFF) << 16) | (readShort(pos + 2) & 0xFFFF);
+    return this.buffer.getInt(loadBlock(position));
+  }
+  
+  @Override
+  public long readLong(long pos) throws IOException {
+    long position = checkRandomAccess(pos, Long.BYTES);
+    if(position % this.bufferSize > this.bufferSize - Long.BYTES)
+      return (((long) readInt(pos)) << 32) | (readInt(pos + 4) & 0xFFFFFFFFL);
+    return this.buffer.getLong(loadBlock(position));
+  }
+  
   private void invalidate() {
     this.uptodate = false;
   }
@@ -185,13 +404,26 @@ final class DirectIndexInput extends IndexInput {
       return;
     requireBuffer();
     final long newBufferPos = (this.pos / this.bufferSize) * this.bufferSize;
+    final long end = this.offset + length();
+    if(this.readAhead > 0) {
+      if(newBufferPos == this.lastBufferPos + this.bufferSize)
+        this.sequential = true;
+      else if(newBufferPos != this.lastBufferPos)
+        this.sequential = false; // random access
+      this.lastBufferPos = newBufferPos;
+    }
     ((java.nio.Buffer)this.buffer).clear();
-    if(newBufferPos < length()) {
-      int n = this.channel.read(this.buffer, newBufferPos);
+    if(newBufferPos < end) {
+      int n = takeAhead(newBufferPos);
+      if(n == NOT_READ_AHEAD)
+        n = this.handle.read(this.buffer, newBufferPos).await();
       if (n < 0) {
         throw new EOFException("Attempt to read past EOF: " + this);
       }
-      ((java.nio.Buffer)this.buffer).limit(n); // the buffer limit must be set manually
+      // the buffer limit must be set manually (and stops at the end of the slice)
+      ((java.nio.Buffer)this.buffer).limit((int)Math.min(n, end - newBufferPos));
+      if(this.sequential)
+        readAhead(newBufferPos + this.bufferSize, end);
     } else {
       ((java.nio.Buffer)this.buffer).limit(0);
     }
@@ -206,18 +438,79 @@ final class DirectIndexInput extends IndexInput {
     this.uptodate = true;
   }
   
+  // Swaps the current buffer with the block read in advance, if any
+  private int takeAhead(long blockPos) throws IOException {
+    if(this.aheadPos == null)
+      return NOT_READ_AHEAD;
+    int slot = (int)((blockPos / this.bufferSize) % this.readAhead);
+    if(this.aheadPos[slot] != blockPos)
+      return NOT_READ_AHEAD;
+    DirectIOEngine.Pending pending = this.aheadPending[slot];
+    this.aheadPending[slot] = null;
+    this.aheadPos[slot] = -1L;
+    int n = pending.await();
+    ByteBuffer ahead = this.aheadBuffers[slot];
+    this.aheadBuffers[slot] = this.buffer;
+    this.buffer = ahead;
+    ((java.nio.Buffer)this.buffer).clear();
+    return n;
+  }
+  
+  private void readAhead(long from, long end) {
+    if(this.aheadBuffers == null) {
+      this.aheadBuffers = new ByteBuffer[this.readAhead];
+      this.aheadPending = new DirectIOEngine.Pending[this.readAhead];
+      this.aheadPos = new long[this.readAhead];
+      Arrays.fill(this.aheadPos, -1L);
+    }
+    for(int i = 0; i < this.readAhead; ++i) {
+      long blockPos = from + (long)i * this.bufferSize;
+      if(blockPos >= end)
+        break;
+      int slot = (int)((blockPos / this.bufferSize) % this.readAhead);
+      if(this.aheadPos[slot] == blockPos)
+        continue; // already in flight
+      awaitAhead(slot); // a block we don't need anymore
+      if(this.aheadBuffers[slot] == null) {
+        // Never wait for the memory of a block we don't need yet
+        ByteBuffer buffer = this.allocator.tryAllocate(this.bufferSize);
+        if(buffer == null)
+          break;
+        this.aheadBuffers[slot] = buffer.order(ByteOrder.BIG_ENDIAN);
+      }
+      ((java.nio.Buffer)this.aheadBuffers[slot]).clear();
+      try {
+        this.aheadPending[slot] = this.handle.read(this.aheadBuffers[slot], blockPos);
+        this.aheadPos[slot] = blockPos;
+      } catch (IOException e) {
+        // The block will be read again when needed
+        break;
+      }
+    }
+  }
+  
+  // Waits for an unused block read in advance, the errors are ignored
+  private void awaitAhead(int slot) {
+    DirectIOEngine.Pending pending = this.aheadPending[slot];
+    if(pending != null) {
+      this.aheadPending[slot] = null;
+      this.aheadPos[slot] = -1L;
+      try {
+        pending.await();
+      } catch (IOException e) {
+        // ignore, the block was not needed
+      }
+    }
+  }
+  
   @Override
   public long getFilePointer() {
-    return this.pos;
+    return this.pos - this.offset;
   }
   
   @Override
   public long length() {
-    try {
-      return channel.size();
-    } catch (IOException ex) {
-      throw new RuntimeException("IOException during length(): " + this, ex);
-    }
+    return this.inputLength;
   }
 
   @Override
@@ -231,7 +524,13 @@ final class DirectIndexInput extends IndexInput {
 
   @Override
   public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
-    return BufferedIndexInput.wrap(sliceDescription, this, offset, length);
+    if(offset < 0 || length < 0 || offset + length > length())
+      throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset
+          + ",length=" + length + ",fileLength=" + length() + ": " + this);
+    // The blocks of a small slice (in a compound file) are smaller
+    int sliceBufferSize = DirectBufferPool.bufferSize(this.bufferSize, length);
+    return new DirectIndexInput(this, getFullSliceDescription(sliceDescription), this.offset + offset, length,
+        sliceBufferSize);
   }
   
 }
@@ -15,25 +15,35 @@
  */
 package fr.micoq.elasticsearch;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Path;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedOutputStream;
 
 import org.apache.lucene.store.IndexOutput;
 
+/*
+ * The writes go straight into the aligned buffer of the stream, which also computes
+ * the checksum by block.
+ */
 class DirectIndexOutput extends IndexOutput {
-  private final CRC32 crc = new CRC32();
-  private final OutputStream os;
+  private final DirectOutputStream os;
   private long bytesWritten = 0L;
   private boolean flushedOnClose = false;
+  private final Closeable reservation; // may be null
 
   DirectIndexOutput(Path path, int bufferSize) throws IOException {
+    this(path, bufferSize, DirectIOEngine.BLOCKING, 0, DirectBufferAllocator.UNPOOLED, null, 0L);
+  }
+  
+  DirectIndexOutput(Path path, int bufferSize, DirectIOEngine engine, int inFlight, DirectBufferAllocator allocator,
+      Closeable reservation, long expectedLength) throws IOException {
     super("DirectIndexOutput(path=\"" + path.toString() + "\")", path.getFileName().toString());
-    this.os = new CheckedOutputStream(new DirectOutputStream(path,bufferSize),crc); 
+    this.os = new DirectOutputStream(path,bufferSize,engine,inFlight,allocator,expectedLength);
+    this.reservation = reservation;
   }
   
+  // Also the path of writeVInt()/writeVLong(), final in DataOutput
   @Override
   public final void writeByte(byte b) throws IOException {
     os.write(b);
@@ -46,6 +56,24 @@ class DirectIndexOutput extends IndexOutput {
     bytesWritten += length;
   }
 
+  @Override
+  public void writeShort(short i) throws IOException {
+    os.writeShort(i);
+    bytesWritten += Short.BYTES;
+  }
+  
+  @Override
+  public void writeInt(int i) throws IOException {
+    os.writeInt(i);
+    bytesWritten += Integer.BYTES;
+  }
+  
+  @Override
+  public void writeLong(long i) throws IOException {
+    os.writeLong(i);
+    bytesWritten += Long.BYTES;
+  }
+
   @Override
   public long getFilePointer() {
     return bytesWritten;
@@ -53,8 +81,7 @@ class DirectIndexOutput extends IndexOutput {
 
   @Override
   public long getChecksum() throws IOException {
-    os.flush();
-    return crc.getValue();
+    return os.getChecksum();
   }
   
   @Override
@@ -70,6 +97,10 @@ class DirectIndexOutput extends IndexOutput {
         flushedOnClose = true; // set this BEFORE calling flush!
         o.flush();
       }
+    } finally {
+      // Released once the buffers are back
+      if(reservation != null)
+        reservation.close();
     }
   }
 }
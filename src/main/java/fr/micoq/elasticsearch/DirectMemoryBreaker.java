@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/*
+ * Node-wide circuit breaker of the memory of the direct inputs and outputs.
+ *
+ * A file opened in direct mode (outside of the forced modes) reserves the buffers it
+ * may need. When the reserved bytes (or the bytes really allocated in the buffer pool,
+ * including the buffers of the clones) would exceed the limit, the breaker trips and
+ * the file is opened with the NIO delegate instead. The breaker closes again as soon
+ * as a new reservation fits.
+ */
+public final class DirectMemoryBreaker implements ToXContentFragment {
+
+  // Released by the close() of the input or the output (only once)
+  public final class Reservation implements Closeable {
+    private final long bytes;
+    private boolean released;
+
+    private Reservation(long bytes) {
+      this.bytes = bytes;
+      this.released = false;
+    }
+
+    @Override
+    public void close() {
+      synchronized(DirectMemoryBreaker.this) {
+        if(!this.released) {
+          this.released = true;
+          reservedBytes -= this.bytes;
+          reservations--;
+        }
+      }
+    }
+  }
+
+  private final long limit;
+  private final DirectBufferPool pool; // may be null
+  private long reservedBytes;
+  private long reservations;
+  private boolean tripped;
+  private long trips;
+  private long fallbacks;
+
+  public DirectMemoryBreaker(long limit, DirectBufferPool pool) {
+    this.limit = limit;
+    this.pool = pool;
+    this.reservedBytes = 0L;
+    this.reservations = 0L;
+    this.tripped = false;
+    this.trips = 0L;
+    this.fallbacks = 0L;
+  }
+
+  // null if the breaker is open: the file must be opened with the NIO delegate
+  public synchronized Reservation reserve(long bytes) {
+    long used = this.reservedBytes;
+    if(this.pool != null)
+      used = Math.max(used, this.pool.getAllocatedBytes());
+    if(used + bytes > this.limit) {
+      if(!this.tripped) {
+        this.tripped = true;
+        this.trips++;
+      }
+      this.fallbacks++;
+      return null;
+    }
+    this.tripped = false;
+    this.reservedBytes += bytes;
+    this.reservations++;
+    return new Reservation(bytes);
+  }
+
+  public synchronized long getReservedBytes() {
+    return this.reservedBytes;
+  }
+
+  public synchronized boolean isTripped() {
+    return this.tripped;
+  }
+
+  public synchronized long getTrips() {
+    return this.trips;
+  }
+
+  @Override
+  public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("direct_breaker");
+    builder.field("limit_in_bytes", this.limit);
+    builder.field("reserved_in_bytes", this.reservedBytes);
+    builder.field("files", this.reservations);
+    builder.field("tripped", this.tripped);
+    builder.field("trips", this.trips);
+    builder.field("fallbacks", this.fallbacks);
+    builder.endObject();
+    return builder;
+  }
+}
@@ -19,6 +19,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
@@ -26,20 +27,48 @@ import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.zip.CRC32;
 
-import fr.micoq.unsafe.DirectBufferTools;
 import fr.micoq.unsafe.DirectIO;
 
+/*
+ * The filled buffers are written at their offset by the engine (write-behind). With an
+ * asynchronous engine, up to depth() (or the given number of) buffers are in flight while
+ * the next one is filled: a buffer is reused only once its previous write is completed.
+ * The writes may complete in any order since each one has its own offset, the file is
+ * only truncated to its real length once all of them are completed. The first failed
+ * write is rethrown by the next write or by close(), the stream can't be used after that.
+ *
+ * The CRC32 of the data is computed on the whole blocks (before their write) and on the
+ * filled part of the current buffer when it's requested.
+ */
 public final class DirectOutputStream extends OutputStream {
   
   private FileOutputStream fos;
   private final FileChannel channel;
+  private final DirectIOEngine.Handle handle;
   private long realFileLength;
   private boolean isOpen;
-  private ByteBuffer buffer;
+  private ByteBuffer buffer; // The buffer being filled (one of buffers)
   private int bufferSize;
+  private final ByteBuffer[] buffers;
+  private final DirectIOEngine.Pending[] pending;
+  private int current;
+  private long bufferOffset; // Offset of the current buffer in the file
+  private final DirectBufferAllocator allocator;
+  private IOException failure; // The first failed write
+  private final CRC32 crc;
+  private int crcPosition; // The bytes of the current buffer already in the CRC
+  private final Preallocator preallocator; // null without expected length
   
   public DirectOutputStream(Path path, int bufferSize) throws IOException {
+    this(path, bufferSize, DirectIOEngine.BLOCKING, 0, DirectBufferAllocator.UNPOOLED, 0L);
+  }
+  
+  // inFlight: the number of buffers, 0 for the depth of the engine
+  // expectedLength: upper bound of the length of the file to preallocate, 0 to disable
+  public DirectOutputStream(Path path, int bufferSize, DirectIOEngine engine, int inFlight,
+      DirectBufferAllocator allocator, long expectedLength) throws IOException {
     if(Files.exists(path)) {
       throw new FileAlreadyExistsException(path.toString());
     }
@@ -50,18 +79,37 @@ public final class DirectOutputStream extends OutputStream {
     } catch (PrivilegedActionException e) {
       throw (IOException) e.getException();
     }
-    this.buffer = null;
     this.channel = fos.getChannel();
+    try {
+      this.handle = engine.open(this.channel, this.fos.getFD());
+    } catch (IOException e) {
+      this.channel.close();
+      throw e;
+    }
     this.realFileLength = 0L;
     this.bufferSize = bufferSize;
     this.isOpen = true;
     this.buffer = null;
+    this.buffers = new ByteBuffer[Math.max(1, inFlight > 0 ? inFlight : engine.depth())];
+    this.pending = new DirectIOEngine.Pending[this.buffers.length];
+    this.current = 0;
+    this.bufferOffset = 0L;
+    this.allocator = allocator;
+    this.failure = null;
+    this.crc = new CRC32();
+    this.crcPosition = 0;
+    this.preallocator = expectedLength > 0 ? new Preallocator(this.fos.getFD(), expectedLength) : null;
   }
   
   // Lazy init
-  private void requireBuffer() {
+  private void requireBuffer() throws IOException {
     if(this.buffer == null) {
-      this.buffer = DirectBufferTools.allocateAlignedByteBuffer(this.bufferSize);
+      if(this.buffers[this.current] == null) {
+        // Big endian like the DataOutput of Lucene
+        this.buffers[this.current] = this.allocator.allocate(this.bufferSize).order(ByteOrder.BIG_ENDIAN);
+      }
+      this.buffer = this.buffers[this.current];
+      ((java.nio.Buffer)this.buffer).clear();
     }
   }
 
@@ -75,6 +123,66 @@ public final class DirectOutputStream extends OutputStream {
     }
   }
   
+  // The primitives are stored directly in the buffer, unless they cross the end of the buffer
+  public void writeShort(short v) throws IOException {
+    requireBuffer();
+    if(this.buffer.remaining() < Short.BYTES) {
+      write(v >> 8);
+      write(v);
+      return;
+    }
+    this.buffer.putShort(v);
+    advance(Short.BYTES);
+  }
+  
+  public void writeInt(int v) throws IOException {
+    requireBuffer();
+    if(this.buffer.remaining() < Integer.BYTES) {
+      writeShort((short) (v >> 16));
+      writeShort((short) v);
+      return;
+    }
+    this.buffer.putInt(v);
+    advance(Integer.BYTES);
+  }
+  
+  public void writeLong(long v) throws IOException {
+    requireBuffer();
+    if(this.buffer.remaining() < Long.BYTES) {
+      writeInt((int) (v >> 32));
+      writeInt((int) v);
+      return;
+    }
+    this.buffer.putLong(v);
+    advance(Long.BYTES);
+  }
+  
+  private void advance(int length) throws IOException {
+    this.realFileLength += length;
+    if (this.buffer.position() == this.buffer.capacity()) {
+      writeBuffer();
+    }
+  }
+  
+  // Exact at any time
+  public long getChecksum() {
+    if(this.buffer != null)
+      updateChecksum();
+    return this.crc.getValue();
+  }
+  
+  // Adds the new bytes of the current buffer to the CRC (without allocation)
+  private void updateChecksum() {
+    int position = this.buffer.position();
+    if(position > this.crcPosition) {
+      ((java.nio.Buffer)this.buffer).limit(position);
+      ((java.nio.Buffer)this.buffer).position(this.crcPosition);
+      this.crc.update(this.buffer);
+      ((java.nio.Buffer)this.buffer).limit(this.buffer.capacity());
+      this.crcPosition = position;
+    }
+  }
+  
   @Override
   public void write(byte b[], int off, int len) throws IOException {
     if (b == null) {
@@ -89,6 +197,7 @@ public final class DirectOutputStream extends OutputStream {
     requireBuffer();
     int remain = this.buffer.capacity() - this.buffer.position();
     while(len >= remain) {
+      requireBuffer();
       this.buffer.put(b,off,remain);
       this.realFileLength += remain;
       off += remain;
@@ -97,27 +206,71 @@ public final class DirectOutputStream extends OutputStream {
       writeBuffer();
     }
     if(len > 0) {
+      requireBuffer();
       this.buffer.put(b,off,len);
       this.realFileLength += len;
     }
   }
   
-  private void closeBuffer() {
-    if(this.buffer != null) {
-      DirectBufferTools.freeBuffer(this.buffer);
-      this.buffer = null;
+  private void closeBuffers() {
+    this.buffer = null;
+    for(int i = 0; i < this.buffers.length; ++i) {
+      if(this.buffers[i] != null) {
+        this.allocator.free(this.buffers[i]);
+        this.buffers[i] = null;
+      }
     }
   }
   
+  // Waits for the write of a buffer before reusing it
+  private void awaitBuffer(int index) throws IOException {
+    DirectIOEngine.Pending write = this.pending[index];
+    if(write != null) {
+      this.pending[index] = null;
+      try {
+        write.await();
+      } catch (IOException e) {
+        if(this.failure == null)
+          this.failure = e;
+        throw e;
+      }
+    }
+  }
+  
+  // Waits for all the writes (even after a failure) and rethrows the first failure
+  private void awaitBuffers() throws IOException {
+    IOException failure = null;
+    for(int i = 0; i < this.pending.length; ++i) {
+      int index = (this.current + 1 + i) % this.pending.length; // The oldest first
+      try {
+        awaitBuffer(index);
+      } catch (IOException e) {
+        if(failure == null)
+          failure = e;
+        else
+          failure.addSuppressed(e);
+      }
+    }
+    if(failure != null)
+      throw failure;
+  }
+  
   @Override
   public void close() throws IOException {
     if (this.isOpen) {
       this.isOpen = false;
       try {
-        writeBuffer();
+        try {
+          if(this.realFileLength > this.bufferOffset)
+            writeBuffer();
+        } finally {
+          awaitBuffers();
+        }
       } finally {
         try {
           this.channel.truncate(realFileLength);
+          if(this.preallocator != null)
+            this.preallocator.release(realFileLength);
         } finally {
           try {
             this.channel.close();
@@ -126,7 +279,7 @@ public final class DirectOutputStream extends OutputStream {
               this.fos.close();
             }
             finally {
-              closeBuffer();
+              closeBuffers();
             }
           }
         }
@@ -135,11 +288,20 @@ public final class DirectOutputStream extends OutputStream {
   }
   
   private void writeBuffer() throws IOException {
+    if(this.failure != null)
+      throw new IOException("A previous write failed", this.failure);
     requireBuffer();
+    updateChecksum();
+    this.crcPosition = 0;
     ((java.nio.Buffer)this.buffer).rewind();
+    if(this.preallocator != null)
+      this.preallocator.ensure(this.bufferOffset + this.buffer.capacity());
     // TODO memset here to avoid remaining garbage after the data before truncation ?
-    this.channel.write(buffer);
-    ((java.nio.Buffer)this.buffer).clear();
+    this.pending[this.current] = this.handle.write(this.buffer, this.bufferOffset);
+    this.bufferOffset += this.buffer.capacity();
+    this.buffer = null;
+    this.current = (this.current + 1) % this.buffers.length;
+    awaitBuffer(this.current);
   }
   
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.DirectIO;
+
+/*
+ * Node-wide pool of threads syncing the files of a commit in parallel (the files are
+ * independent, the device can handle several flushes at once). The calling thread syncs
+ * the last file itself.
+ *
+ * The files of Lucene are written once and never modified, fdatasync() is enough: it
+ * also writes back the size and the blocks of the file, only the times are skipped.
+ *
+ * With many files, a single syncfs() of the filesystem of the shard may be cheaper than
+ * a flush per file, but it also writes back the dirty pages of the other shards.
+ */
+public final class FileSyncer implements ToXContentFragment, Closeable {
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong commits;
+  private final AtomicLong files;
+  private final AtomicLong filesystems;
+  private final AtomicLong timeNanos;
+
+  public FileSyncer(int threads) {
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "file-sync-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }));
+    this.executor.allowCoreThreadTimeOut(true);
+    this.commits = new AtomicLong();
+    this.files = new AtomicLong();
+    this.filesystems = new AtomicLong();
+    this.timeNanos = new AtomicLong();
+  }
+
+  /*
+   * syncfsThreshold: number of files from which the whole filesystem is synced at once, 0 to never do it.
+   * All the files are synced even if one of them fails, the first failure is thrown.
+   */
+  public void sync(Path directory, Collection<String> names, int syncfsThreshold) throws IOException {
+    if(names.isEmpty())
+      return;
+    long start = System.nanoTime();
+    try {
+      if(syncfsThreshold > 0 && names.size() >= syncfsThreshold
+          && syncFileSystem(directory.resolve(names.iterator().next()))) {
+        this.filesystems.incrementAndGet();
+        return;
+      }
+      this.files.addAndGet(names.size());
+      syncFiles(directory, names);
+    } finally {
+      this.commits.incrementAndGet();
+      this.timeNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  // false if syncfs() is not supported
+  private static boolean syncFileSystem(Path path) throws IOException {
+    try {
+      return AccessController.doPrivileged((PrivilegedExceptionAction<Boolean>) () -> {
+        try(FileInputStream file = new FileInputStream(path.toFile())) {
+          return DirectIO.syncfs(file.getFD());
+        }
+      });
+    } catch (PrivilegedActionException e) {
+      throw (IOException) e.getException();
+    }
+  }
+
+  private static void syncFile(Path path) throws IOException {
+    try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      channel.force(false); // fdatasync()
+    }
+  }
+
+  private void syncFiles(Path directory, Collection<String> names) throws IOException {
+    List<Future<?>> pending = new ArrayList<>(names.size() - 1);
+    IOException failure = null;
+    Iterator<String> iterator = names.iterator();
+    Path last = directory.resolve(iterator.next());
+    while(iterator.hasNext()) {
+      final Path path = last;
+      try {
+        pending.add(this.executor.submit(() -> {
+          syncFile(path);
+          return null;
+        }));
+      } catch (RejectedExecutionException e) {
+        // Stopped: synced by the caller
+        try {
+          syncFile(path);
+        } catch (IOException ioe) {
+          failure = addFailure(failure, ioe);
+        }
+      }
+      last = directory.resolve(iterator.next());
+    }
+    try {
+      syncFile(last);
+    } catch (IOException e) {
+      failure = addFailure(failure, e);
+    }
+    // Never give up before the end of the flushes: the commit must not go on
+    boolean interrupted = false;
+    try {
+      for(Future<?> future : pending) {
+        while(true) {
+          try {
+            future.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            IOException cause = e.getCause() instanceof IOException ?
+                (IOException) e.getCause() : new IOException(e.getCause());
+            failure = addFailure(failure, cause);
+            break;
+          }
+        }
+      }
+    } finally {
+      if(interrupted)
+        Thread.currentThread().interrupt();
+    }
+    if(failure != null)
+      throw failure;
+  }
+
+  private static IOException addFailure(IOException failure, IOException e) {
+    if(failure == null)
+      return e;
+    failure.addSuppressed(e);
+    return failure;
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("sync");
+    builder.field("threads", this.executor.getMaximumPoolSize());
+    builder.field("active", this.executor.getActiveCount());
+    builder.field("commits", this.commits.get());
+    builder.field("files", this.files.get());
+    builder.field("filesystems", this.filesystems.get());
+    builder.field("time_in_millis", TimeUnit.NANOSECONDS.toMillis(this.timeNanos.get()));
+    builder.endObject();
+    return builder;
+  }
+
+  public long getFiles() {
+    return this.files.get();
+  }
+
+  public long getFileSystems() {
+    return this.filesystems.get();
+  }
+
+  @Override
+  public void close() {
+    this.executor.shutdown();
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.DirectBufferTools;
+import fr.micoq.unsafe.IoUring;
+
+/*
+ * Node-wide io_uring shared by the direct inputs and outputs of the indices using it.
+ *
+ * The requests are only queued in the submission ring, they are submitted all together
+ * (whatever the file) by the first thread waiting for one of them. A single thread
+ * reaps the completions and wakes up the waiting threads. The number of requests
+ * in flight is bounded by the size of the ring.
+ */
+public final class IoUringEngine implements DirectIOEngine, ToXContentFragment, Closeable {
+
+  // Number of requests a single file keeps in flight (write-behind of the outputs)
+  public static final int DEPTH = 4;
+
+  private static final long WAKE_UP = 0L;
+  // Back-off of a submission when the kernel is short of resources
+  private static final long MIN_BACKOFF_NANOS = 10_000L;
+  private static final long MAX_BACKOFF_NANOS = 1_000_000L;
+
+  private final IoUring ring;
+  private final Semaphore slots;
+  private final ConcurrentHashMap<Long, Request> requests;
+  private final Object submitLock;
+  private final Thread completer;
+  private long lastId; // Protected by submitLock
+  private volatile long submittedId;
+  private volatile boolean closed;
+  private final LongAdder submitted;
+  private final LongAdder completed;
+  private final LongAdder batches;
+  private final LongAdder failed;
+
+  public IoUringEngine(int entries) throws IOException {
+    this.ring = IoUring.create(entries);
+    // One entry is kept to wake up the completer on close
+    this.slots = new Semaphore(this.ring.getEntries() - 1);
+    this.requests = new ConcurrentHashMap<>();
+    this.submitLock = new Object();
+    this.lastId = WAKE_UP;
+    this.submittedId = WAKE_UP;
+    this.closed = false;
+    this.submitted = new LongAdder();
+    this.completed = new LongAdder();
+    this.batches = new LongAdder();
+    this.failed = new LongAdder();
+    this.completer = AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+      Thread thread = new Thread(this::complete, "direct-io-uring");
+      thread.setDaemon(true);
+      thread.start();
+      return thread;
+    });
+  }
+
+  private final class Request implements Pending {
+    private final long id;
+    private final boolean write;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long position;
+    private int result;
+    private IOException failure;
+    private boolean done;
+
+    Request(long id, boolean write, FileChannel channel, ByteBuffer buffer, long position) {
+      this.id = id;
+      this.write = write;
+      this.channel = channel;
+      this.buffer = buffer;
+      this.position = position;
+      this.done = false;
+    }
+
+    synchronized void complete(int result, IOException failure) {
+      this.result = result;
+      this.failure = failure;
+      this.done = true;
+      notifyAll();
+    }
+
+    @Override
+    public int await() throws IOException {
+      if(this.id > submittedId)
+        flush();
+      int res;
+      synchronized(this) {
+        // The kernel may still write into the buffer, never give up before the completion
+        boolean interrupted = false;
+        while(!this.done) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if(interrupted)
+          Thread.currentThread().interrupt();
+        if(this.failure != null)
+          throw this.failure;
+        res = this.result;
+      }
+      if(res < 0) {
+        failed.increment();
+        throw new IOException((this.write ? "Write" : "Read") + " failed at " + this.position + ": " + IoUring.errorMessage(res));
+      }
+      int length = this.buffer.remaining();
+      if(this.write && res < length) {
+        // Short write (the device is full?), the channel reports the real error
+        ByteBuffer rest = this.buffer.duplicate();
+        ((java.nio.Buffer)rest).position(rest.position() + res);
+        DirectIOEngine.writeFully(this.channel, rest, this.position + res);
+        return length;
+      }
+      if(!this.write && res == 0 && length > 0)
+        return -1;
+      return res;
+    }
+  }
+
+  @Override
+  public Handle open(FileChannel channel, FileDescriptor fd) throws IOException {
+    final int descriptor = IoUring.descriptor(fd);
+    return new Handle() {
+      @Override
+      public Pending read(ByteBuffer buffer, long position) throws IOException {
+        return prepare(false, channel, descriptor, buffer, position);
+      }
+
+      @Override
+      public Pending write(ByteBuffer buffer, long position) throws IOException {
+        return prepare(true, channel, descriptor, buffer, position);
+      }
+    };
+  }
+
+  @Override
+  public int depth() {
+    return DEPTH;
+  }
+
+  private Request prepare(boolean write, FileChannel channel, int fd, ByteBuffer buffer, long position) throws IOException {
+    if(!this.slots.tryAcquire()) {
+      // Our own requests may be waiting for a submission
+      flush();
+      this.slots.acquireUninterruptibly();
+    }
+    long addr = DirectBufferTools.address(buffer) + buffer.position();
+    synchronized(this.submitLock) {
+      if(this.closed) {
+        this.slots.release();
+        throw new IOException("The io_uring engine is closed");
+      }
+      // The ids follow the order of the entries in the ring: the id is only taken once
+      // the entry is prepared (a full ring is flushed before)
+      long id = this.lastId + 1;
+      boolean prepared;
+      do {
+        prepared = write ?
+          this.ring.prepareWrite(fd, addr, buffer.remaining(), position, id) :
+          this.ring.prepareRead(fd, addr, buffer.remaining(), position, id);
+        if(!prepared) {
+          try {
+            flushLocked();
+          } catch (IOException e) {
+            this.slots.release();
+            throw e;
+          }
+        }
+      } while(!prepared);
+      Request request = new Request(id, write, channel, buffer.duplicate(), position);
+      this.requests.put(id, request);
+      this.lastId = id;
+      return request;
+    }
+  }
+
+  private void flush() throws IOException {
+    synchronized(this.submitLock) {
+      flushLocked();
+    }
+  }
+
+  private void flushLocked() throws IOException {
+    long backoff = MIN_BACKOFF_NANOS;
+    while(this.submittedId < this.lastId) {
+      int count;
+      try {
+        count = this.ring.submit();
+      } catch (IOException e) {
+        // The requests not consumed by the kernel are dropped from the ring, they will never complete.
+        // The consumed ones are completed by the completer.
+        for(long id = this.submittedId + 1; id <= this.lastId; ++id) {
+          Request request = this.requests.remove(id);
+          if(request != null) {
+            request.complete(0, e);
+            this.slots.release();
+          }
+        }
+        this.submittedId = this.lastId;
+        throw e;
+      }
+      if(count == 0) {
+        // Short of resources: the completer reaps some completions in the meantime
+        LockSupport.parkNanos(backoff);
+        backoff = Math.min(2 * backoff, MAX_BACKOFF_NANOS);
+        continue;
+      }
+      this.submittedId += count;
+      this.submitted.add(count);
+      this.batches.increment();
+    }
+  }
+
+  // Wakes up the completer, false if it's not possible
+  private boolean wakeUpLocked() {
+    if(!this.ring.prepareNop(WAKE_UP))
+      return false;
+    long backoff = MIN_BACKOFF_NANOS;
+    try {
+      while(this.ring.submit() == 0) {
+        LockSupport.parkNanos(backoff);
+        backoff = Math.min(2 * backoff, MAX_BACKOFF_NANOS);
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void complete() {
+    long[] ids = new long[64];
+    int[] results = new int[64];
+    while(true) {
+      int count;
+      try {
+        count = this.ring.await(ids, results);
+      } catch (IOException e) {
+        if(this.closed && this.requests.isEmpty())
+          return;
+        continue;
+      }
+      for(int i = 0; i < count; ++i) {
+        if(ids[i] == WAKE_UP)
+          continue;
+        Request request = this.requests.remove(ids[i]);
+        if(request != null) {
+          request.complete(results[i], null);
+          this.slots.release();
+          this.completed.increment();
+        }
+      }
+      // Only stops once the kernel is done with every buffer
+      if(this.closed && this.requests.isEmpty())
+        return;
+    }
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.field("entries", this.ring.getEntries());
+    builder.field("in_flight", this.requests.size());
+    builder.field("submitted", this.submitted.sum());
+    builder.field("completed", this.completed.sum());
+    builder.field("batches", this.batches.sum());
+    builder.field("failed", this.failed.sum());
+    return builder;
+  }
+
+  /*
+   * The requests in flight are drained before the ring is destroyed: their buffers
+   * are only given back once the kernel is done with them.
+   */
+  @Override
+  public void close() {
+    boolean woken;
+    synchronized(this.submitLock) {
+      if(this.closed)
+        return;
+      this.closed = true;
+      try {
+        flushLocked();
+      } catch (IOException e) {
+        // The requests not submitted are failed
+      }
+      woken = wakeUpLocked();
+    }
+    if(!woken) {
+      // The completer still drains the requests in flight and stops after the last one
+      // (the ring is not destroyed, it's a daemon thread)
+      return;
+    }
+    boolean interrupted = false;
+    while(this.completer.isAlive()) {
+      try {
+        this.completer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if(interrupted)
+      Thread.currentThread().interrupt();
+    this.ring.close();
+  }
+}
@@ -17,21 +17,46 @@ package fr.micoq.elasticsearch;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.zip.CRC32;
 
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.RandomAccessInput;
 
 import fr.micoq.unsafe.MappedMemory;
+import fr.micoq.unsafe.MappedMemoryReader;
 
-public class MappedIndexInput extends IndexInput implements RandomAccessInput {
-  private MappedMemory memory;
-  private long length;
+/*
+ * The same final class is used for the main input, its clones and its slices
+ * so the read methods stay monomorphic and can be inlined by the JIT.
+ *
+ * Each instance detects its own sequential streams: once the cursor moved forward
+ * over SEQUENTIAL_THRESHOLD bytes without a seek, the next readAheadWindow bytes are
+ * advised with MADV_WILLNEED, again each half window. A seek backward or too far
+ * forward falls back to the random accesses. The window is checked with the same
+ * comparison as the end of the input (see limit) so the reads don't pay for it.
+ */
+public final class MappedIndexInput extends IndexInput implements RandomAccessInput, ChecksumInput {
+  static final long SEQUENTIAL_THRESHOLD = 256 * 1024;
+  static final long SEQUENTIAL_GAP = 64 * 1024;
+  static final int CHECKSUM_CHUNK = 1024 * 1024;
+  
+  private final MappedMemory memory;
+  private final long length;
   private long pos;
-  private long offset;
-  private MappedIndexInput parent;
-  private MappedIndexInputGuard guard;
+  private final long offset;
+  private final MappedIndexInput parent;
+  private final MappedIndexInputGuard guard;
+  private boolean closed;
+  private final int sampleRate;
+  private int sampleCountdown;
+  private final long readAheadWindow; // 0 when the sequential read ahead is disabled
+  private long limit; // The end of the input or the position of the next read ahead check
+  private long readAheadEnd;
+  private MappedMemoryReader reader; // The reader of the last thread which used this input
   
-  private MappedIndexInput(String resourceDescription,MappedIndexInputGuard guard, long offset, long length, MappedIndexInput parent) {
+  private MappedIndexInput(String resourceDescription,MappedIndexInputGuard guard, long offset, long length, MappedIndexInput parent,
+      long readAheadWindow) {
     super(resourceDescription);
     this.memory = guard.getMemory();
     this.length = length;
@@ -39,8 +64,13 @@ public class MappedIndexInput extends IndexInput implements RandomAccessInput {
     this.offset = offset;
     this.pos = 0;
     this.parent = parent; // Lucene ensure it never call close() on the main slice before accessing to the child slices
-    if(parent == null)
-      guard.open();
+    this.closed = false;
+    int rate = this.memory.getHeatmapSampleRate();
+    this.sampleRate = rate > 0 ? rate : Integer.MAX_VALUE;
+    this.sampleCountdown = this.sampleRate;
+    this.readAheadWindow = readAheadWindow;
+    this.reader = parent != null ? parent.reader : MappedMemoryReader.current();
+    resetStream();
   }
   
   private MappedIndexInput(MappedIndexInput in) {
@@ -51,16 +81,30 @@ public class MappedIndexInput extends IndexInput implements RandomAccessInput {
     this.offset = in.offset;
     this.pos = in.pos;
     this.parent = in;
+    this.closed = false;
+    this.sampleRate = in.sampleRate;
+    this.sampleCountdown = in.sampleRate;
+    this.readAheadWindow = in.readAheadWindow;
+    this.reader = in.reader;
+    resetStream();
   }
   
+  // The new input takes the ownership of one reference of the guard
   public static MappedIndexInput makeInput(String resourceDescription, MappedIndexInputGuard guard) {
-    return new MappedIndexInput(resourceDescription, guard, 0, guard.getMemory().getLength(),null);
+    return makeInput(resourceDescription, guard, 0L);
+  }
+  
+  public static MappedIndexInput makeInput(String resourceDescription, MappedIndexInputGuard guard, long readAheadWindow) {
+    return new MappedIndexInput(resourceDescription, guard, 0, guard.getMemory().getLength(), null, readAheadWindow);
   }
 
   @Override
   public void close() throws IOException {
-    if(parent == null)
+    // The mapping can be shared with other inputs so the reference must be released only once
+    if(parent == null && !this.closed) {
+      this.closed = true;
       guard.close();
+    }
   }
 
   @Override
@@ -80,7 +124,31 @@ public class MappedIndexInput extends IndexInput implements RandomAccessInput {
     // seek exactly after the last byte is allowed (even there is no data here)
     if(pos > this.length)
       throw new EOFException(String.format("Reached EOF, wanted position: %d, current slice length: %d",pos,this.length));
+    long jump = pos - this.pos;
     this.pos = pos;
+    // A short skip forward doesn't break a sequential stream
+    if(jump < 0 || jump > SEQUENTIAL_GAP)
+      resetStream();
+  }
+  
+  private void resetStream() {
+    this.readAheadEnd = this.pos;
+    this.limit = this.readAheadWindow == 0 ? this.length : Math.min(this.length, this.pos + SEQUENTIAL_THRESHOLD);
+  }
+  
+  // The cursor reached the limit before the end of the input: the stream is sequential
+  private void readAhead() {
+    long start = Math.max(this.pos, this.readAheadEnd);
+    long end = Math.min(this.length, this.pos + this.readAheadWindow);
+    if(end > start) {
+      try {
+        this.memory.advise(this.offset + start, end - start, MappedMemory.MADV_WILLNEED);
+      } catch (IOException e) {
+        // ignore, only an advice
+      }
+      this.readAheadEnd = end;
+    }
+    this.limit = Math.min(this.length, this.pos + Math.max(this.readAheadWindow >>> 1, 1));
   }
 
   @Override
@@ -96,28 +164,178 @@ public class MappedIndexInput extends IndexInput implements RandomAccessInput {
     if(sliceDescription != null) {
       resourceDescription = String.format("[slice=%s]",sliceDescription);
     }
-    return new MappedIndexInput(resourceDescription, this.guard, this.offset + pos, length, this);
+    return new MappedIndexInput(resourceDescription, this.guard, this.offset + pos, length, this, this.readAheadWindow);
   }
 
   @Override
   public byte readByte() throws IOException {
-    return readByte(this.pos++);
+    MappedMemoryReader reader = enter();
+    try {
+      if(this.pos >= this.limit) {
+        if(this.pos >= this.length)
+          throw new EOFException(String.format("Read past EOF, wanted position: %d, current slice length: %d",this.pos,this.length));
+        readAhead();
+      }
+      sample(this.pos);
+      return this.memory.getByteUnsafe(this.offset + this.pos++);
+    } finally {
+      reader.exit();
+    }
   }
   
   @Override
   public byte readByte(long pos) throws IOException {
-    if(pos < 0)
-      throw new IllegalArgumentException("The position cannot be a negative value");
-    if(pos >= this.length)
-      throw new EOFException(String.format("Read past EOF, wanted position: %d, current slice length: %d",this.pos,this.length));
-    return this.memory.getByteUnsafe(this.offset + pos);
+    MappedMemoryReader reader = enter();
+    try {
+      checkAbsolute(pos, 1);
+      return this.memory.getByteUnsafe(this.offset + pos);
+    } finally {
+      reader.exit();
+    }
+  }
+
+  @Override
+  public short readShort() throws IOException {
+    MappedMemoryReader reader = enter();
+    try {
+      checkRemaining(2);
+      short v = this.memory.getShortUnsafe(this.offset + this.pos);
+      this.pos += 2;
+      return v;
+    } finally {
+      reader.exit();
+    }
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    MappedMemoryReader reader = enter();
+    try {
+      checkRemaining(4);
+      int v = this.memory.getIntUnsafe(this.offset + this.pos);
+      this.pos += 4;
+      return v;
+    } finally {
+      reader.exit();
+    }
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    MappedMemoryReader reader = enter();
+    try {
+      checkRemaining(8);
+      long v = this.memory.getLongUnsafe(this.offset + this.pos);
+      this.pos += 8;
+      return v;
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  // Same decoding as DataInput.readVInt() but bounds are checked once for the longest encoding
+  @Override
+  public int readVInt() throws IOException {
+    if(this.limit - this.pos < 5)
+      return super.readVInt();
+    MappedMemoryReader reader = enter();
+    try {
+      sample(this.pos);
+      long p = this.offset + this.pos;
+      byte b = this.memory.getByteUnsafe(p++);
+      int i = b & 0x7F;
+      if(b < 0) {
+        b = this.memory.getByteUnsafe(p++);
+        i |= (b & 0x7F) << 7;
+        if(b < 0) {
+          b = this.memory.getByteUnsafe(p++);
+          i |= (b & 0x7F) << 14;
+          if(b < 0) {
+            b = this.memory.getByteUnsafe(p++);
+            i |= (b & 0x7F) << 21;
+            if(b < 0) {
+              b = this.memory.getByteUnsafe(p++);
+              // Warning: the next ands use 0x0F / 0xF0 - beware copy/paste errors:
+              i |= (b & 0x0F) << 28;
+              if((b & 0xF0) != 0)
+                throw new IOException("Invalid vInt detected (too many bits)");
+            }
+          }
+        }
+      }
+      this.pos = p - this.offset;
+      return i;
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  // Same decoding as DataInput.readVLong() but bounds are checked once for the longest encoding
+  @Override
+  public long readVLong() throws IOException {
+    if(this.limit - this.pos < 9)
+      return super.readVLong();
+    MappedMemoryReader reader = enter();
+    try {
+      sample(this.pos);
+      long p = this.offset + this.pos;
+      long i = 0L;
+      int shift = 0;
+      byte b;
+      do {
+        if(shift > 56)
+          throw new IOException("Invalid vLong detected (negative values disallowed)");
+        b = this.memory.getByteUnsafe(p++);
+        i |= (b & 0x7FL) << shift;
+        shift += 7;
+      } while(b < 0);
+      this.pos = p - this.offset;
+      return i;
+    } finally {
+      reader.exit();
+    }
   }
 
   @Override
   public void readBytes(byte[] b, int offset, int len) throws IOException {
+    if(this.limit - this.pos < len && this.length - this.pos >= len)
+      readAhead();
     this.pos += readBytes(b,offset,len,this.pos);
   }
   
+  /*
+   * The CRC32 is computed on the mapped memory by chunks. The pages of a chunk which were not
+   * in the page cache before (see mincore()) are evicted once computed: the verification of
+   * a whole file doesn't push the hot data out of the cache, nor keeps the cold data in it.
+   */
+  @Override
+  public long checksum(long offset, long length) throws IOException {
+    if(offset < 0 || length < 0 || offset + length > this.length)
+      throw new EOFException(String.format("Checksum past EOF, wanted range: [%d, %d), current slice length: %d",
+          offset,offset + length,this.length));
+    CRC32 crc = new CRC32();
+    long position = this.offset + offset;
+    long end = position + length;
+    do {
+      // One read for each chunk, the memory can be reclaimed between two chunks
+      MappedMemoryReader reader = enter();
+      try {
+        int size = (int)Math.min(end - position, CHECKSUM_CHUNK - position % CHECKSUM_CHUNK);
+        byte[] residency = this.memory.residency(position, size);
+        crc.update(this.memory.view(position, size));
+        try {
+          this.memory.evictCold(position, size, residency);
+        } catch (IOException e) {
+          // ignore, only for the cache
+        }
+        position += size;
+      } finally {
+        reader.exit();
+      }
+    } while(position < end);
+    return crc.getValue();
+  }
+  
   // clone() is used in merges (to calculate the checksum of the output segment in CodecUtil.checksumEntireFile())
   @Override
   public IndexInput clone() {
@@ -130,42 +348,145 @@ public class MappedIndexInput extends IndexInput implements RandomAccessInput {
       return 0;
     if(b == null)
       throw new NullPointerException("Cannot copy to a null array");
+    MappedMemoryReader reader = enter();
+    try {
+      if(pos < 0)
+        throw new IllegalArgumentException("The position cannot be a negative value");
+      if(pos >= this.length || this.length - pos < len)
+        throw new EOFException(String.format("Read past EOF, wanted position: %d, current slice length: %d, bytes to read: %d",
+            pos,this.length,len));
+      sample(pos);
+      return this.memory.getBytesUnsafe(b, offset, this.offset + pos, len);
+    } finally {
+      reader.exit();
+    }
+  }
+
+  // Bulk reads, decoded in the same order as readInt()/readLong()
+  
+  public void readInts(int[] dst, int offset, int length) throws IOException {
+    checkArray(dst.length, offset, length);
+    MappedMemoryReader reader = enter();
+    try {
+      checkRemaining((long)length << 2);
+      this.memory.getIntsUnsafe(dst, offset, this.offset + this.pos, length);
+      this.pos += (long)length << 2;
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  public void readLongs(long[] dst, int offset, int length) throws IOException {
+    checkArray(dst.length, offset, length);
+    MappedMemoryReader reader = enter();
+    try {
+      checkRemaining((long)length << 3);
+      this.memory.getLongsUnsafe(dst, offset, this.offset + this.pos, length);
+      this.pos += (long)length << 3;
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  public void readFloats(float[] dst, int offset, int length) throws IOException {
+    checkArray(dst.length, offset, length);
+    MappedMemoryReader reader = enter();
+    try {
+      checkRemaining((long)length << 2);
+      this.memory.getFloatsUnsafe(dst, offset, this.offset + this.pos, length);
+      this.pos += (long)length << 2;
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  private static void checkArray(int arrayLength, int offset, int length) {
+    if(offset < 0 || length < 0 || arrayLength - offset < length)
+      throw new IndexOutOfBoundsException(String.format("Array offset: %d, length: %d, array length: %d",offset,length,arrayLength));
+  }
+  
+  /*
+   * The memory is unmapped once the last input on the file is closed and no read is in flight
+   * (see MappedMemory.close()). Each read is enclosed in enter() and exit() of the reader of
+   * the thread: a late read through a clone or a slice fails instead of reading the released range.
+   */
+  private MappedMemoryReader enter() {
+    MappedMemoryReader reader = this.reader;
+    if(!reader.isCurrent())
+      this.reader = reader = MappedMemoryReader.current();
+    reader.enter();
+    if(this.memory.isClosed()) {
+      reader.exit();
+      throw new AlreadyClosedException("Already closed: " + this);
+    }
+    return reader;
+  }
+  
+  /*
+   * Counts one read out of sampleRate in the heatmap of the file (see MappedMemory.recordAccess()).
+   * Without heatmap, the countdown starts at Integer.MAX_VALUE so it's only a decrement.
+   * Called once the position is checked: a failed read is not counted.
+   */
+  private void sample(long pos) {
+    if(--this.sampleCountdown == 0) {
+      this.sampleCountdown = this.sampleRate;
+      this.memory.recordAccess(this.offset + pos);
+    }
+  }
+  
+  // Inside a read (see enter())
+  private void checkRemaining(long size) throws EOFException {
+    if(this.limit - this.pos < size) {
+      if(this.length - this.pos < size)
+        throw new EOFException(String.format("Read past EOF, wanted position: %d, current slice length: %d, bytes to read: %d",
+            this.pos,this.length,size));
+      readAhead();
+    }
+    sample(this.pos);
+  }
+  
+  private void checkAbsolute(long pos, int size) throws EOFException {
     if(pos < 0)
       throw new IllegalArgumentException("The position cannot be a negative value");
-    if(pos >= this.length || this.length - pos < len)
+    if(this.length - pos < size)
       throw new EOFException(String.format("Read past EOF, wanted position: %d, current slice length: %d, bytes to read: %d",
-          pos,this.length,len));
-    return this.memory.getBytesUnsafe(b, offset, this.offset + pos, len);
+          pos,this.length,size));
+    sample(pos);
   }
 
-  // Random access (absolute position)
+  // Random access (absolute position), the current position is left untouched
   
-  //TODO : better implementation than seek() ?
   @Override
   public int readInt(long pos) throws IOException {
-    long old = this.pos;
-    seek(pos);
-    int result =  super.readInt();
-    seek(old); //TODO : needeed ?
-    return result;
+    MappedMemoryReader reader = enter();
+    try {
+      checkAbsolute(pos, 4);
+      return this.memory.getIntUnsafe(this.offset + pos);
+    } finally {
+      reader.exit();
+    }
   }
 
   @Override
   public long readLong(long pos) throws IOException {
-    long old = this.pos;
-    seek(pos);
-    long result =  super.readLong();
-    seek(old); //TODO : needeed ?
-    return result;
+    MappedMemoryReader reader = enter();
+    try {
+      checkAbsolute(pos, 8);
+      return this.memory.getLongUnsafe(this.offset + pos);
+    } finally {
+      reader.exit();
+    }
   }
 
   @Override
   public short readShort(long pos) throws IOException {
-    long old = this.pos;
-    seek(pos);
-    short result =  super.readShort();
-    seek(old); //TODO : needeed ?
-    return result;
+    MappedMemoryReader reader = enter();
+    try {
+      checkAbsolute(pos, 2);
+      return this.memory.getShortUnsafe(this.offset + pos);
+    } finally {
+      reader.exit();
+    }
   }
   
 }
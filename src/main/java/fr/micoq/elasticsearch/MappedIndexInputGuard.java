@@ -15,31 +15,71 @@
  */
 package fr.micoq.elasticsearch;
 
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
 import fr.micoq.unsafe.MappedMemory;
 
+/*
+ * Reference counter of a mapping, a new guard holds one reference.
+ * The mapping can be shared between several inputs through the MappedMemoryRegistry.
+ */
 public class MappedIndexInputGuard {
-  
-  private MappedMemory memory;
-  private long refCounter;
-  
+
+  private final MappedMemory memory;
+  private final AtomicLong refCounter;
+  private final Object key;
+  private final MappedMemoryRegistry registry;
+  private final Path path;
+  private final String owner;
+
   public MappedIndexInputGuard(MappedMemory memory) {
+    this(memory, null, null, null, null);
+  }
+
+  MappedIndexInputGuard(MappedMemory memory, Object key, MappedMemoryRegistry registry, Path path, String owner) {
     this.memory = memory;
-    this.refCounter = 0L;
+    this.refCounter = new AtomicLong(1L);
+    this.key = key;
+    this.registry = registry;
+    this.path = path;
+    this.owner = owner;
   }
-  
+
   public void close() {
-    if(this.refCounter > 0) {
-      this.refCounter--;
-      if(this.refCounter == 0)
-        this.memory.close();
+    if(this.refCounter.decrementAndGet() == 0) {
+      if(this.registry != null)
+        this.registry.remove(this.key, this);
+      this.memory.close();
     }
   }
-  
-  public void open() {
-    this.refCounter++;
+
+  // Takes a new reference unless the mapping is already released
+  public boolean tryOpen() {
+    while(true) {
+      long count = this.refCounter.get();
+      if(count <= 0)
+        return false;
+      if(this.refCounter.compareAndSet(count, count + 1))
+        return true;
+    }
+  }
+
+  // Number of references still held (0 once released)
+  long references() {
+    return this.refCounter.get();
   }
-  
+
   public MappedMemory getMemory() {
     return this.memory;
   }
+
+  public Path getPath() {
+    return this.path;
+  }
+
+  // The shard which mapped the file first (null if unknown)
+  public String getOwner() {
+    return this.owner;
+  }
 }
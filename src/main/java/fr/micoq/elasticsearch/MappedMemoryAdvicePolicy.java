@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * The madvise() advice to apply on a mapped file, by extension and optionally by size.
+ *
+ * Each extension has a list of rules "advice[@min_size]", for example:
+ *   index.store.mmap.advice.dvd: "random, normal@256mb"
+ * The rule with the biggest minimum size lower or equal to the file length wins.
+ * The rules are parsed once per directory so the resolution is only a lookup.
+ */
+public final class MappedMemoryAdvicePolicy {
+
+  private static final String[] ADVICE_NAMES = {"normal", "sequential", "random", "willneed"};
+
+  private static final class Rule {
+    private final long minSize;
+    private final int advice;
+
+    Rule(long minSize, int advice) {
+      this.minSize = minSize;
+      this.advice = advice;
+    }
+  }
+
+  // Node-wide counters of the resolved advices
+  public static final class Stats implements ToXContentFragment {
+    private final LongAdder ruleHits = new LongAdder();
+    private final LongAdder defaultHits = new LongAdder();
+    private final LongAdder[] byAdvice = new LongAdder[ADVICE_NAMES.length];
+
+    public Stats() {
+      for(int i = 0; i < this.byAdvice.length; ++i) {
+        this.byAdvice[i] = new LongAdder();
+      }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      long hits = this.ruleHits.sum();
+      long total = hits + this.defaultHits.sum();
+      builder.startObject("madvise");
+      builder.field("rule_hits", hits);
+      builder.field("default_hits", total - hits);
+      builder.field("rule_hit_ratio", total == 0 ? 0.0 : (double)hits / total);
+      builder.startObject("files");
+      for(int i = 0; i < ADVICE_NAMES.length; ++i) {
+        builder.field(ADVICE_NAMES[i], this.byAdvice[i].sum());
+      }
+      builder.endObject();
+      builder.endObject();
+      return builder;
+    }
+  }
+
+  private final Map<String, Rule[]> rules;
+  private final int defaultAdvice;
+  private final Stats stats;
+
+  private MappedMemoryAdvicePolicy(Map<String, Rule[]> rules, int defaultAdvice, Stats stats) {
+    this.rules = rules;
+    this.defaultAdvice = defaultAdvice;
+    this.stats = stats;
+  }
+
+  public static MappedMemoryAdvicePolicy defaultPolicy(int defaultAdvice) {
+    return new MappedMemoryAdvicePolicy(Collections.emptyMap(), defaultAdvice, null);
+  }
+
+  // The settings of the group "index.store.mmap.advice." (the keys are the extensions)
+  public static MappedMemoryAdvicePolicy parse(Settings settings, int defaultAdvice, Stats stats) {
+    Map<String, Rule[]> rules = new HashMap<>();
+    for(String extension : settings.keySet()) {
+      rules.put(extension, parseRules(extension, settings.get(extension)));
+    }
+    return new MappedMemoryAdvicePolicy(rules, defaultAdvice, stats);
+  }
+
+  public static void validate(Settings settings) {
+    parse(settings, MappedMemory.MADV_NORMAL, null);
+  }
+
+  private static Rule[] parseRules(String extension, String value) {
+    String[] items = value.split(",");
+    Rule[] rules = new Rule[items.length];
+    for(int i = 0; i < items.length; ++i) {
+      String item = items[i].trim();
+      long minSize = 0L;
+      int sep = item.indexOf('@');
+      if(sep >= 0) {
+        minSize = ByteSizeValue.parseBytesSizeValue(item.substring(sep + 1).trim(),
+            "index.store.mmap.advice." + extension).getBytes();
+        item = item.substring(0, sep).trim();
+      }
+      rules[i] = new Rule(minSize, parseAdvice(extension, item));
+    }
+    // The biggest minimum size first
+    Arrays.sort(rules, (a, b) -> Long.compare(b.minSize, a.minSize));
+    return rules;
+  }
+
+  private static int parseAdvice(String extension, String name) {
+    switch(name) {
+      case "normal":
+        return MappedMemory.MADV_NORMAL;
+      case "sequential":
+        return MappedMemory.MADV_SEQUENTIAL;
+      case "random":
+        return MappedMemory.MADV_RANDOM;
+      case "willneed":
+        return MappedMemory.MADV_WILLNEED;
+      default:
+        throw new IllegalArgumentException("Unknown advice [" + name + "] for the extension [" + extension +
+            "], expected [normal], [sequential], [random] or [willneed]");
+    }
+  }
+
+  // Returns one of the MappedMemory.MADV_* values
+  public int resolve(String extension, long length) {
+    int advice = this.defaultAdvice;
+    boolean hit = false;
+    Rule[] extensionRules = this.rules.get(extension);
+    if(extensionRules != null) {
+      for(Rule rule : extensionRules) {
+        if(rule.minSize <= length) {
+          advice = rule.advice;
+          hit = true;
+          break;
+        }
+      }
+    }
+    if(this.stats != null) {
+      (hit ? this.stats.ruleHits : this.stats.defaultHits).increment();
+      this.stats.byAdvice[advice].increment();
+    }
+    return advice;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * Periodically turns the sampled accesses of the mapped files into advices
+ * (see MappedMemory.adviseFromHeatmap()): the working set of a file mapped with
+ * MADV_RANDOM is read ahead with large I/Os instead of a major fault per page.
+ */
+public final class MappedMemoryHeatmap implements ToXContentFragment, Closeable {
+
+  private final MappedMemoryRegistry registry;
+  private final long intervalMillis;
+  private final int hotThreshold;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private long rounds;
+  private long files;
+  private long hotRegions;
+  private long coldRegions;
+
+  public MappedMemoryHeatmap(MappedMemoryRegistry registry, long intervalMillis, int hotThreshold) {
+    this.registry = registry;
+    this.intervalMillis = intervalMillis;
+    this.hotThreshold = hotThreshold;
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "mapped-memory-heatmap");
+          thread.setDaemon(true);
+          return thread;
+        }));
+    if(intervalMillis > 0) {
+      this.scheduler.scheduleWithFixedDelay(this::advise, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // One round over all the mapped files with a heatmap
+  public synchronized void advise() {
+    long[] result = new long[2];
+    long roundFiles = 0L;
+    for(MappedIndexInputGuard guard : this.registry.mappings()) {
+      MappedMemory memory = guard.getMemory();
+      if(memory.getHeatmapSampleRate() == 0 || !guard.tryOpen())
+        continue;
+      try {
+        memory.adviseFromHeatmap(this.hotThreshold, result);
+        this.hotRegions += result[0];
+        this.coldRegions += result[1];
+        roundFiles++;
+      } catch (IOException e) {
+        // ignore, only an advice
+      } finally {
+        guard.close();
+      }
+    }
+    this.files = roundFiles;
+    this.rounds++;
+  }
+
+  @Override
+  public void close() {
+    this.scheduler.shutdownNow();
+  }
+
+  @Override
+  public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("heatmap");
+    builder.field("interval_in_millis", this.intervalMillis);
+    builder.field("hot_threshold", this.hotThreshold);
+    builder.field("rounds", this.rounds);
+    builder.field("files", this.files);
+    builder.field("willneed_regions", this.hotRegions);
+    builder.field("cold_regions", this.coldRegions);
+    builder.endObject();
+    return builder;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * Node-wide budget of the mappings locked in RAM (with mlock()).
+ *
+ * When a new pin doesn't fit in the budget, the pins with a lower priority
+ * (the biggest first) are unlocked to make room. If it's still not enough,
+ * the new pin is refused. The priority is given by the caller, 0 is the highest.
+ */
+public final class MappedMemoryLocker implements ToXContentFragment {
+
+  private static final class Pin {
+    private final MappedMemory memory;
+    private final int priority;
+    private final long length;
+
+    Pin(MappedMemory memory, int priority, long length) {
+      this.memory = memory;
+      this.priority = priority;
+      this.length = length;
+    }
+  }
+
+  private final long budget;
+  private final Map<MappedMemory, Pin> pins;
+  private long pinnedBytes;
+  private long refused;
+  private long evicted;
+  private long failed;
+
+  public MappedMemoryLocker(long budget) {
+    this.budget = budget;
+    this.pins = new IdentityHashMap<>();
+    this.pinnedBytes = 0L;
+    this.refused = 0L;
+    this.evicted = 0L;
+    this.failed = 0L;
+  }
+
+  public synchronized boolean pin(MappedMemory memory, int priority) {
+    long length = memory.getLength();
+    if(length == 0 || this.pins.containsKey(memory))
+      return true;
+    if(this.pinnedBytes + length > this.budget && !evict(priority, length)) {
+      this.refused++;
+      return false;
+    }
+    try {
+      // Only the pages read from now on are loaded (and locked)
+      memory.lock(true);
+    } catch (IOException e) {
+      // Usually RLIMIT_MEMLOCK is too low
+      this.failed++;
+      return false;
+    }
+    this.pins.put(memory, new Pin(memory, priority, length));
+    this.pinnedBytes += length;
+    memory.addCloseListener(() -> release(memory));
+    return true;
+  }
+
+  // Unlocks the pins with a lower priority (the biggest first) until the new pin fits
+  private boolean evict(int priority, long length) {
+    List<Pin> candidates = new ArrayList<>();
+    long reclaimable = 0L;
+    for(Pin pin : this.pins.values()) {
+      if(pin.priority > priority) {
+        candidates.add(pin);
+        reclaimable += pin.length;
+      }
+    }
+    if(this.pinnedBytes - reclaimable + length > this.budget)
+      return false;
+    candidates.sort((a, b) -> a.priority != b.priority ?
+        Integer.compare(b.priority, a.priority) : Long.compare(b.length, a.length));
+    for(Pin pin : candidates) {
+      if(this.pinnedBytes + length <= this.budget)
+        break;
+      try {
+        pin.memory.unlock();
+      } catch (IOException e) {
+        // ignore, the mapping is not accounted anymore
+      }
+      this.pins.remove(pin.memory);
+      this.pinnedBytes -= pin.length;
+      this.evicted++;
+    }
+    return true;
+  }
+
+  private synchronized void release(MappedMemory memory) {
+    Pin pin = this.pins.remove(memory);
+    if(pin != null)
+      this.pinnedBytes -= pin.length;
+  }
+
+  public synchronized long getPinnedBytes() {
+    return this.pinnedBytes;
+  }
+
+  @Override
+  public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("mlock");
+    builder.field("budget_in_bytes", this.budget);
+    builder.field("pinned_in_bytes", this.pinnedBytes);
+    builder.field("pinned_files", this.pins.size());
+    builder.field("refused", this.refused);
+    builder.field("evicted", this.evicted);
+    builder.field("failed", this.failed);
+    builder.endObject();
+    return builder;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.store.RateLimiter;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * Node-wide background preload of the mapped files.
+ *
+ * The files are populated chunk by chunk by a small pool of threads so a shard can
+ * be opened (and searched) while it warms. The chunks already in the page cache
+ * (see mincore()) are skipped and the other ones count in the throttle.
+ * A file is abandoned when the free memory of the host drops below a threshold.
+ * The queue is ordered by priority (0 is the highest) then by size (the smallest first).
+ */
+public final class MappedMemoryPreloader implements ToXContentFragment, Closeable {
+
+  static final long CHUNK_SIZE = 4L * 1024 * 1024;
+
+  private final int threads;
+  private final long bytesPerSec;
+  private final long minFreeMemory;
+  private final RateLimiter rateLimiter;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, ShardPreload> shards;
+  private final AtomicLong sequence;
+  private final LongAdder lowMemoryStops;
+
+  public MappedMemoryPreloader(int threads, long bytesPerSec, long minFreeMemory) {
+    this.threads = threads;
+    this.bytesPerSec = bytesPerSec;
+    this.minFreeMemory = minFreeMemory;
+    this.rateLimiter = bytesPerSec > 0 ?
+        new RateLimiter.SimpleRateLimiter((double)bytesPerSec / (1024 * 1024)) : null;
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<>(), runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "mapped-memory-preloader-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }));
+    // No idle thread when nothing is preloaded
+    this.executor.allowCoreThreadTimeOut(true);
+    this.shards = new ConcurrentHashMap<>();
+    this.sequence = new AtomicLong();
+    this.lowMemoryStops = new LongAdder();
+  }
+
+  // A new progress tracker for a shard, it replaces the previous one of the same shard
+  public ShardPreload forShard(String name) {
+    ShardPreload shard = new ShardPreload(name);
+    this.shards.put(name, shard);
+    return shard;
+  }
+
+  @Override
+  public void close() {
+    for(Runnable task : this.executor.shutdownNow()) {
+      ((Task) task).guard.close(); // Never run
+    }
+  }
+
+  public final class ShardPreload implements Closeable {
+    private final String name;
+    private final LongAdder filesTotal = new LongAdder();
+    private final LongAdder filesDone = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder bytesTotal = new LongAdder();
+    private final LongAdder bytesLoaded = new LongAdder();
+    private final LongAdder bytesResident = new LongAdder();
+    private final LongAdder bytesSkipped = new LongAdder();
+    private volatile boolean closed;
+
+    private ShardPreload(String name) {
+      this.name = name;
+      this.closed = false;
+    }
+
+    /*
+     * The task takes its own reference on the mapping (released when it ends), so the
+     * mapping is never unmapped under it.
+     */
+    public void submit(MappedIndexInputGuard guard, int priority) {
+      if(this.closed || guard.getMemory().getLength() == 0 || !guard.tryOpen())
+        return;
+      this.filesTotal.increment();
+      this.bytesTotal.add(guard.getMemory().getLength());
+      try {
+        MappedMemoryPreloader.this.executor.execute(new Task(this, guard, priority,
+            MappedMemoryPreloader.this.sequence.getAndIncrement()));
+      } catch (RejectedExecutionException e) {
+        // Stopped
+        this.filesDone.increment();
+        this.bytesSkipped.add(guard.getMemory().getLength());
+        guard.close();
+      }
+    }
+
+    // True when all the submitted files are loaded, skipped or failed
+    public boolean isDone() {
+      return this.filesDone.sum() == this.filesTotal.sum();
+    }
+
+    // The queued files of a closed shard are skipped
+    @Override
+    public void close() {
+      this.closed = true;
+      MappedMemoryPreloader.this.shards.remove(this.name, this);
+    }
+
+    private void toXContent(XContentBuilder builder) throws IOException {
+      long total = this.bytesTotal.sum();
+      long done = this.bytesLoaded.sum() + this.bytesResident.sum() + this.bytesSkipped.sum();
+      builder.startObject(this.name);
+      builder.field("files_total", this.filesTotal.sum());
+      builder.field("files_done", this.filesDone.sum());
+      builder.field("files_failed", this.filesFailed.sum());
+      builder.field("total_in_bytes", total);
+      builder.field("loaded_in_bytes", this.bytesLoaded.sum());
+      builder.field("resident_in_bytes", this.bytesResident.sum());
+      builder.field("skipped_in_bytes", this.bytesSkipped.sum());
+      builder.field("percent", total == 0 ? 100.0 : 100.0 * done / total);
+      builder.endObject();
+    }
+  }
+
+  private final class Task implements Runnable, Comparable<Task> {
+    private final ShardPreload shard;
+    private final MappedIndexInputGuard guard; // Our own reference
+    private final MappedMemory memory;
+    private final int priority;
+    private final long sequence;
+
+    Task(ShardPreload shard, MappedIndexInputGuard guard, int priority, long sequence) {
+      this.shard = shard;
+      this.guard = guard;
+      this.memory = guard.getMemory();
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if(this.priority != other.priority)
+        return Integer.compare(this.priority, other.priority);
+      if(this.memory.getLength() != other.memory.getLength())
+        return Long.compare(this.memory.getLength(), other.memory.getLength());
+      return Long.compare(this.sequence, other.sequence);
+    }
+
+    @Override
+    public void run() {
+      long length = this.memory.getLength();
+      long offset = 0L;
+      try {
+        // Stops when the inputs of the file are all closed (only our reference is left)
+        while(offset < length && !this.shard.closed && this.guard.references() > 1) {
+          if(lowMemory()) {
+            MappedMemoryPreloader.this.lowMemoryStops.increment();
+            break;
+          }
+          long size = Math.min(CHUNK_SIZE, length - offset);
+          long resident = this.memory.residentBytes(offset, size);
+          if(resident < size) {
+            if(MappedMemoryPreloader.this.rateLimiter != null)
+              MappedMemoryPreloader.this.rateLimiter.pause(size - resident);
+            this.memory.preload(offset, size);
+            this.shard.bytesLoaded.add(size - resident);
+          }
+          this.shard.bytesResident.add(resident);
+          offset += size;
+        }
+      } catch (IOException | RuntimeException e) {
+        // The file stays readable anyway
+        this.shard.filesFailed.increment();
+      } finally {
+        this.shard.bytesSkipped.add(length - offset);
+        this.shard.filesDone.increment();
+        this.guard.close();
+      }
+    }
+  }
+
+  private boolean lowMemory() {
+    if(this.minFreeMemory <= 0)
+      return false;
+    long free = MappedMemory.freeMemory();
+    return free >= 0 && free < this.minFreeMemory;
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject("preload");
+    builder.field("threads", this.threads);
+    builder.field("max_bytes_per_sec", this.bytesPerSec);
+    builder.field("min_free_memory_in_bytes", this.minFreeMemory);
+    builder.field("queued", this.executor.getQueue().size());
+    builder.field("active", this.executor.getActiveCount());
+    builder.field("low_memory_stops", this.lowMemoryStops.sum());
+    builder.startObject("shards");
+    for(ShardPreload shard : this.shards.values()) {
+      shard.toXContent(builder);
+    }
+    builder.endObject();
+    builder.endObject();
+    return builder;
+  }
+}
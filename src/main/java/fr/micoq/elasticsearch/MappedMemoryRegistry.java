@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * Node-wide registry of the mapped files, keyed by file identity (device + inode)
+ * and by the settings of the mapping (flags, advice, cache drop, heatmap, lock).
+ * Segment files are immutable so every input opened on the same file with the same
+ * settings can share a single mapping instead of doing mmap()/munmap() again after
+ * each refresh. Inputs opened with other settings get their own mapping of the file,
+ * so the first opener never imposes its settings on the others.
+ * The lookup is lock-free, a mapping is removed when its last input is closed.
+ */
+public final class MappedMemoryRegistry {
+
+  private static final MappedMemoryRegistry INSTANCE = new MappedMemoryRegistry();
+
+  private final ConcurrentHashMap<Object, MappedIndexInputGuard> mappings;
+
+  @FunctionalInterface
+  public interface Mapper {
+    MappedMemory map(Path path, long length) throws IOException;
+  }
+
+  /*
+   * The settings the mapper would apply to the file, compared with equals().
+   * Two inputs share a mapping only if their settings are equal.
+   */
+  @FunctionalInterface
+  public interface Settings {
+    Object of(Path path, long length);
+  }
+
+  private static final class Key {
+    private final Object fileKey;
+    private final Object settings;
+
+    Key(Object fileKey, Object settings) {
+      this.fileKey = fileKey;
+      this.settings = settings;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return this.fileKey.equals(other.fileKey) && Objects.equals(this.settings, other.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * this.fileKey.hashCode() + Objects.hashCode(this.settings);
+    }
+  }
+
+  private MappedMemoryRegistry() {
+    this.mappings = new ConcurrentHashMap<>();
+  }
+
+  public static MappedMemoryRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /*
+   * Returns an opened guard on the mapping of the file, the caller owns one reference.
+   * The mapper is only called when the file is not already mapped.
+   */
+  public MappedIndexInputGuard acquire(Path path, Mapper mapper) throws IOException {
+    return acquire(path, null, (file, length) -> null, mapper);
+  }
+
+  // The owner is the name of the shard, only used in the stats
+  public MappedIndexInputGuard acquire(Path path, String owner, Settings settings, Mapper mapper) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    Object fileKey = attributes.fileKey();
+    if(fileKey == null) {
+      // No file identity on this platform, the mapping cannot be shared
+      return new MappedIndexInputGuard(mapper.map(path, attributes.size()));
+    }
+    Key key = new Key(fileKey, settings.of(path, attributes.size()));
+    while(true) {
+      MappedIndexInputGuard guard = this.mappings.get(key);
+      if(guard != null) {
+        if(guard.getMemory().getLength() != attributes.size()) {
+          // The file is not the one we mapped (should never happen with Lucene's write-once files)
+          return new MappedIndexInputGuard(mapper.map(path, attributes.size()));
+        }
+        if(guard.tryOpen()) {
+          return guard;
+        }
+        // The last reference is being released, don't wait for the removal
+        this.mappings.remove(key, guard);
+        continue;
+      }
+      MappedIndexInputGuard created = new MappedIndexInputGuard(mapper.map(path, attributes.size()), key, this, path, owner);
+      guard = this.mappings.putIfAbsent(key, created);
+      if(guard == null) {
+        return created;
+      }
+      // Another thread mapped the same file concurrently, use its mapping
+      created.close();
+    }
+  }
+
+  void remove(Object key, MappedIndexInputGuard guard) {
+    this.mappings.remove(key, guard);
+  }
+
+  // A weakly consistent view of the shared mappings
+  public Collection<MappedIndexInputGuard> mappings() {
+    return Collections.unmodifiableCollection(this.mappings.values());
+  }
+
+  public int size() {
+    return this.mappings.size();
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.unsafe.MappedMemory;
+
+/*
+ * Page cache residency of the mapped files, by index, shard and file.
+ *
+ * The residency is sampled with cachestat() (or mincore() on older kernels) by a
+ * background thread: the stats only read the last samples. The collection is
+ * incremental: each round only samples the files without a recent sample (the oldest
+ * first) up to a number of mapped bytes, the other files keep their previous sample.
+ */
+public final class MappedMemoryResidency implements ToXContentFragment, Closeable {
+
+  static final long MAX_SAMPLED_BYTES = 64L * 1024 * 1024 * 1024;
+  static final long MIN_SAMPLE_AGE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final String UNKNOWN_OWNER = "_unknown";
+
+  private static final class Sample {
+    private final long residentBytes;
+    private final long sampledAt;
+
+    Sample(long residentBytes, long sampledAt) {
+      this.residentBytes = residentBytes;
+      this.sampledAt = sampledAt;
+    }
+  }
+
+  // The result of a round, never modified once published
+  private static final class Snapshot {
+    private final Map<MappedIndexInputGuard, Sample> samples;
+    private final int sampledFiles;
+    private final long vmaCount;
+
+    Snapshot(Map<MappedIndexInputGuard, Sample> samples, int sampledFiles, long vmaCount) {
+      this.samples = samples;
+      this.sampledFiles = sampledFiles;
+      this.vmaCount = vmaCount;
+    }
+  }
+
+  // The totals of a node, an index, a shard or a file
+  private static final class Usage {
+    private long files;
+    private long mappedBytes;
+    private long residentBytes;
+    private long lockedBytes;
+    private final Map<String, Usage> children = new TreeMap<>();
+
+    void add(long mapped, long resident, long locked) {
+      this.files++;
+      this.mappedBytes += mapped;
+      this.residentBytes += resident;
+      this.lockedBytes += locked;
+    }
+
+    Usage child(String name) {
+      return this.children.computeIfAbsent(name, k -> new Usage());
+    }
+
+    void fields(XContentBuilder builder) throws IOException {
+      builder.field("mappings", this.files);
+      builder.field("mapped_in_bytes", this.mappedBytes);
+      builder.field("resident_in_bytes", this.residentBytes);
+      builder.field("locked_in_bytes", this.lockedBytes);
+    }
+  }
+
+  private final MappedMemoryRegistry registry;
+  private final long intervalMillis;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private volatile Snapshot snapshot;
+
+  public MappedMemoryResidency(MappedMemoryRegistry registry, long intervalMillis) {
+    this.registry = registry;
+    this.intervalMillis = intervalMillis;
+    this.snapshot = new Snapshot(Collections.emptyMap(), 0, -1L);
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "mapped-memory-residency");
+          thread.setDaemon(true);
+          return thread;
+        }));
+    if(intervalMillis > 0) {
+      this.scheduler.scheduleWithFixedDelay(this::collect, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // One round: samples the files without a recent sample and publishes the result
+  public synchronized void collect() {
+    long now = System.nanoTime();
+    Set<MappedIndexInputGuard> mappings = Collections.newSetFromMap(new IdentityHashMap<>());
+    mappings.addAll(this.registry.mappings());
+    Map<MappedIndexInputGuard, Sample> samples = new IdentityHashMap<>(this.snapshot.samples);
+    samples.keySet().retainAll(mappings);
+    List<MappedIndexInputGuard> stale = new ArrayList<>();
+    for(MappedIndexInputGuard guard : mappings) {
+      Sample sample = samples.get(guard);
+      if(sample == null || now - sample.sampledAt >= MIN_SAMPLE_AGE_NANOS)
+        stale.add(guard);
+    }
+    stale.sort((a, b) -> Long.compare(sampledAt(samples, a), sampledAt(samples, b)));
+    long budget = MAX_SAMPLED_BYTES;
+    int sampled = 0;
+    for(MappedIndexInputGuard guard : stale) {
+      if(budget <= 0)
+        break;
+      // The file is kept mapped (and its descriptor opened) during the sample
+      if(!guard.tryOpen())
+        continue;
+      try {
+        samples.put(guard, new Sample(guard.getMemory().cachedBytes(), now));
+        budget -= guard.getMemory().getLength();
+        sampled++;
+      } catch (IOException e) {
+        // ignore, the previous sample is kept
+      } finally {
+        guard.close();
+      }
+    }
+    this.snapshot = new Snapshot(samples, sampled, MappedMemory.mappingCount());
+  }
+
+  private static long sampledAt(Map<MappedIndexInputGuard, Sample> samples, MappedIndexInputGuard guard) {
+    Sample sample = samples.get(guard);
+    return sample == null ? Long.MIN_VALUE : sample.sampledAt;
+  }
+
+  @Override
+  public void close() {
+    this.scheduler.shutdownNow();
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    String level = params.param("level", "indices");
+    long now = System.nanoTime();
+    Snapshot snapshot = this.snapshot;
+
+    Usage node = new Usage();
+    long unsampled = 0L;
+    long oldest = now;
+    for(MappedIndexInputGuard guard : this.registry.mappings()) {
+      Sample sample = snapshot.samples.get(guard);
+      if(sample == null) {
+        unsampled++;
+        continue;
+      }
+      oldest = Math.min(oldest, sample.sampledAt);
+      MappedMemory memory = guard.getMemory();
+      long mapped = memory.getLength();
+      long locked = memory.isLocked() ? sample.residentBytes : 0L;
+      String owner = guard.getOwner() == null ? UNKNOWN_OWNER : guard.getOwner();
+      // The owner is a shard id: "[index][shard]"
+      int sep = owner.lastIndexOf("][");
+      String index = sep > 0 ? owner.substring(1, sep) : owner;
+      String shard = sep > 0 ? owner.substring(sep + 2, owner.length() - 1) : owner;
+      String file = guard.getPath() == null ? "" : guard.getPath().getFileName().toString();
+      node.add(mapped, sample.residentBytes, locked);
+      Usage indexUsage = node.child(index);
+      indexUsage.add(mapped, sample.residentBytes, locked);
+      Usage shardUsage = indexUsage.child(shard);
+      shardUsage.add(mapped, sample.residentBytes, locked);
+      shardUsage.child(file).add(mapped, sample.residentBytes, locked);
+    }
+
+    builder.startObject("residency");
+    builder.field("interval_in_millis", this.intervalMillis);
+    builder.field("vma_count", snapshot.vmaCount);
+    node.fields(builder);
+    builder.field("sampled_files", snapshot.sampledFiles);
+    builder.field("unsampled_files", unsampled);
+    builder.field("max_sample_age_in_millis", TimeUnit.NANOSECONDS.toMillis(now - oldest));
+    if(!"node".equals(level)) {
+      builder.startObject("indices");
+      for(Map.Entry<String, Usage> index : node.children.entrySet()) {
+        builder.startObject(index.getKey());
+        index.getValue().fields(builder);
+        if("shards".equals(level) || "files".equals(level)) {
+          builder.startObject("shards");
+          for(Map.Entry<String, Usage> shard : index.getValue().children.entrySet()) {
+            builder.startObject(shard.getKey());
+            shard.getValue().fields(builder);
+            if("files".equals(level)) {
+              builder.startObject("files");
+              for(Map.Entry<String, Usage> file : shard.getValue().children.entrySet()) {
+                builder.startObject(file.getKey());
+                file.getValue().fields(builder);
+                builder.endObject();
+              }
+              builder.endObject();
+            }
+            builder.endObject();
+          }
+          builder.endObject();
+        }
+        builder.endObject();
+      }
+      builder.endObject();
+    }
+    builder.endObject();
+    return builder;
+  }
+}
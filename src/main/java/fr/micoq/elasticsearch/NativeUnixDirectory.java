@@ -15,12 +15,24 @@
  */
 package fr.micoq.elasticsearch;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Collection;
 import java.util.Set;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
+import org.apache.lucene.store.BufferedChecksumIndexInput;
+import org.apache.lucene.store.ChecksumIndexInput;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.FSLockFactory;
@@ -32,13 +44,16 @@ import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.FileSwitchDirectory;
 
+import fr.micoq.unsafe.DirectIO;
 import fr.micoq.unsafe.MappedMemory;
 
+
 public class NativeUnixDirectory extends FSDirectory {
   
   public static final int DEFAULT_DIRECT_BUFFER_SIZE = 131072;
   public static final long DEFAULT_MIN_BYTES_DIRECT = 10*1024*1024;
   public static final long DEFAULT_MAX_BYTES_PRELOAD = 0;
+  public static final long DEFAULT_READ_AHEAD_WINDOW = 2 * 1024 * 1024;
 
   private final boolean memoryReadAhead;
   private final boolean mappedMemory;
@@ -51,6 +66,26 @@ public class NativeUnixDirectory extends FSDirectory {
   private final long maxBytesPreload;
   private final Directory delegate;
   private final Set<String> preLoadExtensions;
+  private final boolean hugePages;
+  private final Populate populate;
+  private final Map<String, Integer> lockPriorities;
+  private final MappedMemoryLocker locker;
+  private final MappedMemoryAdvicePolicy advicePolicy;
+  private final Map<String, Integer> preloadPriorities;
+  private final MappedMemoryPreloader.ShardPreload preloader;
+  private final String shardName;
+  private final CacheDrop cacheDrop;
+  private final int heatmapSampleRate;
+  private final long readAheadWindow;
+  private final DirectIOEngine ioEngine;
+  private final int directReadAhead;
+  private final DirectBufferAllocator bufferAllocator;
+  private final DirectMemoryBreaker breaker; // may be null
+  private final int directWriteBehind; // Buffers in flight of an output, 0 for the engine default
+  private final boolean mergePreallocate;
+  private final ChecksumVerifier checksumVerifier; // null to compute the checksums on the calling thread
+  private final FileSyncer syncer; // null for the sequential fsync of FSDirectory
+  private final int syncfsThreshold; // Files from which the filesystem is synced at once, 0 for never
   
   private static final Set<String> directExcludedExtensions = new HashSet<String>(Arrays.asList("fnm","fdt","fdx")) ;
   
@@ -59,19 +94,7 @@ public class NativeUnixDirectory extends FSDirectory {
   }
   
   public NativeUnixDirectory(Path path, LockFactory lockFactory) throws IOException {
-    this(
-      path,
-      lockFactory,
-      true,
-      false,
-      false,
-      false,
-      DEFAULT_DIRECT_BUFFER_SIZE,
-      DEFAULT_DIRECT_BUFFER_SIZE,
-      ForceIO.None,
-      DEFAULT_MIN_BYTES_DIRECT,
-      DEFAULT_MAX_BYTES_PRELOAD,
-      new HashSet<String>());
+    this(path, lockFactory, new NativeUnixDirectoryConfig());
   }
 
   public enum ForceIO {
@@ -80,6 +103,72 @@ public class NativeUnixDirectory extends FSDirectory {
     None
   }
   
+  // How the preloaded files are populated
+  public enum Populate {
+    Madvise, // MADV_POPULATE_READ just after the mapping
+    Map,     // MAP_POPULATE with the mapping
+    Async;   // MADV_POPULATE_READ in the background (node preloader)
+    
+    public static Populate fromString(String value) {
+      switch(value) {
+        case "madvise":
+          return Madvise;
+        case "map":
+          return Map;
+        case "async":
+          return Async;
+        default:
+          throw new IllegalArgumentException("Unknown populate mode [" + value + "], expected [madvise], [map] or [async]");
+      }
+    }
+  }
+  
+  // What happens to the page cache of a mapped file when its mapping is closed
+  public enum CacheDrop {
+    Always(MappedMemory.CACHE_DROP_ALWAYS),
+    Deleted(MappedMemory.CACHE_DROP_DELETED), // Only the files deleted by a merge or a commit
+    Never(MappedMemory.CACHE_DROP_NEVER);
+    
+    private final int policy;
+    
+    CacheDrop(int policy) {
+      this.policy = policy;
+    }
+    
+    public static CacheDrop fromString(String value) {
+      switch(value) {
+        case "always":
+          return Always;
+        case "deleted":
+          return Deleted;
+        case "never":
+          return Never;
+        default:
+          throw new IllegalArgumentException("Unknown cache drop policy [" + value + "], expected [always], [deleted] or [never]");
+      }
+    }
+  }
+  
+  // Engine of the direct reads and writes
+  public enum IOEngine {
+    Blocking, // FileChannel.read()/write(), one request at a time
+    Threads,  // FileChannel.read()/write() on a node-wide pool of threads
+    IoUring;  // Node-wide io_uring, falls back to Blocking if the kernel doesn't support it
+    
+    public static IOEngine fromString(String value) {
+      switch(value) {
+        case "blocking":
+          return Blocking;
+        case "threads":
+          return Threads;
+        case "io_uring":
+          return IoUring;
+        default:
+          throw new IllegalArgumentException("Unknown I/O engine [" + value + "], expected [blocking], [threads] or [io_uring]");
+      }
+    }
+  }
+  
   public NativeUnixDirectory(
       Path path,
       LockFactory lockFactory,
@@ -93,47 +182,225 @@ public class NativeUnixDirectory extends FSDirectory {
       long minBytesDirect,
       long maxBytesPreload,
       Set<String> preLoadExtensions) throws IOException {
+    this(
+      path,
+      lockFactory,
+      new NativeUnixDirectoryConfig()
+        .setMappedMemory(mappedMemory)
+        .setMemoryReadAhead(memoryReadAhead)
+        .setDirectReadEnabled(directReadEnabled)
+        .setDirectWriteEnabled(directWriteEnabled)
+        .setDirectReadBufferSize(directReadBufferSize)
+        .setDirectWriteBufferSize(directWriteBufferSize)
+        .setForceIO(forceIO)
+        .setMinBytesDirect(minBytesDirect)
+        .setMaxBytesPreload(maxBytesPreload)
+        .setPreLoadExtensions(preLoadExtensions));
+  }
+  
+  public NativeUnixDirectory(Path path, LockFactory lockFactory, NativeUnixDirectoryConfig config) throws IOException {
     super(path, lockFactory);
-    this.mappedMemory = mappedMemory;
-    this.memoryReadAhead = memoryReadAhead;
-    this.directReadEnabled = directReadEnabled;
-    this.directWriteEnabled = directWriteEnabled;
-    this.directReadBufferSize = directReadBufferSize;
-    this.directWriteBufferSize = directWriteBufferSize;
-    this.forceIO = forceIO;
-    this.minBytesDirect = minBytesDirect;
-    this.maxBytesPreload = maxBytesPreload;
-    this.preLoadExtensions = preLoadExtensions;
+    this.mappedMemory = config.mappedMemory;
+    this.memoryReadAhead = config.memoryReadAhead;
+    this.directReadEnabled = config.directReadEnabled;
+    this.directWriteEnabled = config.directWriteEnabled;
+    this.directReadBufferSize = config.directReadBufferSize;
+    this.directWriteBufferSize = config.directWriteBufferSize;
+    this.forceIO = config.forceIO;
+    this.minBytesDirect = config.minBytesDirect;
+    this.maxBytesPreload = config.maxBytesPreload;
+    this.preLoadExtensions = config.preLoadExtensions;
+    this.hugePages = config.hugePages;
+    this.populate = config.populate;
+    // The first extensions of the list win when the lock budget is exhausted
+    this.lockPriorities = new HashMap<>();
+    for(int i = config.lockExtensions.size() - 1; i >= 0; --i) {
+      this.lockPriorities.put(config.lockExtensions.get(i), i);
+    }
+    this.locker = config.locker;
+    this.advicePolicy = config.advicePolicy != null ? config.advicePolicy :
+      MappedMemoryAdvicePolicy.defaultPolicy(this.memoryReadAhead ? MappedMemory.MADV_NORMAL : MappedMemory.MADV_RANDOM);
+    // The first extensions are preloaded first
+    this.preloadPriorities = new HashMap<>();
+    if(this.preLoadExtensions != null) {
+      int priority = 0;
+      for(String extension : this.preLoadExtensions) {
+        this.preloadPriorities.put(extension, priority++);
+      }
+    }
+    this.preloader = config.preloader;
+    this.shardName = config.shardName;
+    this.cacheDrop = config.cacheDrop;
+    this.heatmapSampleRate = config.heatmapSampleRate;
+    this.readAheadWindow = config.readAheadWindow;
+    this.ioEngine = config.ioEngine != null ? config.ioEngine : DirectIOEngine.BLOCKING;
+    this.directReadAhead = config.directReadAhead;
+    this.bufferAllocator = config.bufferAllocator != null ? config.bufferAllocator : DirectBufferAllocator.UNPOOLED;
+    this.breaker = config.breaker;
+    this.directWriteBehind = config.directWriteBehind;
+    this.mergePreallocate = config.mergePreallocate;
+    this.checksumVerifier = config.checksumVerifier;
+    this.syncer = config.syncer;
+    this.syncfsThreshold = config.syncfsThreshold;
     this.delegate = new NIOFSDirectory(path, lockFactory);
   }
   
+  private boolean isPreloaded(String fileExt, long length) {
+    return (this.preLoadExtensions == null || this.preLoadExtensions.contains(fileExt)) &&
+        (this.maxBytesPreload == 0 || this.maxBytesPreload <= length);
+  }
+  
+  private boolean isPreloadedAsync(String fileExt, long length) {
+    return this.populate == Populate.Async && this.preloader != null && isPreloaded(fileExt, length);
+  }
+  
+  private int mapFlags(String fileExt, long length) {
+    int flags = 0;
+    if(this.hugePages)
+      flags |= MappedMemory.MAP_HUGEPAGE;
+    if(isPreloaded(fileExt, length) && !isPreloadedAsync(fileExt, length))
+      flags |= (this.populate == Populate.Map) ? MappedMemory.MAP_POPULATE : MappedMemory.MAP_POPULATE_READ;
+    return flags;
+  }
+  
+  // Everything mapFile() applies to the file: an input only shares a mapping made with the same settings
+  private Object mappingSettings(Path path, long length) {
+    String fileExt = FileSwitchDirectory.getExtension(path.toString());
+    Integer lockPriority = this.locker != null ? this.lockPriorities.get(fileExt) : null;
+    return Arrays.asList(mapFlags(fileExt, length), isPreloadedAsync(fileExt, length), this.cacheDrop,
+        this.heatmapSampleRate, this.advicePolicy.resolve(fileExt, length), lockPriority);
+  }
+  
+  private MappedMemory mapFile(Path path, long length) throws IOException {
+    String fileExt = FileSwitchDirectory.getExtension(path.toString());
+    int flags = mapFlags(fileExt, length);
+    MappedMemory memory = MappedMemory.mapFile(path.toString(), flags);
+    memory.setCacheDropPolicy(this.cacheDrop.policy);
+    memory.enableHeatmap(this.heatmapSampleRate);
+    int advice = this.advicePolicy.resolve(fileExt, length);
+    if(advice != MappedMemory.MADV_NORMAL) {
+      try {
+        memory.advise(advice);
+      } catch (IOException e) {
+        memory.close();
+        throw e;
+      }
+    }
+    Integer lockPriority = this.lockPriorities.get(fileExt);
+    if(lockPriority != null && this.locker != null) {
+      // A refused pin is only reported in the stats, the file is still readable
+      this.locker.pin(memory, lockPriority);
+    }
+    return memory;
+  }
+  
   private IndexInput makeMappedIndexInput(Path path) throws IOException {
-    String fileName = path.toString();
-    MappedMemory memory = MappedMemory.mapFile(fileName);
-    String fileExt = FileSwitchDirectory.getExtension(fileName);
-    if((this.preLoadExtensions == null || this.preLoadExtensions.contains(fileExt)) &&
-       (this.maxBytesPreload == 0 || this.maxBytesPreload <= memory.getLength())) {
-      memory.preload();
-    }
-    if(!this.memoryReadAhead)
-      memory.madviseRandom();
+    // The mapping is shared with the inputs of any directory opened on this file with the same settings
+    final MappedMemory[] mapped = new MappedMemory[1];
+    final MappedIndexInputGuard guard = MappedMemoryRegistry.getInstance().acquire(path, this.shardName,
+        this::mappingSettings, (file, length) -> mapped[0] = mapFile(file, length));
+    // Only a new mapping is preloaded (not the one of a concurrent mapping, discarded)
+    if(mapped[0] != null && mapped[0] == guard.getMemory()) {
+      String fileExt = FileSwitchDirectory.getExtension(path.toString());
+      if(isPreloadedAsync(fileExt, mapped[0].getLength()))
+        this.preloader.submit(guard, this.preloadPriorities.getOrDefault(fileExt, 0));
+    }
     final String resourceDescription = "MMapIndexInput(path=\"" + path.toString() + "\")";
-    final MappedIndexInputGuard guard = new MappedIndexInputGuard(memory);
-    return MappedIndexInput.makeInput(resourceDescription, guard);
+    return MappedIndexInput.makeInput(resourceDescription, guard, this.readAheadWindow);
   }
   
   private IndexInput makeDirectIndexInput(Path path) throws IOException {
-    return new DirectIndexInput(path, this.directReadBufferSize);
+    return new DirectIndexInput(path, directInputBufferSize(path), this.ioEngine, this.directReadAhead,
+        this.bufferAllocator, null);
   }
   
-  private IndexOutput makeDirectIndexOutput(Path path) throws IOException {
-    return new DirectIndexOutput(path, this.directWriteBufferSize); 
+  private IndexOutput makeDirectIndexOutput(Path path, IOContext context) throws IOException {
+    return new DirectIndexOutput(path, directOutputBufferSize(context), this.ioEngine, this.directWriteBehind,
+        this.bufferAllocator, null, preallocatedLength(context));
+  }
+  
+  // Upper bound of the blocks to preallocate for an output, 0 if none
+  private long preallocatedLength(IOContext context) {
+    if(this.mergePreallocate && context.context == Context.MERGE)
+      return context.mergeInfo.estimatedMergeBytes;
+    return 0L;
+  }
+  
+  private IndexOutput createNIOOutput(String name, Path path, IOContext context) throws IOException {
+    IndexOutput output = delegate.createOutput(name, context);
+    long expectedLength = preallocatedLength(context);
+    if(expectedLength == 0L)
+      return output;
+    try {
+      return new PreallocatedIndexOutput(output, path, expectedLength);
+    } catch (IOException | RuntimeException e) {
+      output.close();
+      throw e;
+    }
+  }
+  
+  private int directInputBufferSize(Path path) {
+    // A small file doesn't need a full buffer
+    return DirectBufferPool.bufferSize(this.directReadBufferSize, getFileSize(path));
+  }
+  
+  private int directOutputBufferSize(IOContext context) {
+    // The size of a merged segment is an upper bound of the size of its files
+    long expectedLength = context.context == Context.MERGE ? context.mergeInfo.estimatedMergeBytes : 0L;
+    return DirectBufferPool.bufferSize(this.directWriteBufferSize, expectedLength);
+  }
+  
+  // Direct input if the breaker allows it (the current buffer and the read-ahead), NIO otherwise
+  private IndexInput openDirectInput(String name, Path path, IOContext context) throws IOException {
+    if(this.breaker == null)
+      return makeDirectIndexInput(path);
+    int bufferSize = directInputBufferSize(path);
+    DirectMemoryBreaker.Reservation reservation = this.breaker.reserve(
+        (long)DirectBufferPool.sizeClass(bufferSize) * (1 + this.directReadAhead));
+    if(reservation == null)
+      return delegate.openInput(name, context);
+    try {
+      return new DirectIndexInput(path, bufferSize, this.ioEngine, this.directReadAhead,
+          this.bufferAllocator, reservation);
+    } catch (IOException | RuntimeException e) {
+      reservation.close();
+      throw e;
+    }
+  }
+  
+  // Direct output if the breaker allows it (the buffers in flight), NIO otherwise
+  private IndexOutput createDirectOutput(String name, Path path, IOContext context) throws IOException {
+    if(this.breaker == null)
+      return makeDirectIndexOutput(path, context);
+    int bufferSize = directOutputBufferSize(context);
+    int inFlight = this.directWriteBehind > 0 ? this.directWriteBehind : this.ioEngine.depth();
+    DirectMemoryBreaker.Reservation reservation = this.breaker.reserve(
+        (long)DirectBufferPool.sizeClass(bufferSize) * inFlight);
+    if(reservation == null)
+      return createNIOOutput(name, path, context);
+    try {
+      return new DirectIndexOutput(path, bufferSize, this.ioEngine, this.directWriteBehind,
+          this.bufferAllocator, reservation, preallocatedLength(context));
+    } catch (IOException | RuntimeException e) {
+      reservation.close();
+      throw e;
+    }
   }
   
   private long getFileSize(Path path) {
     return path.toFile().length();
   }
 
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if(this.preloader != null)
+        this.preloader.close();
+    }
+  }
+  
   @Override
   public IndexInput openInput(String name, IOContext context) throws IOException {
     ensureOpen();
@@ -153,14 +420,14 @@ public class NativeUnixDirectory extends FSDirectory {
     }
     else if(context.context == Context.MERGE && context.mergeInfo.estimatedMergeBytes >= this.minBytesDirect) {
       if(this.directReadEnabled) {
-        return makeDirectIndexInput(path);
+        return openDirectInput(name, path, context);
       } else {
         return delegate.openInput(name, context);
       }
     }
     else if(getFileSize(path) >= this.minBytesDirect) {
       if(this.directReadEnabled) {
-        return makeDirectIndexInput(path);
+        return openDirectInput(name, path, context);
       } else {
         return delegate.openInput(name, context);
       }
@@ -173,12 +440,12 @@ public class NativeUnixDirectory extends FSDirectory {
     ensureOpen();
     Path path = this.getDirectory().resolve(name);
     if(this.forceIO == ForceIO.Direct)
-      return makeDirectIndexOutput(path);
+      return makeDirectIndexOutput(path, context);
     else if(context.context == Context.MERGE && context.mergeInfo.estimatedMergeBytes >= this.minBytesDirect) {
       if(this.directWriteEnabled) {
-        return makeDirectIndexOutput(path);
+        return createDirectOutput(name, path, context);
       } else {
-        return delegate.createOutput(name, context);
+        return createNIOOutput(name, path, context);
       }
     }
     else if(context.context == Context.DEFAULT) {
@@ -193,7 +460,7 @@ public class NativeUnixDirectory extends FSDirectory {
       }
       else {
         if(this.directWriteEnabled) {
-          return makeDirectIndexOutput(path);
+          return createDirectOutput(name, path, context);
         } else {
           return delegate.createOutput(name, context);
         }
@@ -201,4 +468,84 @@ public class NativeUnixDirectory extends FSDirectory {
     }
     return delegate.createOutput(name, context);
   }
+  
+  /*
+   * Between two directories on the same filesystem, the file is cloned or copied by the
+   * kernel (without its page cache when the filesystem shares the blocks). Otherwise it's
+   * streamed through an output of this directory (direct or NIO depending on the context).
+   * A wrapped source is always streamed: the wrapper may change what is read.
+   * A target still pending deletion is also streamed, createOutput() brings it back to life.
+   */
+  @Override
+  public void copyFrom(Directory from, String src, String dest, IOContext context) throws IOException {
+    if(from instanceof FSDirectory) {
+      ensureOpen();
+      if(!getPendingDeletions().contains(dest)
+          && copyFile(((FSDirectory) from).getDirectory().resolve(src), this.getDirectory().resolve(dest)))
+        return;
+    }
+    super.copyFrom(from, src, dest, context);
+  }
+  
+  // false if the file must be streamed
+  private static boolean copyFile(Path source, Path target) throws IOException {
+    try {
+      return AccessController.doPrivileged((PrivilegedExceptionAction<Boolean>) () -> {
+        try(FileInputStream in = new FileInputStream(source.toFile())) {
+          // Fails if the target exists, like the CREATE_NEW of FSDirectory.createOutput()
+          Files.createFile(target);
+          boolean copied = false;
+          try(RandomAccessFile out = new RandomAccessFile(target.toFile(), "rw")) {
+            copied = DirectIO.copyFile(in.getFD(), out.getFD(), in.getChannel().size()) != DirectIO.COPY_UNSUPPORTED;
+          } finally {
+            if(!copied)
+              Files.deleteIfExists(target);
+          }
+          return copied;
+        }
+      });
+    } catch (PrivilegedActionException e) {
+      throw (IOException) e.getException();
+    }
+  }
+  
+  @Override
+  public void sync(Collection<String> names) throws IOException {
+    if(this.syncer == null) {
+      super.sync(names);
+      return;
+    }
+    ensureOpen();
+    this.syncer.sync(this.getDirectory(), names, this.syncfsThreshold);
+    // Nothing left to fsync, only retries the pending deletions like FSDirectory.sync()
+    // (maybeDeletePendingFiles() is private)
+    super.sync(Collections.emptyList());
+  }
+  
+  /*
+   * The bytes skipped by the checksum input of a mapped or direct input are computed off-heap
+   * (see OffHeapChecksumIndexInput). CodecUtil.checksumEntireFile() (merges, check_on_startup)
+   * is static and always reads through BufferedChecksumIndexInput.
+   */
+  @Override
+  public ChecksumIndexInput openChecksumInput(String name, IOContext context) throws IOException {
+    IndexInput input = openChecksummedInput(name, context);
+    if(input instanceof ChecksumInput)
+      return new OffHeapChecksumIndexInput(input, this.checksumVerifier);
+    return new BufferedChecksumIndexInput(input);
+  }
+  
+  // A small file is read like with openInput(), a large one from the mapped memory or with direct I/O
+  private IndexInput openChecksummedInput(String name, IOContext context) throws IOException {
+    ensureOpen();
+    ensureCanRead(name);
+    Path path = this.getDirectory().resolve(name);
+    if(this.forceIO != ForceIO.None || getFileSize(path) < OffHeapChecksumIndexInput.MIN_OFF_HEAP_SKIP)
+      return openInput(name, context);
+    else if(this.directReadEnabled)
+      return openDirectInput(name, path, IOContext.READONCE);
+    else if(this.mappedMemory)
+      return makeMappedIndexInput(path);
+    return delegate.openInput(name, context);
+  }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import fr.micoq.elasticsearch.NativeUnixDirectory.CacheDrop;
+import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.elasticsearch.NativeUnixDirectory.Populate;
+
+/*
+ * The options of a NativeUnixDirectory, built once from the index settings
+ * (see NativeUnixFsDirectoryService). The directory copies them when it's created.
+ * Every option has a default: mapped reads without read-ahead, no direct I/O and
+ * none of the node-wide components (locker, preloader, buffer pool, breaker, syncer).
+ */
+public final class NativeUnixDirectoryConfig {
+
+  boolean mappedMemory = true;
+  boolean memoryReadAhead = false;
+  boolean directReadEnabled = false;
+  boolean directWriteEnabled = false;
+  int directReadBufferSize = NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE;
+  int directWriteBufferSize = NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE;
+  ForceIO forceIO = ForceIO.None;
+  long minBytesDirect = NativeUnixDirectory.DEFAULT_MIN_BYTES_DIRECT;
+  long maxBytesPreload = NativeUnixDirectory.DEFAULT_MAX_BYTES_PRELOAD;
+  Set<String> preLoadExtensions = new HashSet<String>(); // null to preload all files
+  boolean hugePages = false;
+  Populate populate = Populate.Madvise;
+  List<String> lockExtensions = Collections.emptyList();
+  MappedMemoryLocker locker = null;
+  MappedMemoryAdvicePolicy advicePolicy = null; // null for the default advice of memoryReadAhead
+  MappedMemoryPreloader.ShardPreload preloader = null;
+  String shardName = null;
+  CacheDrop cacheDrop = CacheDrop.Deleted;
+  int heatmapSampleRate = 0;
+  long readAheadWindow = NativeUnixDirectory.DEFAULT_READ_AHEAD_WINDOW;
+  DirectIOEngine ioEngine = DirectIOEngine.BLOCKING;
+  int directReadAhead = 0;
+  DirectBufferAllocator bufferAllocator = DirectBufferAllocator.UNPOOLED;
+  DirectMemoryBreaker breaker = null;
+  int directWriteBehind = 0; // Buffers in flight of an output, 0 for the engine default
+  boolean mergePreallocate = false;
+  ChecksumVerifier checksumVerifier = null; // null to compute the checksums on the calling thread
+  FileSyncer syncer = null; // null for the sequential fsync of FSDirectory
+  int syncfsThreshold = 0; // Files from which the filesystem is synced at once, 0 for never
+
+  public NativeUnixDirectoryConfig setMappedMemory(boolean mappedMemory) {
+    this.mappedMemory = mappedMemory;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setMemoryReadAhead(boolean memoryReadAhead) {
+    this.memoryReadAhead = memoryReadAhead;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setDirectReadEnabled(boolean directReadEnabled) {
+    this.directReadEnabled = directReadEnabled;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setDirectWriteEnabled(boolean directWriteEnabled) {
+    this.directWriteEnabled = directWriteEnabled;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setDirectReadBufferSize(int directReadBufferSize) {
+    this.directReadBufferSize = directReadBufferSize;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setDirectWriteBufferSize(int directWriteBufferSize) {
+    this.directWriteBufferSize = directWriteBufferSize;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setForceIO(ForceIO forceIO) {
+    this.forceIO = forceIO;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setMinBytesDirect(long minBytesDirect) {
+    this.minBytesDirect = minBytesDirect;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setMaxBytesPreload(long maxBytesPreload) {
+    this.maxBytesPreload = maxBytesPreload;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setPreLoadExtensions(Set<String> preLoadExtensions) {
+    this.preLoadExtensions = preLoadExtensions;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setHugePages(boolean hugePages) {
+    this.hugePages = hugePages;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setPopulate(Populate populate) {
+    this.populate = populate;
+    return this;
+  }
+
+  // The locker pins the files with these extensions (the first ones first)
+  public NativeUnixDirectoryConfig setLock(MappedMemoryLocker locker, List<String> lockExtensions) {
+    this.locker = locker;
+    this.lockExtensions = lockExtensions;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setAdvicePolicy(MappedMemoryAdvicePolicy advicePolicy) {
+    this.advicePolicy = advicePolicy;
+    return this;
+  }
+
+  // Used with Populate.Async
+  public NativeUnixDirectoryConfig setPreloader(MappedMemoryPreloader.ShardPreload preloader) {
+    this.preloader = preloader;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setShardName(String shardName) {
+    this.shardName = shardName;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setCacheDrop(CacheDrop cacheDrop) {
+    this.cacheDrop = cacheDrop;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setHeatmapSampleRate(int heatmapSampleRate) {
+    this.heatmapSampleRate = heatmapSampleRate;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setReadAheadWindow(long readAheadWindow) {
+    this.readAheadWindow = readAheadWindow;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setIOEngine(DirectIOEngine ioEngine) {
+    this.ioEngine = ioEngine;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setDirectReadAhead(int directReadAhead) {
+    this.directReadAhead = directReadAhead;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setBufferAllocator(DirectBufferAllocator bufferAllocator) {
+    this.bufferAllocator = bufferAllocator;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setBreaker(DirectMemoryBreaker breaker) {
+    this.breaker = breaker;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setDirectWriteBehind(int directWriteBehind) {
+    this.directWriteBehind = directWriteBehind;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setMergePreallocate(boolean mergePreallocate) {
+    this.mergePreallocate = mergePreallocate;
+    return this;
+  }
+
+  // Computes the bytes skipped by the checksum inputs (see openChecksumInput())
+  public NativeUnixDirectoryConfig setChecksumVerifier(ChecksumVerifier checksumVerifier) {
+    this.checksumVerifier = checksumVerifier;
+    return this;
+  }
+
+  public NativeUnixDirectoryConfig setSyncer(FileSyncer syncer, int syncfsThreshold) {
+    this.syncer = syncer;
+    this.syncfsThreshold = syncfsThreshold;
+    return this;
+  }
+}
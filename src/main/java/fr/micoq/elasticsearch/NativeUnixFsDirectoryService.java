@@ -1,73 +1,119 @@
-/*
- * Copyright 2018 Michaël Coquard
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package fr.micoq.elasticsearch;
-
-import java.io.IOException;
-import java.nio.file.Path;
-import java.util.Set;
-import java.util.HashSet;
-
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.LockFactory;
-import org.elasticsearch.index.IndexModule;
-import org.elasticsearch.index.IndexSettings;
-import org.elasticsearch.index.shard.ShardPath;
-import org.elasticsearch.index.store.FsDirectoryService;
-import org.elasticsearch.index.store.IndexStore;
-
-import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
-
-public class NativeUnixFsDirectoryService extends FsDirectoryService {
-
-  public NativeUnixFsDirectoryService(IndexSettings indexSettings, IndexStore indexStore, ShardPath path) {
-    super(indexSettings, indexStore, path);
-  }
-
-  @Override
-  protected Directory newFSDirectory(Path location, LockFactory lockFactory) throws IOException {
-    boolean mmapEnabled = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_ENABLED);
-    boolean mmapReadAhead = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_READ_AHEAD);
-    boolean directReadEnabled = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_READ_ENABLED);
-    boolean directWriteEnabled = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_WRITE_ENABLED);
-    int directReadBufferSize = (int)Math.min(
-        indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_READ_BUFFER_SIZE).getBytes(),
-        (long)Integer.MAX_VALUE);
-    int directWriteBufferSize = (int)Math.min(
-        indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_WRITE_BUFFER_SIZE).getBytes(),
-        (long)Integer.MAX_VALUE);
-    long minBytesDirect = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_MIN_MERGE_SIZE).getBytes();
-    long maxBytesPreload = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_MAX_PRELOAD_SIZE).getBytes();
-    Set<String> preLoadExtensions = new HashSet<>(
-        indexSettings.getValue(IndexModule.INDEX_STORE_PRE_LOAD_SETTING));
-    if(preLoadExtensions.contains("*")) {
-      preLoadExtensions = null; // preload all files
-    }
-    
-    return new NativeUnixDirectory(
-      location,
-      lockFactory,
-      mmapEnabled,
-      mmapReadAhead,
-      directReadEnabled,
-      directWriteEnabled,
-      directReadBufferSize,
-      directWriteBufferSize,
-      ForceIO.None,
-      minBytesDirect,
-      maxBytesPreload,
-      preLoadExtensions);
-  }
-}
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.LinkedHashSet;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.LockFactory;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.shard.ShardPath;
+import org.elasticsearch.index.store.FsDirectoryService;
+import org.elasticsearch.index.store.IndexStore;
+
+import fr.micoq.elasticsearch.NativeUnixDirectory.CacheDrop;
+import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.elasticsearch.NativeUnixDirectory.IOEngine;
+import fr.micoq.elasticsearch.NativeUnixDirectory.Populate;
+import fr.micoq.unsafe.MappedMemory;
+
+public class NativeUnixFsDirectoryService extends FsDirectoryService {
+
+  private final NativeUnixStoreService service;
+  private final ShardPath shardPath;
+
+  public NativeUnixFsDirectoryService(IndexSettings indexSettings, IndexStore indexStore, ShardPath path,
+      NativeUnixStoreService service) {
+    super(indexSettings, indexStore, path);
+    this.service = service;
+    this.shardPath = path;
+  }
+
+  @Override
+  protected Directory newFSDirectory(Path location, LockFactory lockFactory) throws IOException {
+    boolean mmapEnabled = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_ENABLED);
+    boolean mmapReadAhead = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_READ_AHEAD);
+    boolean mmapHugePages = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_HUGE_PAGES);
+    Populate mmapPopulate = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_POPULATE);
+    CacheDrop mmapCacheDrop = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_CACHE_DROP);
+    int mmapHeatmapSampleRate = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_HEATMAP_SAMPLE_RATE);
+    long mmapReadAheadWindow = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_READ_AHEAD_WINDOW).getBytes();
+    boolean directReadEnabled = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_READ_ENABLED);
+    boolean directWriteEnabled = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_WRITE_ENABLED);
+    int directReadBufferSize = (int)Math.min(
+        indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_READ_BUFFER_SIZE).getBytes(),
+        (long)Integer.MAX_VALUE);
+    int directWriteBufferSize = (int)Math.min(
+        indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_WRITE_BUFFER_SIZE).getBytes(),
+        (long)Integer.MAX_VALUE);
+    IOEngine directEngine = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_ENGINE);
+    int directReadAhead = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_READ_AHEAD);
+    int directWriteBehind = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_WRITE_BEHIND);
+    boolean mergePreallocate = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MERGE_PREALLOCATE);
+    int syncfsThreshold = indexSettings.getValue(NativeUnixStorePlugin.SETTING_SYNC_SYNCFS_THRESHOLD);
+    long minBytesDirect = indexSettings.getValue(NativeUnixStorePlugin.SETTING_DIRECT_MIN_MERGE_SIZE).getBytes();
+    long maxBytesPreload = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_MAX_PRELOAD_SIZE).getBytes();
+    // The order of the extensions gives the priority of the asynchronous preload
+    Set<String> preLoadExtensions = new LinkedHashSet<>(
+        indexSettings.getValue(IndexModule.INDEX_STORE_PRE_LOAD_SETTING));
+    if(preLoadExtensions.contains("*")) {
+      preLoadExtensions = null; // preload all files
+    }
+    String shardName = this.shardPath.getShardId().toString();
+    List<String> lockExtensions = indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_LOCK);
+    MappedMemoryAdvicePolicy advicePolicy = MappedMemoryAdvicePolicy.parse(
+        indexSettings.getValue(NativeUnixStorePlugin.SETTING_MMAP_ADVICE),
+        mmapReadAhead ? MappedMemory.MADV_NORMAL : MappedMemory.MADV_RANDOM,
+        this.service.getAdviceStats());
+    
+    NativeUnixDirectoryConfig config = new NativeUnixDirectoryConfig()
+      .setMappedMemory(mmapEnabled)
+      .setMemoryReadAhead(mmapReadAhead)
+      .setDirectReadEnabled(directReadEnabled)
+      .setDirectWriteEnabled(directWriteEnabled)
+      .setDirectReadBufferSize(directReadBufferSize)
+      .setDirectWriteBufferSize(directWriteBufferSize)
+      .setForceIO(ForceIO.None)
+      .setMinBytesDirect(minBytesDirect)
+      .setMaxBytesPreload(maxBytesPreload)
+      .setPreLoadExtensions(preLoadExtensions)
+      .setHugePages(mmapHugePages)
+      .setPopulate(mmapPopulate)
+      .setLock(this.service.getLocker(), lockExtensions)
+      .setAdvicePolicy(advicePolicy)
+      .setPreloader(mmapPopulate == Populate.Async ? this.service.getPreloader().forShard(shardName) : null)
+      .setShardName(shardName)
+      .setCacheDrop(mmapCacheDrop)
+      .setHeatmapSampleRate(mmapHeatmapSampleRate)
+      .setReadAheadWindow(mmapReadAheadWindow)
+      // The read-ahead and the write-behind need an asynchronous engine
+      .setIOEngine(this.service.getDirectIOEngine(directEngine,
+          (directReadEnabled && directReadAhead > 0) || (directWriteEnabled && directWriteBehind > 0)))
+      .setDirectReadAhead(directReadAhead)
+      .setBufferAllocator(this.service.getBufferPool().forIndex(indexSettings.getIndex().getName()))
+      .setBreaker(this.service.getBreaker())
+      .setDirectWriteBehind(directWriteBehind)
+      .setMergePreallocate(mergePreallocate)
+      .setChecksumVerifier(this.service.getVerifier())
+      .setSyncer(this.service.getSyncer(), syncfsThreshold);
+    return new NativeUnixDirectory(location, lockFactory, config);
+  }
+}
@@ -1,90 +1,212 @@
-/*
- * Copyright 2018 Michaël Coquard
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package fr.micoq.elasticsearch;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.function.Function;
-
-import org.elasticsearch.common.settings.Setting;
-import org.elasticsearch.common.settings.Setting.Property;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.unit.ByteSizeUnit;
-import org.elasticsearch.common.unit.ByteSizeValue;
-import org.elasticsearch.index.IndexSettings;
-import org.elasticsearch.index.store.IndexStore;
-import org.elasticsearch.plugins.Plugin;
-import org.elasticsearch.plugins.IndexStorePlugin;
-
-
-public class NativeUnixStorePlugin extends Plugin implements IndexStorePlugin {
-
-  public static final String STORE_TYPE = "nativeunixfs";
-  
-  public static final Setting<ByteSizeValue>SETTING_DIRECT_READ_BUFFER_SIZE =
-      Setting.memorySizeSetting("index.store.direct.read.buffer_size",
-      new ByteSizeValue(128,ByteSizeUnit.KB), Property.IndexScope, Property.Dynamic);
-  public static final Setting<ByteSizeValue> SETTING_DIRECT_WRITE_BUFFER_SIZE =
-      Setting.memorySizeSetting("index.store.direct.write.buffer_size",
-      new ByteSizeValue(128,ByteSizeUnit.KB), Property.IndexScope, Property.Dynamic);
-  public static final Setting<Boolean> SETTING_DIRECT_READ_ENABLED =
-      Setting.boolSetting("index.store.direct.read.enabled", false, Property.IndexScope, Property.Dynamic);
-  public static final Setting<Boolean> SETTING_DIRECT_WRITE_ENABLED =
-      Setting.boolSetting("index.store.direct.write.enabled", false, Property.IndexScope, Property.Dynamic);
-  public static final Setting<ByteSizeValue>SETTING_DIRECT_MIN_MERGE_SIZE =
-      Setting.memorySizeSetting("index.store.direct.min_merge_size",
-      new ByteSizeValue(10,ByteSizeUnit.MB), Property.IndexScope, Property.Dynamic);
-  public static final Setting<Boolean> SETTING_MMAP_ENABLED =
-      Setting.boolSetting("index.store.mmap.enabled", true, Property.IndexScope, Property.Dynamic);
-  public static final Setting<Boolean> SETTING_MMAP_READ_AHEAD =
-      Setting.boolSetting("index.store.mmap.read_ahead", false, Property.IndexScope, Property.Dynamic);
-  public static final Setting<ByteSizeValue> SETTING_MMAP_MAX_PRELOAD_SIZE =
-      Setting.byteSizeSetting("index.store.mmap.max_preload_size",
-      new ByteSizeValue(0,ByteSizeUnit.BYTES), Property.IndexScope, Property.Dynamic);
-  
-  public NativeUnixStorePlugin(Settings settings) {
-  }
-  
-  /*@Override
-  public void onIndexModule(IndexModule indexModule) {
-    indexModule.addIndexStore(STORE_TYPE, (settings)-> new NativeUnixIndexStore(settings));
-  }*/
-
-  @Override
-  public Map<String, Function<IndexSettings, IndexStore>> getIndexStoreFactories() {
-    final Map<String, Function<IndexSettings, IndexStore>> indexStoreFactories = new HashMap<>(1);
-    indexStoreFactories.put(STORE_TYPE, NativeUnixIndexStore::new);
-    return Collections.unmodifiableMap(indexStoreFactories);
-  }
-  
-  @Override
-  public List<Setting<?>> getSettings()
-  {
-    List<Setting<?>> sets = new ArrayList<Setting<?>>();
-    sets.add(SETTING_DIRECT_READ_BUFFER_SIZE);
-    sets.add(SETTING_DIRECT_WRITE_BUFFER_SIZE);
-    sets.add(SETTING_DIRECT_READ_ENABLED);
-    sets.add(SETTING_DIRECT_WRITE_ENABLED);
-    sets.add(SETTING_DIRECT_MIN_MERGE_SIZE);
-    sets.add(SETTING_MMAP_READ_AHEAD);
-    sets.add(SETTING_MMAP_ENABLED);
-    sets.add(SETTING_MMAP_MAX_PRELOAD_SIZE);
-    return sets;
-  }
-}
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.store.IndexStore;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.IndexStorePlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+
+import fr.micoq.elasticsearch.NativeUnixDirectory.CacheDrop;
+import fr.micoq.elasticsearch.NativeUnixDirectory.IOEngine;
+import fr.micoq.elasticsearch.NativeUnixDirectory.Populate;
+
+
+public class NativeUnixStorePlugin extends Plugin implements IndexStorePlugin, ActionPlugin {
+
+  public static final String STORE_TYPE = "nativeunixfs";
+  
+  public static final Setting<ByteSizeValue>SETTING_DIRECT_READ_BUFFER_SIZE =
+      Setting.memorySizeSetting("index.store.direct.read.buffer_size",
+      new ByteSizeValue(128,ByteSizeUnit.KB), Property.IndexScope, Property.Dynamic);
+  public static final Setting<ByteSizeValue> SETTING_DIRECT_WRITE_BUFFER_SIZE =
+      Setting.memorySizeSetting("index.store.direct.write.buffer_size",
+      new ByteSizeValue(128,ByteSizeUnit.KB), Property.IndexScope, Property.Dynamic);
+  public static final Setting<Boolean> SETTING_DIRECT_READ_ENABLED =
+      Setting.boolSetting("index.store.direct.read.enabled", false, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Boolean> SETTING_DIRECT_WRITE_ENABLED =
+      Setting.boolSetting("index.store.direct.write.enabled", false, Property.IndexScope, Property.Dynamic);
+  public static final Setting<ByteSizeValue>SETTING_DIRECT_MIN_MERGE_SIZE =
+      Setting.memorySizeSetting("index.store.direct.min_merge_size",
+      new ByteSizeValue(10,ByteSizeUnit.MB), Property.IndexScope, Property.Dynamic);
+  public static final Setting<Integer> SETTING_DIRECT_READ_AHEAD =
+      Setting.intSetting("index.store.direct.read.read_ahead", 0, 0, 64, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Integer> SETTING_DIRECT_WRITE_BEHIND =
+      Setting.intSetting("index.store.direct.write.write_behind", 0, 0, 64, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Boolean> SETTING_MERGE_PREALLOCATE =
+      Setting.boolSetting("index.store.merge.preallocate", true, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Integer> SETTING_SYNC_SYNCFS_THRESHOLD =
+      Setting.intSetting("index.store.sync.syncfs_threshold", 0, 0, Property.IndexScope, Property.Dynamic);
+  public static final Setting<IOEngine> SETTING_DIRECT_ENGINE =
+      new Setting<>("index.store.direct.engine", "blocking", IOEngine::fromString, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Boolean> SETTING_MMAP_ENABLED =
+      Setting.boolSetting("index.store.mmap.enabled", true, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Boolean> SETTING_MMAP_READ_AHEAD =
+      Setting.boolSetting("index.store.mmap.read_ahead", false, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Boolean> SETTING_MMAP_HUGE_PAGES =
+      Setting.boolSetting("index.store.mmap.huge_pages", false, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Populate> SETTING_MMAP_POPULATE =
+      new Setting<>("index.store.mmap.populate", "madvise", Populate::fromString, Property.IndexScope, Property.Dynamic);
+  public static final Setting<ByteSizeValue> SETTING_MMAP_MAX_PRELOAD_SIZE =
+      Setting.byteSizeSetting("index.store.mmap.max_preload_size",
+      new ByteSizeValue(0,ByteSizeUnit.BYTES), Property.IndexScope, Property.Dynamic);
+  public static final Setting<List<String>> SETTING_MMAP_LOCK =
+      Setting.listSetting("index.store.mmap.lock", Collections.emptyList(), Function.identity(),
+      Property.IndexScope, Property.Dynamic);
+  public static final Setting<CacheDrop> SETTING_MMAP_CACHE_DROP =
+      new Setting<>("index.store.mmap.cache_drop", "deleted", CacheDrop::fromString, Property.IndexScope, Property.Dynamic);
+  public static final Setting<ByteSizeValue> SETTING_MMAP_READ_AHEAD_WINDOW =
+      Setting.byteSizeSetting("index.store.mmap.read_ahead_window",
+      new ByteSizeValue(NativeUnixDirectory.DEFAULT_READ_AHEAD_WINDOW,ByteSizeUnit.BYTES), Property.IndexScope, Property.Dynamic);
+  public static final Setting<Integer> SETTING_MMAP_HEATMAP_SAMPLE_RATE =
+      Setting.intSetting("index.store.mmap.heatmap.sample_rate", 0, 0, Property.IndexScope, Property.Dynamic);
+  public static final Setting<Settings> SETTING_MMAP_ADVICE =
+      Setting.groupSetting("index.store.mmap.advice.", MappedMemoryAdvicePolicy::validate,
+      Property.IndexScope, Property.Dynamic);
+  
+  // Node settings
+  public static final Setting<ByteSizeValue> SETTING_MMAP_LOCK_BUDGET =
+      Setting.byteSizeSetting("native_unix_store.mmap.lock_budget",
+      new ByteSizeValue(0,ByteSizeUnit.BYTES), Property.NodeScope);
+  public static final Setting<Integer> SETTING_PRELOAD_THREADS =
+      Setting.intSetting("native_unix_store.preload.threads", 2, 1, Property.NodeScope);
+  public static final Setting<ByteSizeValue> SETTING_PRELOAD_MAX_BYTES_PER_SEC =
+      Setting.byteSizeSetting("native_unix_store.preload.max_bytes_per_sec",
+      new ByteSizeValue(0,ByteSizeUnit.BYTES), Property.NodeScope);
+  public static final Setting<ByteSizeValue> SETTING_PRELOAD_MIN_FREE_MEMORY =
+      Setting.byteSizeSetting("native_unix_store.preload.min_free_memory",
+      new ByteSizeValue(0,ByteSizeUnit.BYTES), Property.NodeScope);
+  public static final Setting<TimeValue> SETTING_HEATMAP_INTERVAL =
+      Setting.timeSetting("native_unix_store.heatmap.interval", TimeValue.timeValueSeconds(30), Property.NodeScope);
+  public static final Setting<TimeValue> SETTING_RESIDENCY_INTERVAL =
+      Setting.timeSetting("native_unix_store.residency.interval", TimeValue.timeValueSeconds(10), Property.NodeScope);
+  public static final Setting<Integer> SETTING_HEATMAP_HOT_THRESHOLD =
+      Setting.intSetting("native_unix_store.heatmap.hot_threshold", 4, 1, Property.NodeScope);
+  public static final Setting<Integer> SETTING_IO_URING_ENTRIES =
+      Setting.intSetting("native_unix_store.io_uring.entries", 256, 2, 32768, Property.NodeScope);
+  public static final Setting<Integer> SETTING_DIRECT_THREADS =
+      Setting.intSetting("native_unix_store.direct.threads", 4, 1, Property.NodeScope);
+  public static final Setting<Integer> SETTING_SYNC_THREADS =
+      Setting.intSetting("native_unix_store.sync.threads", 4, 1, Property.NodeScope);
+  public static final Setting<Integer> SETTING_CHECKSUM_THREADS =
+      Setting.intSetting("native_unix_store.checksum.threads", 2, 1, Property.NodeScope);
+  public static final Setting<ByteSizeValue> SETTING_DIRECT_BUFFERS_BUDGET =
+      Setting.byteSizeSetting("native_unix_store.direct.buffers.budget",
+      new ByteSizeValue(512,ByteSizeUnit.MB), Property.NodeScope);
+  public static final Setting<Boolean> SETTING_DIRECT_BUFFERS_HUGE_PAGES =
+      Setting.boolSetting("native_unix_store.direct.buffers.huge_pages", false, Property.NodeScope);
+  public static final Setting<ByteSizeValue> SETTING_DIRECT_BREAKER_LIMIT =
+      Setting.byteSizeSetting("native_unix_store.direct.breaker.limit",
+      (s) -> new ByteSizeValue(SETTING_DIRECT_BUFFERS_BUDGET.get(s).getBytes() / 10 * 9).getStringRep(),
+      Property.NodeScope);
+  public static final Setting<TimeValue> SETTING_DIRECT_BUFFERS_MAX_WAIT =
+      Setting.timeSetting("native_unix_store.direct.buffers.max_wait", TimeValue.timeValueSeconds(30), Property.NodeScope);
+  
+  private final NativeUnixStoreService service;
+  
+  public NativeUnixStorePlugin(Settings settings) {
+    this.service = new NativeUnixStoreService(settings);
+  }
+  
+  /*@Override
+  public void onIndexModule(IndexModule indexModule) {
+    indexModule.addIndexStore(STORE_TYPE, (settings)-> new NativeUnixIndexStore(settings));
+  }*/
+
+  @Override
+  public Map<String, Function<IndexSettings, IndexStore>> getIndexStoreFactories() {
+    final Map<String, Function<IndexSettings, IndexStore>> indexStoreFactories = new HashMap<>(1);
+    indexStoreFactories.put(STORE_TYPE, (indexSettings) -> new NativeUnixIndexStore(indexSettings, this.service));
+    return Collections.unmodifiableMap(indexStoreFactories);
+  }
+  
+  @Override
+  public List<Setting<?>> getSettings()
+  {
+    List<Setting<?>> sets = new ArrayList<Setting<?>>();
+    sets.add(SETTING_DIRECT_READ_BUFFER_SIZE);
+    sets.add(SETTING_DIRECT_WRITE_BUFFER_SIZE);
+    sets.add(SETTING_DIRECT_READ_ENABLED);
+    sets.add(SETTING_DIRECT_WRITE_ENABLED);
+    sets.add(SETTING_DIRECT_MIN_MERGE_SIZE);
+    sets.add(SETTING_DIRECT_ENGINE);
+    sets.add(SETTING_DIRECT_READ_AHEAD);
+    sets.add(SETTING_DIRECT_WRITE_BEHIND);
+    sets.add(SETTING_MERGE_PREALLOCATE);
+    sets.add(SETTING_SYNC_SYNCFS_THRESHOLD);
+    sets.add(SETTING_MMAP_READ_AHEAD);
+    sets.add(SETTING_MMAP_ENABLED);
+    sets.add(SETTING_MMAP_HUGE_PAGES);
+    sets.add(SETTING_MMAP_POPULATE);
+    sets.add(SETTING_MMAP_MAX_PRELOAD_SIZE);
+    sets.add(SETTING_MMAP_LOCK);
+    sets.add(SETTING_MMAP_ADVICE);
+    sets.add(SETTING_MMAP_CACHE_DROP);
+    sets.add(SETTING_MMAP_HEATMAP_SAMPLE_RATE);
+    sets.add(SETTING_MMAP_READ_AHEAD_WINDOW);
+    sets.add(SETTING_MMAP_LOCK_BUDGET);
+    sets.add(SETTING_PRELOAD_THREADS);
+    sets.add(SETTING_PRELOAD_MAX_BYTES_PER_SEC);
+    sets.add(SETTING_PRELOAD_MIN_FREE_MEMORY);
+    sets.add(SETTING_HEATMAP_INTERVAL);
+    sets.add(SETTING_HEATMAP_HOT_THRESHOLD);
+    sets.add(SETTING_RESIDENCY_INTERVAL);
+    sets.add(SETTING_IO_URING_ENTRIES);
+    sets.add(SETTING_DIRECT_THREADS);
+    sets.add(SETTING_DIRECT_BUFFERS_BUDGET);
+    sets.add(SETTING_DIRECT_BUFFERS_HUGE_PAGES);
+    sets.add(SETTING_DIRECT_BUFFERS_MAX_WAIT);
+    sets.add(SETTING_DIRECT_BREAKER_LIMIT);
+    sets.add(SETTING_SYNC_THREADS);
+    sets.add(SETTING_CHECKSUM_THREADS);
+    return sets;
+  }
+  
+  @Override
+  public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+      ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+      IndexNameExpressionResolver indexNameExpressionResolver, Supplier<DiscoveryNodes> nodesInCluster) {
+    return Collections.singletonList(new RestNativeUnixStoreStatsAction(settings, restController, this.service));
+  }
+  
+  @Override
+  public void close() throws IOException {
+    this.service.close();
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import fr.micoq.elasticsearch.NativeUnixDirectory.IOEngine;
+import fr.micoq.unsafe.IoUring;
+
+/*
+ * The node-level components shared by all the indices of the node.
+ */
+public class NativeUnixStoreService implements ToXContentFragment, Closeable {
+
+  private final MappedMemoryLocker locker;
+  private final MappedMemoryAdvicePolicy.Stats adviceStats;
+  private final MappedMemoryPreloader preloader;
+  private final MappedMemoryResidency residency;
+  private final MappedMemoryHeatmap heatmap;
+  private final int ioUringEntries;
+  private IoUringEngine ioUring; // Created by the first index using it
+  private String ioUringError; // Why the ring cannot be created
+  private final int threadCount;
+  private ThreadPoolEngine threads; // Created by the first index using it
+  private final DirectBufferPool bufferPool;
+  private final DirectMemoryBreaker breaker;
+  private final FileSyncer syncer;
+  private final ChecksumVerifier verifier;
+  private boolean closed;
+
+  public NativeUnixStoreService(Settings settings) {
+    this.locker = new MappedMemoryLocker(
+        NativeUnixStorePlugin.SETTING_MMAP_LOCK_BUDGET.get(settings).getBytes());
+    this.adviceStats = new MappedMemoryAdvicePolicy.Stats();
+    this.preloader = new MappedMemoryPreloader(
+        NativeUnixStorePlugin.SETTING_PRELOAD_THREADS.get(settings),
+        NativeUnixStorePlugin.SETTING_PRELOAD_MAX_BYTES_PER_SEC.get(settings).getBytes(),
+        NativeUnixStorePlugin.SETTING_PRELOAD_MIN_FREE_MEMORY.get(settings).getBytes());
+    this.residency = new MappedMemoryResidency(MappedMemoryRegistry.getInstance(),
+        NativeUnixStorePlugin.SETTING_RESIDENCY_INTERVAL.get(settings).millis());
+    this.heatmap = new MappedMemoryHeatmap(MappedMemoryRegistry.getInstance(),
+        NativeUnixStorePlugin.SETTING_HEATMAP_INTERVAL.get(settings).millis(),
+        NativeUnixStorePlugin.SETTING_HEATMAP_HOT_THRESHOLD.get(settings));
+    this.ioUringEntries = NativeUnixStorePlugin.SETTING_IO_URING_ENTRIES.get(settings);
+    this.ioUring = null;
+    this.ioUringError = null;
+    this.threadCount = NativeUnixStorePlugin.SETTING_DIRECT_THREADS.get(settings);
+    this.threads = null;
+    this.bufferPool = new DirectBufferPool(
+        NativeUnixStorePlugin.SETTING_DIRECT_BUFFERS_BUDGET.get(settings).getBytes(),
+        NativeUnixStorePlugin.SETTING_DIRECT_BUFFERS_HUGE_PAGES.get(settings),
+        NativeUnixStorePlugin.SETTING_DIRECT_BUFFERS_MAX_WAIT.get(settings).millis());
+    this.breaker = new DirectMemoryBreaker(
+        NativeUnixStorePlugin.SETTING_DIRECT_BREAKER_LIMIT.get(settings).getBytes(), this.bufferPool);
+    this.syncer = new FileSyncer(NativeUnixStorePlugin.SETTING_SYNC_THREADS.get(settings));
+    this.verifier = new ChecksumVerifier(NativeUnixStorePlugin.SETTING_CHECKSUM_THREADS.get(settings),
+        ChecksumVerifier.DEFAULT_PART_SIZE);
+    this.closed = false;
+  }
+
+  public MappedMemoryLocker getLocker() {
+    return this.locker;
+  }
+
+  public MappedMemoryAdvicePolicy.Stats getAdviceStats() {
+    return this.adviceStats;
+  }
+
+  public MappedMemoryPreloader getPreloader() {
+    return this.preloader;
+  }
+
+  public DirectBufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  public DirectMemoryBreaker getBreaker() {
+    return this.breaker;
+  }
+
+  public FileSyncer getSyncer() {
+    return this.syncer;
+  }
+
+  public ChecksumVerifier getVerifier() {
+    return this.verifier;
+  }
+
+  /*
+   * Falls back to the blocking engine when io_uring is not available. An asynchronous
+   * engine (needed by the read-ahead) replaces the blocking engine with the threads.
+   */
+  public synchronized DirectIOEngine getDirectIOEngine(IOEngine engine, boolean async) {
+    if(this.closed)
+      return DirectIOEngine.BLOCKING;
+    if(engine == IOEngine.IoUring && IoUring.isSupported() && this.ioUringError == null) {
+      if(this.ioUring == null) {
+        try {
+          this.ioUring = new IoUringEngine(this.ioUringEntries);
+        } catch (IOException e) {
+          // Usually RLIMIT_MEMLOCK is too low for the ring on old kernels, reported in the stats
+          this.ioUringError = e.getMessage();
+        }
+      }
+      if(this.ioUring != null)
+        return this.ioUring;
+    }
+    if(engine == IOEngine.Threads || async) {
+      if(this.threads == null)
+        this.threads = new ThreadPoolEngine(this.threadCount);
+      return this.threads;
+    }
+    return DirectIOEngine.BLOCKING;
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    this.locker.toXContent(builder, params);
+    this.adviceStats.toXContent(builder, params);
+    this.preloader.toXContent(builder, params);
+    this.residency.toXContent(builder, params);
+    this.heatmap.toXContent(builder, params);
+    builder.startObject("io_uring");
+    builder.field("supported", IoUring.isSupported());
+    synchronized(this) {
+      if(this.ioUring != null)
+        this.ioUring.toXContent(builder, params);
+      else if(this.ioUringError != null)
+        builder.field("error", this.ioUringError);
+    }
+    builder.endObject();
+    synchronized(this) {
+      if(this.threads != null) {
+        builder.startObject("direct_threads");
+        this.threads.toXContent(builder, params);
+        builder.endObject();
+      }
+    }
+    this.bufferPool.toXContent(builder, params);
+    this.breaker.toXContent(builder, params);
+    this.syncer.toXContent(builder, params);
+    this.verifier.toXContent(builder, params);
+    return builder;
+  }
+
+  @Override
+  public void close() {
+    this.preloader.close();
+    this.residency.close();
+    this.heatmap.close();
+    synchronized(this) {
+      this.closed = true;
+      if(this.ioUring != null)
+        this.ioUring.close();
+      if(this.threads != null)
+        this.threads.close();
+    }
+    this.bufferPool.close();
+    this.syncer.close();
+    this.verifier.close();
+  }
+}
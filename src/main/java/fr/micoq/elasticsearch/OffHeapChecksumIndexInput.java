@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.store.BufferedChecksum;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.IndexInput;
+
+/*
+ * Checksum input (Directory.openChecksumInput()) on a mapped or direct input. The bytes read
+ * go through a CRC32 like BufferedChecksumIndexInput, but a large forward seek (a reader
+ * skipping to the footer, see CodecUtil.checkFooter()) computes the CRC32 of the skipped
+ * bytes off-heap (see ChecksumInput) instead of copying them to the heap by 1KB.
+ * The checksums of the parts are combined like crc32_combine() of zlib.
+ */
+final class OffHeapChecksumIndexInput extends ChecksumIndexInput {
+
+  // Smaller skips are read like BufferedChecksumIndexInput
+  static final long MIN_OFF_HEAP_SKIP = 64 * 1024;
+
+  private final IndexInput main;
+  private final ChecksumVerifier verifier; // null to compute the skipped bytes on the calling thread
+  private final BufferedChecksum digest; // Bytes read since the last skip
+  private long digestStart;
+  private long checksum; // Bytes before digestStart
+
+  OffHeapChecksumIndexInput(IndexInput main, ChecksumVerifier verifier) {
+    super("OffHeapChecksumIndexInput(" + main + ")");
+    assert main instanceof ChecksumInput;
+    this.main = main;
+    this.verifier = verifier;
+    this.digest = new BufferedChecksum(new CRC32());
+    this.digestStart = main.getFilePointer();
+    this.checksum = 0L;
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    final byte b = this.main.readByte();
+    this.digest.update(b);
+    return b;
+  }
+
+  @Override
+  public void readBytes(byte[] b, int offset, int len) throws IOException {
+    this.main.readBytes(b, offset, len);
+    this.digest.update(b, offset, len);
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    final long position = getFilePointer();
+    final long skip = pos - position;
+    if(skip < MIN_OFF_HEAP_SKIP || pos > length()) {
+      // Also fails like the other checksum inputs on a backward seek or past EOF
+      super.seek(pos);
+      return;
+    }
+    ChecksumInput input = (ChecksumInput) this.main;
+    long skipped = this.verifier != null ? this.verifier.checksum(input, position, skip) : input.checksum(position, skip);
+    this.checksum = ChecksumVerifier.combine(getChecksum(), skipped, skip);
+    this.digest.reset();
+    this.digestStart = pos;
+    this.main.seek(pos);
+  }
+
+  @Override
+  public long getChecksum() {
+    return ChecksumVerifier.combine(this.checksum, this.digest.getValue(), getFilePointer() - this.digestStart);
+  }
+
+  @Override
+  public long getFilePointer() {
+    return this.main.getFilePointer();
+  }
+
+  @Override
+  public long length() {
+    return this.main.length();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.main.close();
+  }
+
+  @Override
+  public IndexInput clone() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.lucene.store.IndexOutput;
+
+/*
+ * Output of the NIO delegate (merges without direct writes) with preallocated blocks.
+ * The blocks are allocated through a second descriptor of the file.
+ */
+class PreallocatedIndexOutput extends IndexOutput {
+  private final IndexOutput delegate;
+  private final RandomAccessFile file;
+  private final Preallocator preallocator;
+
+  PreallocatedIndexOutput(IndexOutput delegate, Path path, long expectedLength) throws IOException {
+    super(delegate.toString(), delegate.getName());
+    this.delegate = delegate;
+    try {
+      this.file = AccessController.doPrivileged((PrivilegedExceptionAction<RandomAccessFile>) () -> {
+        return new RandomAccessFile(path.toFile(), "rw");
+      });
+    } catch (PrivilegedActionException e) {
+      throw (IOException) e.getException();
+    }
+    this.preallocator = new Preallocator(this.file.getFD(), expectedLength);
+  }
+
+  @Override
+  public void writeByte(byte b) throws IOException {
+    this.preallocator.ensure(this.delegate.getFilePointer() + 1);
+    this.delegate.writeByte(b);
+  }
+
+  @Override
+  public void writeBytes(byte[] b, int offset, int length) throws IOException {
+    this.preallocator.ensure(this.delegate.getFilePointer() + length);
+    this.delegate.writeBytes(b, offset, length);
+  }
+
+  @Override
+  public long getFilePointer() {
+    return this.delegate.getFilePointer();
+  }
+
+  @Override
+  public long getChecksum() throws IOException {
+    return this.delegate.getChecksum();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      this.delegate.close();
+    } finally {
+      try {
+        this.preallocator.release(this.file.length());
+      } finally {
+        this.file.close();
+      }
+    }
+  }
+}
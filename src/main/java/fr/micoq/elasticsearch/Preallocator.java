@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+import fr.micoq.unsafe.DirectIO;
+
+/*
+ * Preallocates the blocks of a file being written (with fallocate()) ahead of the writes,
+ * to get large extents instead of growing the file one buffer at a time.
+ *
+ * The expected length of a merged file is unknown (only the size of the whole merge is),
+ * so the preallocated part doubles with the file, between MIN_CHUNK and MAX_CHUNK, and
+ * never goes beyond the size of the merge. The size of the file doesn't change: the
+ * blocks after the real end are released on close (a truncation to the same size
+ * doesn't release them on every filesystem).
+ */
+final class Preallocator {
+
+  static final long MIN_CHUNK = 1024L * 1024L;
+  static final long MAX_CHUNK = 64L * 1024L * 1024L;
+
+  private final FileDescriptor fd;
+  private final long limit;
+  private long end; // End of the preallocated part
+  private boolean enabled;
+
+  Preallocator(FileDescriptor fd, long limit) {
+    this.fd = fd;
+    this.limit = limit;
+    this.end = 0L;
+    this.enabled = limit > 0;
+  }
+
+  // Called before writing up to the position (excluded)
+  void ensure(long position) {
+    if(position <= this.end || !this.enabled)
+      return;
+    long chunk = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, this.end));
+    long newEnd = Math.min(this.limit, Math.max(position, this.end + chunk));
+    if(newEnd <= this.end) {
+      this.enabled = false; // The file is bigger than expected
+      return;
+    }
+    try {
+      if(DirectIO.preallocate(this.fd, this.end, newEnd - this.end))
+        this.end = newEnd;
+      else
+        this.enabled = false; // Not supported or full
+    } catch (IOException e) {
+      // Only a hint, the writes will report the real errors
+      this.enabled = false;
+    }
+  }
+
+  // Called once the file has its final length
+  void release(long length) {
+    if(this.end <= length)
+      return;
+    try {
+      DirectIO.deallocate(this.fd, length, this.end - length);
+    } catch (IOException e) {
+      // The blocks are released with the file
+    }
+    this.end = length;
+    this.enabled = false;
+  }
+
+  long getPreallocated() {
+    return this.end;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/*
+ * Stats of the store on the node receiving the request:
+ * GET /_native_unix_store/stats?level=node|indices|shards|files
+ */
+public class RestNativeUnixStoreStatsAction extends BaseRestHandler {
+
+  private final NativeUnixStoreService service;
+
+  public RestNativeUnixStoreStatsAction(Settings settings, RestController controller, NativeUnixStoreService service) {
+    super(settings);
+    this.service = service;
+    controller.registerHandler(RestRequest.Method.GET, "/_native_unix_store/stats", this);
+  }
+
+  @Override
+  public String getName() {
+    return "native_unix_store_stats_action";
+  }
+
+  @Override
+  protected Set<String> responseParams() {
+    return Collections.singleton("level");
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+    return channel -> {
+      XContentBuilder builder = channel.newBuilder();
+      builder.startObject();
+      this.service.toXContent(builder, request);
+      builder.endObject();
+      channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    };
+  }
+}
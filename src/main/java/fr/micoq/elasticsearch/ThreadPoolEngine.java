@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/*
+ * Node-wide pool of threads doing the blocking reads and writes in the background,
+ * for the kernels without io_uring. The caller only waits when it needs the data
+ * (or the buffer) back.
+ */
+public final class ThreadPoolEngine implements DirectIOEngine, ToXContentFragment, Closeable {
+
+  // Number of requests a single file keeps in flight (write-behind of the outputs)
+  public static final int DEPTH = 4;
+
+  private final ThreadPoolExecutor executor;
+
+  public ThreadPoolEngine(int threads) {
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+          Thread thread = new Thread(runnable, "direct-io-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public Handle open(FileChannel channel, FileDescriptor fd) {
+    return new Handle() {
+      @Override
+      public Pending read(ByteBuffer buffer, long position) throws IOException {
+        final ByteBuffer target = buffer.duplicate();
+        return submit(() -> channel.read(target, position));
+      }
+
+      @Override
+      public Pending write(ByteBuffer buffer, long position) throws IOException {
+        final ByteBuffer source = buffer.duplicate();
+        return submit(() -> DirectIOEngine.writeFully(channel, source, position));
+      }
+    };
+  }
+
+  @Override
+  public int depth() {
+    return DEPTH;
+  }
+
+  @FunctionalInterface
+  private interface Request {
+    int run() throws IOException;
+  }
+
+  private Pending submit(Request request) throws IOException {
+    final Future<Integer> future;
+    try {
+      future = this.executor.submit(request::run);
+    } catch (RejectedExecutionException e) {
+      throw new IOException("The direct I/O threads are stopped", e);
+    }
+    return () -> {
+      // The thread may still use the buffer, never give up before the end of the request
+      boolean interrupted = false;
+      try {
+        while(true) {
+          try {
+            return future.get();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+              throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+          }
+        }
+      } finally {
+        if(interrupted)
+          Thread.currentThread().interrupt();
+      }
+    };
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.field("threads", this.executor.getMaximumPoolSize());
+    builder.field("active", this.executor.getActiveCount());
+    builder.field("queued", this.executor.getQueue().size());
+    builder.field("completed", this.executor.getCompletedTaskCount());
+    return builder;
+  }
+
+  @Override
+  public void close() {
+    // The queued requests are still executed, their callers are waiting for them
+    this.executor.shutdown();
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.test;
+
+import com.carrotsearch.randomizedtesting.ThreadFilter;
+
+/*
+ * The node-wide background threads of the plugin live as long as the JVM,
+ * they must not be reported as leaked by the test suites.
+ */
+public class NativeUnixThreadFilter implements ThreadFilter {
+
+  @Override
+  public boolean reject(Thread t) {
+    return t.getName().startsWith("mapped-memory-") || t.getName().startsWith("direct-io-")
+        || t.getName().startsWith("file-sync-") || t.getName().startsWith("checksum-");
+  }
+}
@@ -15,19 +15,58 @@
  */
 package fr.micoq.elasticsearch.test.unit;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.TestUtil;
 import org.elasticsearch.index.store.EsBaseDirectoryTestCase;
 import org.junit.runner.RunWith;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
 
+import fr.micoq.elasticsearch.ChecksumVerifier;
+import fr.micoq.elasticsearch.DirectBufferAllocator;
+import fr.micoq.elasticsearch.DirectBufferPool;
+import fr.micoq.elasticsearch.DirectIOEngine;
+import fr.micoq.elasticsearch.DirectMemoryBreaker;
+import fr.micoq.elasticsearch.DirectOutputStream;
+import fr.micoq.elasticsearch.FileSyncer;
 import fr.micoq.elasticsearch.NativeUnixDirectory;
+import fr.micoq.elasticsearch.NativeUnixDirectoryConfig;
 import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.elasticsearch.ThreadPoolEngine;
+import fr.micoq.elasticsearch.test.NativeUnixThreadFilter;
+import fr.micoq.unsafe.DirectBufferTools;
 
 /*
  * Tests the directory by using exclusively direct IO
@@ -35,6 +74,7 @@ import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
  */
 
 @RunWith(RandomizedRunner.class)
+@ThreadLeakFilters(filters = {NativeUnixThreadFilter.class})
 public class DirectIOTests extends EsBaseDirectoryTestCase {
   
   @Override
@@ -53,4 +93,529 @@ public class DirectIOTests extends EsBaseDirectoryTestCase {
         NativeUnixDirectory.DEFAULT_MAX_BYTES_PRELOAD,
         new HashSet<String>());
   }
+  
+  public void testReadAhead() throws IOException {
+    ThreadPoolEngine engine = new ThreadPoolEngine(2);
+    DirectBufferPool pool = new DirectBufferPool(64 * 1024 * 1024, false, 30000L);
+    try(Directory dir = new NativeUnixDirectory(
+        createTempDir(),
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setDirectReadBufferSize(4096)
+          .setDirectWriteBufferSize(4096)
+          .setForceIO(ForceIO.Direct)
+          .setIOEngine(engine)
+          .setDirectReadAhead(3)
+          .setBufferAllocator(pool.forIndex("test")))) {
+      int length = 256 * 1024 + 7;
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      try(IndexOutput out = dir.createOutput("ahead", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+      ByteArrayDataInput reference = new ByteArrayDataInput(bytes);
+      try(IndexInput in = dir.openInput("ahead", IOContext.DEFAULT)) {
+        IndexInput clone = in.clone();
+        // Sequential reads with a few skips (within and beyond the read-ahead) and random seeks
+        while(length - reference.getPosition() > 8) {
+          switch(TestUtil.nextInt(random(), 0, 4)) {
+            case 0:
+              assertEquals(reference.readByte(), in.readByte());
+              break;
+            case 1:
+              assertEquals(reference.readLong(), in.readLong());
+              break;
+            case 2:
+              int len = Math.min(TestUtil.nextInt(random(), 1, 10000), length - reference.getPosition());
+              byte[] expected = new byte[len];
+              byte[] actual = new byte[len];
+              reference.readBytes(expected, 0, len);
+              in.readBytes(actual, 0, len);
+              assertArrayEquals(expected, actual);
+              break;
+            case 3:
+              int skip = Math.min(TestUtil.nextInt(random(), 0, 32 * 1024), length - reference.getPosition());
+              reference.setPosition(reference.getPosition() + skip);
+              in.seek(in.getFilePointer() + skip);
+              break;
+            default:
+              if(rarely()) {
+                int pos = TestUtil.nextInt(random(), 0, length - 8);
+                reference.setPosition(pos);
+                in.seek(pos);
+              }
+              break;
+          }
+          assertEquals(reference.getPosition(), in.getFilePointer());
+        }
+        // A clone has its own read-ahead
+        byte[] all = new byte[length];
+        clone.readBytes(all, 0, length);
+        assertArrayEquals(bytes, all);
+      }
+      assertEquals(0L, pool.getAllocatedBytes());
+    } finally {
+      engine.close();
+      pool.close();
+    }
+  }
+  
+  public void testSlices() throws IOException {
+    try(Directory dir = getDirectory(createTempDir())) {
+      int length = 300 * 1024 + 13;
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      try(IndexOutput out = dir.createOutput("slices", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+      try(IndexInput in = dir.openInput("slices", IOContext.DEFAULT)) {
+        for(int i = 0; i < 20; ++i) {
+          // Unaligned slices, sometimes of a slice
+          int offset = TestUtil.nextInt(random(), 0, length - 1);
+          int len = TestUtil.nextInt(random(), 0, length - offset);
+          IndexInput parent = in.slice("slice", offset, len);
+          assertTrue(parent.toString().startsWith("DirectIndexInput"));
+          int sub = len > 0 && random().nextBoolean() ? TestUtil.nextInt(random(), 0, len - 1) : 0;
+          IndexInput slice = parent.slice("sub", sub, len - sub);
+          offset += sub;
+          len -= sub;
+          assertEquals(len, slice.length());
+          byte[] actual = new byte[len];
+          slice.readBytes(actual, 0, len);
+          assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + len), actual);
+          expectThrows(EOFException.class, () -> slice.readByte());
+          if(len > 0) {
+            int pos = TestUtil.nextInt(random(), 0, len - 1);
+            slice.seek(pos);
+            assertEquals(pos, slice.getFilePointer());
+            assertEquals(bytes[offset + pos], slice.readByte());
+          }
+        }
+      }
+    }
+  }
+  
+  public void testRandomAccess() throws IOException {
+    try(Directory dir = getDirectory(createTempDir())) {
+      int length = 3 * NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE + 101;
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      try(IndexOutput out = dir.createOutput("random", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+      ByteBuffer reference = ByteBuffer.wrap(bytes);
+      try(IndexInput in = dir.openInput("random", IOContext.DEFAULT)) {
+        RandomAccessInput random = in.randomAccessSlice(0, length);
+        assertTrue(random instanceof IndexInput);
+        ((IndexInput) random).seek(17);
+        in.seek(17);
+        for(int i = 0; i < 1000; ++i) {
+          // Often around the end of a block
+          int pos = rarely() ? TestUtil.nextInt(random(), 0, length - 8) :
+            TestUtil.nextInt(random(), 1, 3) * NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE - TestUtil.nextInt(random(), 1, 8);
+          switch(TestUtil.nextInt(random(), 0, 3)) {
+            case 0:
+              assertEquals(reference.get(pos), random.readByte(pos));
+              break;
+            case 1:
+              assertEquals(reference.getShort(pos), random.readShort(pos));
+              break;
+            case 2:
+              assertEquals(reference.getInt(pos), random.readInt(pos));
+              break;
+            default:
+              assertEquals(reference.getLong(pos), random.readLong(pos));
+              break;
+          }
+          // The file pointer doesn't move
+          assertEquals(17L, ((IndexInput) random).getFilePointer());
+        }
+        expectThrows(EOFException.class, () -> random.readLong(length - 7));
+        assertEquals(bytes[17], ((IndexInput) random).readByte());
+        // A large read (several blocks at once)
+        byte[] actual = new byte[length - 17];
+        in.readBytes(actual, 0, actual.length);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 17, length), actual);
+      }
+    }
+  }
+  
+  public void testWriteBehind() throws IOException {
+    ThreadPoolEngine engine = new ThreadPoolEngine(2);
+    try {
+      Path path = createTempDir().resolve("behind");
+      int length = 100 * 4096 + 17;
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      try(DirectOutputStream out = new DirectOutputStream(path, 4096, engine, 8, DirectBufferAllocator.UNPOOLED, 0L)) {
+        int written = 0;
+        while(written < length) {
+          int len = Math.min(TestUtil.nextInt(random(), 1, 3 * 4096), length - written);
+          if(len == 1)
+            out.write(bytes[written]);
+          else
+            out.write(bytes, written, len);
+          written += len;
+        }
+      }
+      assertArrayEquals(bytes, Files.readAllBytes(path));
+    } finally {
+      engine.close();
+    }
+  }
+  
+  public void testWriteBehindFailure() throws IOException {
+    // The third write fails
+    AtomicInteger writes = new AtomicInteger();
+    DirectIOEngine failing = new DirectIOEngine() {
+      @Override
+      public Handle open(FileChannel channel, FileDescriptor fd) throws IOException {
+        Handle handle = DirectIOEngine.BLOCKING.open(channel, fd);
+        return new Handle() {
+          @Override
+          public Pending read(ByteBuffer buffer, long position) throws IOException {
+            return handle.read(buffer, position);
+          }
+          
+          @Override
+          public Pending write(ByteBuffer buffer, long position) throws IOException {
+            if(writes.incrementAndGet() == 3)
+              return () -> { throw new IOException("injected"); };
+            return handle.write(buffer, position);
+          }
+        };
+      }
+      
+      @Override
+      public int depth() {
+        return 4;
+      }
+    };
+    Path path = createTempDir().resolve("failure");
+    DirectOutputStream out = new DirectOutputStream(path, 4096, failing, 0, DirectBufferAllocator.UNPOOLED, 0L);
+    byte[] block = new byte[4096];
+    // Reported when the buffer is reused
+    IOException e = expectThrows(IOException.class, () -> {
+      for(int i = 0; i < 10; ++i)
+        out.write(block);
+    });
+    assertEquals("injected", e.getMessage());
+    // The stream is unusable, close() reports the failure again
+    expectThrows(IOException.class, () -> out.write(block));
+    expectThrows(IOException.class, () -> out.close());
+  }
+  
+  public void testPrimitivesAndChecksum() throws IOException {
+    try(Directory dir = getDirectory(createTempDir())) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try(IndexOutput out = dir.createOutput("primitives", IOContext.DEFAULT);
+          IndexOutput reference = new OutputStreamIndexOutput("reference", "reference", bytes, 8192)) {
+        for(int i = 0; i < 100000; ++i) {
+          switch(TestUtil.nextInt(random(), 0, 6)) {
+            case 0:
+              byte b = (byte) random().nextInt();
+              out.writeByte(b);
+              reference.writeByte(b);
+              break;
+            case 1:
+              short s = (short) random().nextInt();
+              out.writeShort(s);
+              reference.writeShort(s);
+              break;
+            case 2:
+              int v = random().nextInt();
+              out.writeInt(v);
+              reference.writeInt(v);
+              break;
+            case 3:
+              long l = random().nextLong();
+              out.writeLong(l);
+              reference.writeLong(l);
+              break;
+            case 4:
+              // Negative values take the 5 bytes
+              int vint = random().nextBoolean() ? random().nextInt(1 << 20) : random().nextInt();
+              out.writeVInt(vint);
+              reference.writeVInt(vint);
+              break;
+            case 5:
+              long vlong = random().nextLong() >>> TestUtil.nextInt(random(), 1, 63);
+              out.writeVLong(vlong);
+              reference.writeVLong(vlong);
+              break;
+            default:
+              byte[] array = new byte[TestUtil.nextInt(random(), 0, 300)];
+              random().nextBytes(array);
+              out.writeBytes(array, array.length);
+              reference.writeBytes(array, array.length);
+              break;
+          }
+          if(rarely()) {
+            // Exact in the middle of a block
+            assertEquals(reference.getChecksum(), out.getChecksum());
+          }
+          assertEquals(reference.getFilePointer(), out.getFilePointer());
+        }
+        assertEquals(reference.getChecksum(), out.getChecksum());
+      }
+      try(IndexInput in = dir.openInput("primitives", IOContext.DEFAULT)) {
+        byte[] actual = new byte[(int) in.length()];
+        in.readBytes(actual, 0, actual.length);
+        assertArrayEquals(bytes.toByteArray(), actual);
+      }
+    }
+  }
+  
+  public void testBufferPool() throws IOException {
+    // A budget of a single slab
+    DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.SLAB_SIZE, false, 100L);
+    try {
+      DirectBufferAllocator allocator = pool.forIndex("test");
+      ByteBuffer small = allocator.allocate(5000);
+      assertEquals(8192, small.capacity());
+      assertEquals(0L, DirectBufferTools.address(small) % 4096);
+      assertEquals(DirectBufferPool.SLAB_SIZE, pool.getMappedBytes());
+      // Same size class, same slab
+      ByteBuffer same = allocator.allocate(8192);
+      assertEquals(2 * 8192L, pool.getAllocatedBytes());
+      assertEquals(DirectBufferPool.SLAB_SIZE, pool.getMappedBytes());
+      // Another size class needs another slab: back-pressure until the timeout
+      assertNull(allocator.tryAllocate(65536));
+      expectThrows(IOException.class, () -> allocator.allocate(65536));
+      allocator.free(small);
+      allocator.free(same);
+      assertEquals(0L, pool.getAllocatedBytes());
+      // The unused slab is reclaimed for the new size
+      ByteBuffer big = allocator.allocate(DirectBufferPool.SLAB_SIZE);
+      assertEquals(DirectBufferPool.SLAB_SIZE, big.capacity());
+      assertEquals(DirectBufferPool.SLAB_SIZE, pool.getMappedBytes());
+      assertEquals(0L, pool.getLeaks());
+      // A forgotten buffer goes back to the pool once it's collected (the pool never triggers a GC)
+      big = null;
+      System.gc();
+      ByteBuffer other = allocator.allocate(DirectBufferPool.SLAB_SIZE);
+      assertEquals(1L, pool.getLeaks());
+      allocator.free(other);
+      assertEquals(0L, pool.getAllocatedBytes());
+    } finally {
+      pool.close();
+    }
+    assertEquals(0L, pool.getMappedBytes());
+  }
+  
+  public void testBreaker() throws IOException {
+    // Room for the buffer of a single file
+    DirectMemoryBreaker breaker = new DirectMemoryBreaker(4096, null);
+    try(Directory dir = new NativeUnixDirectory(
+        createTempDir(),
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setMappedMemory(false)
+          .setDirectReadEnabled(true)
+          .setDirectWriteEnabled(true)
+          .setDirectReadBufferSize(4096)
+          .setDirectWriteBufferSize(4096)
+          .setMinBytesDirect(0)
+          .setBreaker(breaker))) {
+      IndexOutput first = dir.createOutput("first", IOContext.DEFAULT);
+      assertTrue(first.toString().startsWith("DirectIndexOutput"));
+      assertEquals(4096L, breaker.getReservedBytes());
+      // Tripped: the next files use NIO
+      try(IndexOutput second = dir.createOutput("second", IOContext.DEFAULT)) {
+        assertFalse(second.toString().startsWith("DirectIndexOutput"));
+        second.writeInt(42);
+      }
+      assertTrue(breaker.isTripped());
+      assertEquals(1L, breaker.getTrips());
+      try(IndexInput in = dir.openInput("second", IOContext.DEFAULT)) {
+        assertFalse(in.toString().startsWith("DirectIndexInput"));
+        assertEquals(42, in.readInt());
+      }
+      assertEquals(1L, breaker.getTrips());
+      first.writeInt(42);
+      first.close();
+      assertEquals(0L, breaker.getReservedBytes());
+      // Closed again once the memory is released
+      try(IndexInput in = dir.openInput("first", IOContext.DEFAULT)) {
+        assertTrue(in.toString().startsWith("DirectIndexInput"));
+        assertFalse(breaker.isTripped());
+        assertEquals(42, in.readInt());
+        IndexInput clone = in.clone();
+        clone.close(); // a clone doesn't release the reservation
+        assertEquals(4096L, breaker.getReservedBytes());
+      }
+      assertEquals(0L, breaker.getReservedBytes());
+    }
+  }
+  
+  public void testMergePreallocate() throws IOException {
+    boolean direct = random().nextBoolean();
+    Path path = createTempDir();
+    try(Directory dir = new NativeUnixDirectory(
+        path,
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setMappedMemory(false)
+          .setDirectWriteEnabled(direct)
+          .setDirectReadBufferSize(4096)
+          .setDirectWriteBufferSize(4096)
+          .setMinBytesDirect(0)
+          .setMergePreallocate(true))) {
+      // The file is smaller than the merge: the preallocated blocks must not change its length
+      int length = TestUtil.nextInt(random(), 1, 3 * 1024 * 1024);
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      IOContext context = new IOContext(new MergeInfo(1000, 16L * 1024 * 1024, false, 1));
+      try(IndexOutput out = dir.createOutput("merged", context)) {
+        assertEquals(direct, out.toString().startsWith("DirectIndexOutput"));
+        int offset = 0;
+        while(offset < length) {
+          int chunk = Math.min(length - offset, TestUtil.nextInt(random(), 1, 100000));
+          out.writeBytes(bytes, offset, chunk);
+          offset += chunk;
+        }
+      }
+      assertEquals(length, Files.size(path.resolve("merged")));
+      assertEquals(length, dir.fileLength("merged"));
+      try(IndexInput in = dir.openInput("merged", IOContext.DEFAULT)) {
+        byte[] read = new byte[length];
+        in.readBytes(read, 0, length);
+        assertArrayEquals(bytes, read);
+      }
+    }
+  }
+  
+  private Directory newNativeDirectory(Path path, FileSyncer syncer, int syncfsThreshold) throws IOException {
+    return new NativeUnixDirectory(
+        path,
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setMappedMemory(false)
+          .setDirectReadBufferSize(4096)
+          .setDirectWriteBufferSize(4096)
+          .setSyncer(syncer, syncfsThreshold));
+  }
+  
+  public void testSync() throws IOException {
+    FileSyncer syncer = new FileSyncer(TestUtil.nextInt(random(), 1, 4));
+    try {
+      int count = TestUtil.nextInt(random(), 1, 50);
+      List<String> names = new ArrayList<>();
+      try(Directory dir = newNativeDirectory(createTempDir(), syncer, 0)) {
+        for(int i = 0; i < count; ++i) {
+          try(IndexOutput out = dir.createOutput("file" + i, IOContext.DEFAULT)) {
+            out.writeInt(i);
+          }
+          names.add("file" + i);
+        }
+        dir.sync(names);
+        assertEquals(count, syncer.getFiles());
+        // The other files are still synced
+        names.add(TestUtil.nextInt(random(), 0, names.size()), "missing");
+        expectThrows(NoSuchFileException.class, () -> dir.sync(names));
+        assertEquals(2L * count + 1, syncer.getFiles());
+      }
+      // The whole filesystem at once
+      try(Directory dir = newNativeDirectory(createTempDir(), syncer, 5)) {
+        names.clear();
+        for(int i = 0; i < 5; ++i) {
+          try(IndexOutput out = dir.createOutput("file" + i, IOContext.DEFAULT)) {
+            out.writeInt(i);
+          }
+          names.add("file" + i);
+        }
+        dir.sync(names.subList(0, 4));
+        assertEquals(0L, syncer.getFileSystems());
+        dir.sync(names);
+        assertEquals(1L, syncer.getFileSystems());
+      }
+    } finally {
+      syncer.close();
+    }
+  }
+  
+  public void testCopyFromFileSystem() throws IOException {
+    int length = TestUtil.nextInt(random(), 0, 3 * 1024 * 1024);
+    byte[] bytes = new byte[length];
+    random().nextBytes(bytes);
+    try(Directory source = newNativeDirectory(createTempDir(), null, 0);
+        Directory target = newNativeDirectory(createTempDir(), null, 0);
+        Directory ram = new RAMDirectory()) {
+      for(Directory dir : Arrays.asList(source, ram)) {
+        try(IndexOutput out = dir.createOutput("source", IOContext.DEFAULT)) {
+          out.writeBytes(bytes, bytes.length);
+        }
+      }
+      // Same filesystem: cloned or copied by the kernel
+      target.copyFrom(source, "source", "copy", IOContext.DEFAULT);
+      // Wrapped or not a file: streamed
+      target.copyFrom(new FilterDirectory(source) {}, "source", "wrapped", IOContext.DEFAULT);
+      target.copyFrom(ram, "source", "streamed", IOContext.DEFAULT);
+      for(String name : Arrays.asList("copy", "wrapped", "streamed")) {
+        assertEquals(length, target.fileLength(name));
+        try(IndexInput in = target.openInput(name, IOContext.DEFAULT)) {
+          byte[] read = new byte[length];
+          in.readBytes(read, 0, length);
+          assertArrayEquals(bytes, read);
+        }
+      }
+      expectThrows(FileAlreadyExistsException.class,
+          () -> target.copyFrom(source, "source", "copy", IOContext.DEFAULT));
+      expectThrowsAnyOf(Arrays.asList(NoSuchFileException.class, FileNotFoundException.class),
+          () -> target.copyFrom(source, "missing", "other", IOContext.DEFAULT));
+      assertFalse(Arrays.asList(target.listAll()).contains("other"));
+    }
+  }
+  
+  public void testChecksumCombine() {
+    byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 100000)];
+    random().nextBytes(bytes);
+    int split = TestUtil.nextInt(random(), 0, bytes.length);
+    CRC32 first = new CRC32();
+    first.update(bytes, 0, split);
+    CRC32 second = new CRC32();
+    second.update(bytes, split, bytes.length - split);
+    CRC32 all = new CRC32();
+    all.update(bytes);
+    assertEquals(all.getValue(), ChecksumVerifier.combine(first.getValue(), second.getValue(), bytes.length - split));
+  }
+  
+  public void testChecksumVerifier() throws IOException {
+    ChecksumVerifier verifier = new ChecksumVerifier(TestUtil.nextInt(random(), 1, 4), TestUtil.nextInt(random(), 1, 100000));
+    Path path = createTempDir();
+    try(Directory dir = getDirectory(path)) {
+      // Several parts (of 1MB at least)
+      byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 3 * 1024 * 1024)];
+      random().nextBytes(bytes);
+      try(IndexOutput out = dir.createOutput("checked", IOContext.DEFAULT)) {
+        CodecUtil.writeHeader(out, "test", 0);
+        out.writeBytes(bytes, bytes.length);
+        CodecUtil.writeFooter(out);
+      }
+      try(IndexInput in = dir.openInput("checked", IOContext.DEFAULT)) {
+        in.seek(3);
+        assertEquals(CodecUtil.checksumEntireFile(in), verifier.checksumEntireFile(in));
+        assertEquals(3, in.getFilePointer());
+      }
+      try(RandomAccessFile raf = new RandomAccessFile(path.resolve("checked").toFile(), "rw")) {
+        long position = TestUtil.nextLong(random(), 0, raf.length() - 9);
+        raf.seek(position);
+        int b = raf.read();
+        raf.seek(position);
+        raf.write(b ^ 1);
+      }
+      try(IndexInput in = dir.openInput("checked", IOContext.DEFAULT)) {
+        expectThrows(CorruptIndexException.class, () -> verifier.checksumEntireFile(in));
+      }
+    } finally {
+      verifier.close();
+    }
+  }
+  
+  public void testSmallFileBuffer() {
+    assertEquals(4096, DirectBufferPool.bufferSize(1024 * 1024, 100));
+    assertEquals(16384, DirectBufferPool.bufferSize(1024 * 1024, 10000));
+    assertEquals(1024 * 1024, DirectBufferPool.bufferSize(1024 * 1024, 0));
+    assertEquals(1024 * 1024, DirectBufferPool.bufferSize(1024 * 1024, 5L * 1024 * 1024 * 1024));
+  }
 }
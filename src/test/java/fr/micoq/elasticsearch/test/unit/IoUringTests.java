@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.test.unit;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.index.store.EsBaseDirectoryTestCase;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+
+import fr.micoq.elasticsearch.DirectBufferPool;
+import fr.micoq.elasticsearch.DirectIOEngine;
+import fr.micoq.elasticsearch.IoUringEngine;
+import fr.micoq.elasticsearch.NativeUnixDirectory;
+import fr.micoq.elasticsearch.NativeUnixDirectoryConfig;
+import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.elasticsearch.test.NativeUnixThreadFilter;
+import fr.micoq.unsafe.IoUring;
+
+/*
+ * Same tests as DirectIOTests with the io_uring engine, the read-ahead and the
+ * buffer pool (skipped if the kernel doesn't support it).
+ */
+
+@RunWith(RandomizedRunner.class)
+@ThreadLeakFilters(filters = {NativeUnixThreadFilter.class})
+public class IoUringTests extends EsBaseDirectoryTestCase {
+  
+  private static IoUringEngine engine;
+  private static DirectBufferPool pool;
+  
+  @BeforeClass
+  public static void createEngine() throws IOException {
+    assumeTrue("io_uring is not supported", IoUring.isSupported());
+    // A small ring to also exercise the back-pressure
+    engine = new IoUringEngine(8);
+    pool = new DirectBufferPool(64 * 1024 * 1024, false, 30000L);
+  }
+  
+  @AfterClass
+  public static void closeEngine() {
+    if(engine != null) {
+      engine.close();
+      engine = null;
+    }
+    if(pool != null) {
+      pool.close();
+      pool = null;
+    }
+  }
+  
+  @Override
+  protected Directory getDirectory(Path file) throws IOException {
+    return new NativeUnixDirectory(
+        file,
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          // Small buffers to have several writes in flight
+          .setDirectWriteBufferSize(4096)
+          .setForceIO(ForceIO.Direct)
+          .setIOEngine(engine)
+          .setDirectReadAhead(2)
+          .setBufferAllocator(pool.forIndex("test")));
+  }
+  
+  public void testCloseWithReadAhead() throws IOException {
+    try(Directory dir = getDirectory(createTempDir())) {
+      int block = NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE;
+      byte[] bytes = new byte[16 * block];
+      random().nextBytes(bytes);
+      try(IndexOutput out = dir.createOutput("ahead", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+      long allocated = pool.getAllocatedBytes();
+      for(int i = 0; i < 10; ++i) {
+        IndexInput in = dir.openInput("ahead", IOContext.DEFAULT);
+        List<IndexInput> inputs = new ArrayList<>();
+        inputs.add(in);
+        for(int j = 0; j < 3; ++j) {
+          inputs.add(in.clone());
+        }
+        // Two sequential blocks start the read-ahead of each input
+        for(IndexInput input : inputs) {
+          input.seek(TestUtil.nextInt(random(), 0, 8) * (long) block);
+          input.readBytes(new byte[2 * block + 1], 0, 2 * block + 1);
+        }
+        // Closed while the reads ahead are in flight
+        in.close();
+      }
+      assertEquals(allocated, pool.getAllocatedBytes());
+      // The engine still reads the right bytes
+      try(IndexInput in = dir.openInput("ahead", IOContext.DEFAULT)) {
+        byte[] all = new byte[bytes.length];
+        in.readBytes(all, 0, all.length);
+        assertArrayEquals(bytes, all);
+      }
+    }
+  }
+  
+  public void testCloseDrainsRequests() throws IOException {
+    Path file = createTempDir().resolve("drain");
+    byte[] bytes = new byte[8 * 4096];
+    random().nextBytes(bytes);
+    Files.write(file, bytes);
+    IoUringEngine local = new IoUringEngine(16);
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        FileInputStream fis = new FileInputStream(file.toFile())) {
+      DirectIOEngine.Handle handle = local.open(channel, fis.getFD());
+      List<ByteBuffer> buffers = new ArrayList<>();
+      List<DirectIOEngine.Pending> pending = new ArrayList<>();
+      for(int i = 0; i < 8; ++i) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        buffers.add(buffer);
+        pending.add(handle.read(buffer, i * 4096L));
+      }
+      // Submitted and completed before the end of close()
+      local.close();
+      expectThrows(IOException.class, () -> handle.read(ByteBuffer.allocateDirect(4096), 0L));
+      for(int i = 0; i < 8; ++i) {
+        assertEquals(4096, pending.get(i).await());
+        byte[] read = new byte[4096];
+        buffers.get(i).get(read);
+        assertArrayEquals(Arrays.copyOfRange(bytes, i * 4096, (i + 1) * 4096), read);
+      }
+    } finally {
+      local.close();
+    }
+  }
+}
@@ -0,0 +1,660 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.elasticsearch.test.unit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSLockFactory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+
+import fr.micoq.elasticsearch.ChecksumInput;
+import fr.micoq.elasticsearch.ChecksumVerifier;
+import fr.micoq.elasticsearch.MappedIndexInput;
+import fr.micoq.elasticsearch.MappedIndexInputGuard;
+import fr.micoq.elasticsearch.MappedMemoryHeatmap;
+import fr.micoq.elasticsearch.MappedMemoryPreloader;
+import fr.micoq.elasticsearch.MappedMemoryRegistry;
+import fr.micoq.elasticsearch.MappedMemoryResidency;
+import fr.micoq.elasticsearch.NativeUnixDirectory;
+import fr.micoq.elasticsearch.NativeUnixDirectoryConfig;
+import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.elasticsearch.NativeUnixDirectory.Populate;
+import fr.micoq.elasticsearch.test.NativeUnixThreadFilter;
+import fr.micoq.unsafe.MappedMemory;
+import fr.micoq.unsafe.MappedMemoryReader;
+
+/*
+ * Tests the single and bulk reads of the mapped inputs against the
+ * encoded values, and the reads racing with a close.
+ */
+
+@RunWith(RandomizedRunner.class)
+@ThreadLeakFilters(filters = {NativeUnixThreadFilter.class})
+public class MappedIndexInputTests extends ESTestCase {
+
+  private Directory getDirectory() throws IOException {
+    return getDirectory(createTempDir());
+  }
+
+  private Directory getDirectory(Path path) throws IOException {
+    return new NativeUnixDirectory(
+        path,
+        FSLockFactory.getDefault(),
+        true,
+        false,
+        false,
+        false,
+        NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE,
+        NativeUnixDirectory.DEFAULT_DIRECT_BUFFER_SIZE,
+        ForceIO.MappedMemory,
+        NativeUnixDirectory.DEFAULT_MIN_BYTES_DIRECT,
+        NativeUnixDirectory.DEFAULT_MAX_BYTES_PRELOAD,
+        new HashSet<String>());
+  }
+
+  private byte[] writeRandomFile(Directory dir, String name, int length) throws IOException {
+    try(IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      out.writeBytes(bytes, bytes.length);
+      return bytes;
+    }
+  }
+
+  public void testSingleLoadReads() throws IOException {
+    try(Directory dir = getDirectory()) {
+      int count = randomIntBetween(0, 2000);
+      int[] types = new int[count + 2];
+      long[] values = new long[count + 2];
+      try(IndexOutput out = dir.createOutput("single", IOContext.DEFAULT)) {
+        for(int i = 0; i < types.length; ++i) {
+          // Ends with a vInt and a vLong so their encodings reach the end of the mapping
+          types[i] = i < count ? randomIntBetween(0, 4) : 3 + i - count;
+          switch(types[i]) {
+            case 0: values[i] = (short) random().nextInt(); out.writeShort((short) values[i]); break;
+            case 1: values[i] = random().nextInt(); out.writeInt((int) values[i]); break;
+            case 2: values[i] = random().nextLong(); out.writeLong(values[i]); break;
+            case 3: values[i] = random().nextInt(); out.writeVInt((int) values[i]); break;
+            default: values[i] = random().nextLong() >>> randomIntBetween(1, 63); out.writeVLong(values[i]); break;
+          }
+        }
+      }
+      try(IndexInput in = dir.openInput("single", IOContext.DEFAULT)) {
+        int length = (int) in.length();
+        byte[] bytes = new byte[length];
+        in.readBytes(bytes, 0, length);
+        in.seek(0);
+        for(int i = 0; i < types.length; ++i) {
+          switch(types[i]) {
+            case 0: assertEquals(values[i], in.readShort()); break;
+            case 1: assertEquals(values[i], in.readInt()); break;
+            case 2: assertEquals(values[i], in.readLong()); break;
+            case 3: assertEquals(values[i], in.readVInt()); break;
+            default: assertEquals(values[i], in.readVLong()); break;
+          }
+        }
+        assertEquals(length, in.getFilePointer());
+        expectThrows(EOFException.class, () -> in.readShort());
+
+        // Absolute reads at every offset, up to the end of an unaligned slice
+        ByteArrayDataInput reference = new ByteArrayDataInput(bytes);
+        int sliceOffset = Math.min(length, randomIntBetween(0, 7));
+        MappedIndexInput slice = (MappedIndexInput) in.slice("slice", sliceOffset, length - sliceOffset);
+        for(int pos = 0; pos < slice.length(); ++pos) {
+          int remaining = (int) slice.length() - pos;
+          if(remaining >= Short.BYTES) {
+            reference.setPosition(sliceOffset + pos);
+            assertEquals(reference.readShort(), slice.readShort(pos));
+          } else {
+            final int p = pos;
+            expectThrows(EOFException.class, () -> slice.readShort(p));
+          }
+          if(remaining >= Integer.BYTES) {
+            reference.setPosition(sliceOffset + pos);
+            assertEquals(reference.readInt(), slice.readInt(pos));
+          }
+          if(remaining >= Long.BYTES) {
+            reference.setPosition(sliceOffset + pos);
+            assertEquals(reference.readLong(), slice.readLong(pos));
+          } else {
+            final int p = pos;
+            expectThrows(EOFException.class, () -> slice.readLong(p));
+          }
+        }
+        // The relative reads of the slice don't move with the absolute ones
+        assertEquals(0, slice.getFilePointer());
+      }
+    }
+  }
+
+  public void testBulkReadsUnaligned() throws IOException {
+    try(Directory dir = getDirectory()) {
+      writeRandomFile(dir, "bulk", 8 * 1024 + 7);
+      try(IndexInput in = dir.openInput("bulk", IOContext.DEFAULT)) {
+        for(int start = 0; start < 8; ++start) {
+          int count = randomIntBetween(0, 1000);
+          int dstOffset = randomIntBetween(0, 5);
+
+          MappedIndexInput bulk = (MappedIndexInput) in.clone();
+          IndexInput single = in.clone();
+
+          bulk.seek(start);
+          single.seek(start);
+          long[] longs = new long[dstOffset + count];
+          bulk.readLongs(longs, dstOffset, count);
+          for(int i = 0; i < count; ++i) {
+            assertEquals(single.readLong(), longs[dstOffset + i]);
+          }
+          assertEquals(single.getFilePointer(), bulk.getFilePointer());
+
+          bulk.seek(start);
+          single.seek(start);
+          int[] ints = new int[dstOffset + count];
+          bulk.readInts(ints, dstOffset, count);
+          for(int i = 0; i < count; ++i) {
+            assertEquals(single.readInt(), ints[dstOffset + i]);
+          }
+          assertEquals(single.getFilePointer(), bulk.getFilePointer());
+
+          bulk.seek(start);
+          single.seek(start);
+          float[] floats = new float[dstOffset + count];
+          bulk.readFloats(floats, dstOffset, count);
+          for(int i = 0; i < count; ++i) {
+            assertEquals(Float.floatToRawIntBits(Float.intBitsToFloat(single.readInt())),
+                Float.floatToRawIntBits(floats[dstOffset + i]));
+          }
+          assertEquals(single.getFilePointer(), bulk.getFilePointer());
+        }
+      }
+    }
+  }
+
+  public void testBulkReadsSliceAtEndOfFile() throws IOException {
+    try(Directory dir = getDirectory()) {
+      int length = 4096 + randomIntBetween(0, 63);
+      writeRandomFile(dir, "slice", length);
+      try(IndexInput in = dir.openInput("slice", IOContext.DEFAULT)) {
+        // an odd offset so the slice is not aligned and ends exactly at the end of the file
+        long sliceOffset = 1 + 2 * randomIntBetween(0, 100);
+        MappedIndexInput slice = (MappedIndexInput) in.slice("end", sliceOffset, length - sliceOffset);
+        int count = (int)(slice.length() / 8);
+
+        long[] longs = new long[count];
+        slice.readLongs(longs, 0, count);
+        in.seek(sliceOffset);
+        for(int i = 0; i < count; ++i) {
+          assertEquals(in.readLong(), longs[i]);
+        }
+
+        // not enough bytes for one more value
+        long remaining = slice.length() - slice.getFilePointer();
+        expectThrows(EOFException.class, () -> slice.readLongs(new long[1], 0, 1));
+        assertEquals(slice.length() - remaining, slice.getFilePointer());
+
+        slice.seek(0);
+        expectThrows(EOFException.class, () -> slice.readInts(new int[count * 2 + 2], 0, count * 2 + 2));
+        expectThrows(IndexOutOfBoundsException.class, () -> slice.readFloats(new float[4], 2, 3));
+        assertEquals(0, slice.getFilePointer());
+      }
+    }
+  }
+
+  public void testConcurrentReadsAndClose() throws Exception {
+    try(Directory dir = getDirectory()) {
+      int length = 1024 * 1024;
+      byte[] bytes = new byte[length];
+      random().nextBytes(bytes);
+      for(int i = 0; i < length; ++i) {
+        bytes[i] |= 1; // A read of a zeroed page is a wrong byte
+      }
+      try(IndexOutput out = dir.createOutput("race", IOContext.DEFAULT)) {
+        out.writeBytes(bytes, bytes.length);
+      }
+      try(IndexOutput out = dir.createOutput("reused", IOContext.DEFAULT)) {
+        out.writeBytes(new byte[length], length);
+      }
+      IndexInput in = dir.openInput("race", IOContext.DEFAULT);
+      int threadCount = randomIntBetween(4, 16);
+      Thread[] threads = new Thread[threadCount];
+      CountDownLatch started = new CountDownLatch(threadCount);
+      AtomicLong reads = new AtomicLong();
+      AtomicLong closedErrors = new AtomicLong();
+      AtomicLong wrongBytes = new AtomicLong();
+      for(int t = 0; t < threadCount; ++t) {
+        MappedIndexInput clone = (MappedIndexInput) in.clone();
+        threads[t] = new Thread(() -> {
+          started.countDown();
+          long count = 0;
+          byte[] buffer = new byte[64];
+          try {
+            while(true) {
+              int position = randomIntBetween(0, length - 1);
+              if(clone.readByte(position) != bytes[position])
+                wrongBytes.incrementAndGet();
+              position = randomIntBetween(0, length - buffer.length);
+              clone.seek(position);
+              clone.readBytes(buffer, 0, buffer.length);
+              if(!Arrays.equals(buffer, Arrays.copyOfRange(bytes, position, position + buffer.length)))
+                wrongBytes.incrementAndGet();
+              count++;
+            }
+          } catch (AlreadyClosedException e) {
+            closedErrors.incrementAndGet();
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          } finally {
+            reads.addAndGet(count);
+          }
+        });
+        threads[t].start();
+      }
+      started.await();
+      Thread.sleep(randomIntBetween(10, 100));
+      in.close();
+      // New mappings may take the address range of the closed one while the readers run
+      Path reused = ((NativeUnixDirectory) dir).getDirectory().resolve("reused");
+      while(closedErrors.get() < threadCount) {
+        try(MappedMemory memory = MappedMemory.mapFile(reused.toString())) {
+          memory.preload();
+        }
+      }
+      for(Thread thread : threads) {
+        thread.join();
+      }
+      // Every reader must have stopped with an exception, after reading only the bytes of the file
+      assertEquals(threadCount, closedErrors.get());
+      assertEquals(0, wrongBytes.get());
+      assertTrue(reads.get() > 0);
+    }
+  }
+
+  public void testReclaimAfterReaders() throws Exception {
+    try(Directory dir = getDirectory()) {
+      byte[] bytes = writeRandomFile(dir, "reclaimed", 1024 * 1024);
+      String path = ((NativeUnixDirectory) dir).getDirectory().resolve("reclaimed").toString();
+      try(RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+        raf.getFD().sync();
+      }
+      try(MappedMemory other = MappedMemory.mapFile(path)) {
+        other.setCacheDropPolicy(MappedMemory.CACHE_DROP_NEVER);
+        MappedMemory memory = MappedMemory.mapFile(path);
+        memory.preload();
+        memory.setCacheDropPolicy(MappedMemory.CACHE_DROP_ALWAYS);
+        MappedMemoryReader reader = MappedMemoryReader.current();
+        reader.enter();
+        try {
+          memory.close();
+          assertTrue(memory.isClosed());
+          // Still mapped for the reader, the pages are not dropped yet
+          int position = randomIntBetween(0, bytes.length - 1);
+          assertEquals(bytes[position], memory.getByteUnsafe(position));
+          assertTrue(other.cachedBytes() > 0);
+        } finally {
+          reader.exit();
+        }
+        assertBusy(() -> assertEquals(0, other.cachedBytes()));
+      }
+    }
+  }
+
+  public void testAsyncPreload() throws Exception {
+    MappedMemoryPreloader preloader = new MappedMemoryPreloader(2, 0, 0);
+    try {
+      MappedMemoryPreloader.ShardPreload shard = preloader.forShard("[test][0]");
+      try(Directory dir = new NativeUnixDirectory(
+          createTempDir(),
+          FSLockFactory.getDefault(),
+          new NativeUnixDirectoryConfig()
+            .setForceIO(ForceIO.MappedMemory)
+            .setPreLoadExtensions(null)
+            .setPopulate(Populate.Async)
+            .setPreloader(shard)
+            .setShardName("[test][0]"))) {
+        int length = 9 * 1024 * 1024 + 13;
+        writeRandomFile(dir, "preload", length);
+        try(IndexInput in = dir.openInput("preload", IOContext.DEFAULT)) {
+          // The input is usable while the file is loaded
+          in.seek(length - 1);
+          in.readByte();
+          assertBusy(() -> assertTrue(shard.isDone()));
+          XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+          preloader.toXContent(builder, ToXContent.EMPTY_PARAMS);
+          String stats = Strings.toString(builder.endObject());
+          assertTrue(stats, stats.contains("\"files_done\":1"));
+          assertTrue(stats, stats.contains("\"files_failed\":0"));
+          assertTrue(stats, stats.contains("\"skipped_in_bytes\":0"));
+          assertTrue(stats, stats.contains("\"percent\":100.0"));
+
+          builder = XContentFactory.jsonBuilder().startObject();
+          try(MappedMemoryResidency residency = new MappedMemoryResidency(MappedMemoryRegistry.getInstance(), 0L)) {
+            residency.collect();
+            residency.toXContent(builder, new ToXContent.MapParams(Collections.singletonMap("level", "files")));
+          }
+          stats = Strings.toString(builder.endObject());
+          assertTrue(stats, stats.contains("\"preload\":{\"mappings\":1,\"mapped_in_bytes\":" + length +
+              ",\"resident_in_bytes\":" + length));
+        }
+        // Closed before (or while) being preloaded: the task holds the mapping until its end only
+        writeRandomFile(dir, "closed", length);
+        dir.openInput("closed", IOContext.DEFAULT).close();
+        assertBusy(() -> assertTrue(shard.isDone()));
+        for(MappedIndexInputGuard guard : MappedMemoryRegistry.getInstance().mappings()) {
+          assertFalse(guard.getPath().toString(), guard.getPath().endsWith("closed"));
+        }
+      }
+    } finally {
+      preloader.close();
+    }
+  }
+
+  private long cachedBytesAfterClose(Path file, int policy) throws IOException {
+    try(MappedMemory memory = MappedMemory.mapFile(file.toString())) {
+      memory.preload();
+      memory.setCacheDropPolicy(policy);
+    }
+    try(MappedMemory memory = MappedMemory.mapFile(file.toString())) {
+      memory.setCacheDropPolicy(MappedMemory.CACHE_DROP_NEVER);
+      return memory.cachedBytes();
+    }
+  }
+
+  public void testChecksumVerifier() throws IOException {
+    ChecksumVerifier verifier = new ChecksumVerifier(TestUtil.nextInt(random(), 1, 4), TestUtil.nextInt(random(), 1, 1024 * 1024));
+    Path dir = createTempDir();
+    try(Directory directory = getDirectory(dir)) {
+      byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 4 * 1024 * 1024)];
+      random().nextBytes(bytes);
+      try(IndexOutput out = directory.createOutput("checked", IOContext.DEFAULT)) {
+        CodecUtil.writeHeader(out, "test", 0);
+        out.writeBytes(bytes, bytes.length);
+        CodecUtil.writeFooter(out);
+      }
+      Path file = dir.resolve("checked");
+      try(RandomAccessFile raf = new RandomAccessFile(file.toString(), "rw")) {
+        raf.getFD().sync();
+      }
+      assertEquals(0, cachedBytesAfterClose(file, MappedMemory.CACHE_DROP_ALWAYS));
+      try(IndexInput in = directory.openInput("checked", IOContext.DEFAULT)) {
+        assertEquals(CodecUtil.checksumEntireFile(in.clone()), verifier.checksumEntireFile(in));
+      }
+      // CodecUtil read the file through the cache, the verifier alone must leave it cold
+      assertEquals(0, cachedBytesAfterClose(file, MappedMemory.CACHE_DROP_ALWAYS));
+      try(IndexInput in = directory.openInput("checked", IOContext.DEFAULT)) {
+        verifier.checksumEntireFile(in);
+        try(MappedMemory memory = MappedMemory.mapFile(file.toString())) {
+          memory.setCacheDropPolicy(MappedMemory.CACHE_DROP_NEVER);
+          assertTrue(memory.cachedBytes() < 64 * 1024); // Only the footer
+        }
+        IndexInput slice = in.slice("slice", 1, in.length() - 1);
+        long[] crcs = new long[2];
+        long split = TestUtil.nextLong(random(), 0, slice.length());
+        crcs[0] = ((ChecksumInput) slice).checksum(0, split);
+        crcs[1] = ((ChecksumInput) slice).checksum(split, slice.length() - split);
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file), 1, (int) slice.length());
+        assertEquals(crc.getValue(), ChecksumVerifier.combine(crcs[0], crcs[1], slice.length() - split));
+      }
+      // Only the pages which were not in the cache before are evicted, in any chunk
+      int warm = 64 * 1024;
+      if(bytes.length >= 3 * warm) {
+        assertEquals(0, cachedBytesAfterClose(file, MappedMemory.CACHE_DROP_ALWAYS));
+        try(MappedMemory memory = MappedMemory.mapFile(file.toString())) {
+          memory.setCacheDropPolicy(MappedMemory.CACHE_DROP_NEVER);
+          memory.madviseRandom(); // Without the read-ahead, the kernel may read the whole file
+          long warmOffset = (long) TestUtil.nextInt(random(), 0, bytes.length / warm - 2) * warm;
+          memory.preload(warmOffset, warm);
+          try(IndexInput in = directory.openInput("checked", IOContext.DEFAULT)) {
+            verifier.checksumEntireFile(in);
+          }
+          for(byte resident : memory.residency(warmOffset, warm)) {
+            assertEquals(1, resident);
+          }
+          assertTrue(memory.cachedBytes() <= warm + 64 * 1024); // And the footer
+        }
+      }
+    } finally {
+      verifier.close();
+    }
+  }
+  
+  private void writeCheckedFile(Directory dir, String name) throws IOException {
+    byte[] bytes = new byte[TestUtil.nextInt(random(), 0, 3 * 1024 * 1024)];
+    random().nextBytes(bytes);
+    try(IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+      CodecUtil.writeHeader(out, "test", 0);
+      out.writeBytes(bytes, bytes.length);
+      CodecUtil.writeFooter(out);
+    }
+  }
+
+  private void corruptFile(Path file) throws IOException {
+    try(RandomAccessFile raf = new RandomAccessFile(file.toString(), "rw")) {
+      long position = TestUtil.nextLong(random(), 0, raf.length() - CodecUtil.footerLength() - 1);
+      raf.seek(position);
+      int b = raf.read();
+      raf.seek(position);
+      raf.write(b ^ 0x01);
+    }
+  }
+
+  public void testChecksumInput() throws IOException {
+    Path path = createTempDir();
+    try(ChecksumVerifier verifier = new ChecksumVerifier(2, 1024 * 1024);
+        Directory dir = new NativeUnixDirectory(
+            path,
+            FSLockFactory.getDefault(),
+            new NativeUnixDirectoryConfig()
+              .setForceIO(ForceIO.MappedMemory)
+              .setChecksumVerifier(verifier))) {
+      writeCheckedFile(dir, "checked");
+      long expected;
+      try(IndexInput in = dir.openInput("checked", IOContext.READONCE)) {
+        expected = CodecUtil.checksumEntireFile(in);
+      }
+      // Like a reader of the header skipping to the footer, with reads between the skips
+      try(ChecksumIndexInput in = dir.openChecksumInput("checked", IOContext.READONCE)) {
+        CodecUtil.checkHeader(in, "test", 0, 0);
+        long footer = in.length() - CodecUtil.footerLength();
+        long middle = TestUtil.nextLong(random(), in.getFilePointer(), footer);
+        in.seek(middle);
+        byte[] buffer = new byte[(int)Math.min(1000, footer - middle)];
+        in.readBytes(buffer, 0, buffer.length);
+        in.seek(footer);
+        assertEquals(expected, CodecUtil.checkFooter(in));
+      }
+      corruptFile(path.resolve("checked"));
+      try(ChecksumIndexInput in = dir.openChecksumInput("checked", IOContext.READONCE)) {
+        in.seek(in.length() - CodecUtil.footerLength());
+        expectThrows(CorruptIndexException.class, () -> CodecUtil.checkFooter(in));
+      }
+    }
+  }
+
+  private static Directory mappedDirectory(Path path, int heatmapSampleRate) throws IOException {
+    return new NativeUnixDirectory(
+        path,
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setForceIO(ForceIO.MappedMemory)
+          .setHeatmapSampleRate(heatmapSampleRate));
+  }
+
+  private static List<MappedIndexInputGuard> mappingsOf(Path file) {
+    List<MappedIndexInputGuard> guards = new ArrayList<>();
+    for(MappedIndexInputGuard guard : MappedMemoryRegistry.getInstance().mappings()) {
+      if(file.equals(guard.getPath()))
+        guards.add(guard);
+    }
+    return guards;
+  }
+
+  public void testSharedMappingSettings() throws IOException {
+    Path path = createTempDir();
+    Path file = path.resolve("shared");
+    try(Directory sampled = mappedDirectory(path, 2);
+        Directory unsampled = mappedDirectory(path, 0);
+        Directory sameSettings = mappedDirectory(path, 2)) {
+      writeRandomFile(sampled, "shared", 64 * 1024);
+      try(IndexInput in2 = unsampled.openInput("shared", IOContext.DEFAULT);
+          IndexInput in3 = sameSettings.openInput("shared", IOContext.DEFAULT)) {
+        try(IndexInput in1 = sampled.openInput("shared", IOContext.DEFAULT)) {
+          // Each directory maps the file with its own settings, whichever opened it first
+          List<MappedIndexInputGuard> guards = mappingsOf(file);
+          assertEquals(2, guards.size());
+          Set<Integer> sampleRates = new HashSet<>();
+          for(MappedIndexInputGuard guard : guards)
+            sampleRates.add(guard.getMemory().getHeatmapSampleRate());
+          assertEquals(new HashSet<>(Arrays.asList(0, 2)), sampleRates);
+        }
+        // The third one shares the mapping of the first one, still opened
+        assertEquals(2, mappingsOf(file).size());
+      }
+      assertEquals(0, mappingsOf(file).size());
+    }
+  }
+
+  public void testCacheDropPolicy() throws IOException {
+    Path dir = createTempDir();
+    int length = 1024 * 1024;
+    try(Directory directory = getDirectory(dir)) {
+      writeRandomFile(directory, "live", length);
+    }
+    // Clean pages only, the dirty ones are never dropped (java.io because the test filesystem ignores fsync)
+    Path file = dir.resolve("live");
+    try(RandomAccessFile raf = new RandomAccessFile(file.toString(), "rw")) {
+      raf.getFD().sync();
+    }
+    assertEquals(length, cachedBytesAfterClose(file, MappedMemory.CACHE_DROP_DELETED));
+    assertEquals(length, cachedBytesAfterClose(file, MappedMemory.CACHE_DROP_NEVER));
+    assertEquals(0, cachedBytesAfterClose(file, MappedMemory.CACHE_DROP_ALWAYS));
+  }
+
+  public void testHeatmap() throws IOException {
+    try(Directory dir = new NativeUnixDirectory(
+        createTempDir(),
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setForceIO(ForceIO.MappedMemory)
+          .setShardName("[heat][0]")
+          .setHeatmapSampleRate(2)
+          .setReadAheadWindow(0))) {
+      writeRandomFile(dir, "heat", 1024 * 1024);
+      MappedMemoryHeatmap heatmap = new MappedMemoryHeatmap(MappedMemoryRegistry.getInstance(), 0, 4);
+      try(IndexInput in = dir.openInput("heat", IOContext.DEFAULT)) {
+        // Only the first region is read, 5 sampled reads
+        for(int i = 0; i < 10; ++i) {
+          in.seek(i * 100);
+          in.readByte();
+        }
+        heatmap.advise();
+        assertTrue(toJson(heatmap), toJson(heatmap).contains("\"willneed_regions\":1,\"cold_regions\":0"));
+        // The counters are halved, the region is not hot anymore
+        heatmap.advise();
+        assertTrue(toJson(heatmap), toJson(heatmap).contains("\"willneed_regions\":1"));
+      } finally {
+        heatmap.close();
+      }
+    }
+  }
+
+  public void testSequentialReadAhead() throws IOException {
+    long window = randomFrom(4096L, 8192L, 65536L);
+    try(Directory dir = new NativeUnixDirectory(
+        createTempDir(),
+        FSLockFactory.getDefault(),
+        new NativeUnixDirectoryConfig()
+          .setForceIO(ForceIO.MappedMemory)
+          .setReadAheadWindow(window))) {
+      int length = 1024 * 1024 + 3;
+      ByteArrayDataInput reference = new ByteArrayDataInput(writeRandomFile(dir, "seq", length));
+      try(IndexInput in = dir.openInput("seq", IOContext.DEFAULT)) {
+        // Mixed reads over the window boundaries, with short skips and a few random seeks
+        while(length - reference.getPosition() > 16) {
+          switch(randomIntBetween(0, 5)) {
+            case 0:
+              assertEquals(reference.readByte(), in.readByte());
+              break;
+            case 1:
+              assertEquals(reference.readInt(), in.readInt());
+              break;
+            case 2:
+              assertEquals(reference.readLong(), in.readLong());
+              break;
+            case 3:
+              int len = Math.min(randomIntBetween(1, 10000), length - reference.getPosition());
+              byte[] expected = new byte[len];
+              byte[] actual = new byte[len];
+              reference.readBytes(expected, 0, len);
+              in.readBytes(actual, 0, len);
+              assertArrayEquals(expected, actual);
+              break;
+            case 4:
+              int skip = Math.min(randomIntBetween(0, 128 * 1024), length - reference.getPosition());
+              reference.setPosition(reference.getPosition() + skip);
+              in.seek(in.getFilePointer() + skip);
+              break;
+            default:
+              if(rarely()) {
+                int pos = randomIntBetween(0, length - 16);
+                reference.setPosition(pos);
+                in.seek(pos);
+              }
+              break;
+          }
+          assertEquals(reference.getPosition(), in.getFilePointer());
+        }
+      }
+    }
+  }
+
+  private static String toJson(ToXContent content) throws IOException {
+    XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+    content.toXContent(builder, ToXContent.EMPTY_PARAMS);
+    return Strings.toString(builder.endObject());
+  }
+}
@@ -25,9 +25,11 @@ import org.elasticsearch.index.store.EsBaseDirectoryTestCase;
 import org.junit.runner.RunWith;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
 
 import fr.micoq.elasticsearch.NativeUnixDirectory;
 import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
+import fr.micoq.elasticsearch.test.NativeUnixThreadFilter;
 
 /*
  * Tests the directory by using exclusively native mapped memory
@@ -35,6 +37,7 @@ import fr.micoq.elasticsearch.NativeUnixDirectory.ForceIO;
  */
 
 @RunWith(RandomizedRunner.class)
+@ThreadLeakFilters(filters = {NativeUnixThreadFilter.class})
 public class MappedMemoryTests extends EsBaseDirectoryTestCase {
   
   @Override
@@ -21,12 +21,27 @@
 #endif
 
 #include <jni.h>
-#include <fcntl.h>     // posix_fadvise, constants for open
+#include <fcntl.h>     // posix_fadvise, fallocate, constants for open
+#include <linux/falloc.h> // FALLOC_FL_KEEP_SIZE, FALLOC_FL_PUNCH_HOLE
 #include <string.h>    // strerror
 #include <errno.h>     // errno
-#include <unistd.h>    // getpagesize
+#include <unistd.h>    // getpagesize, syncfs
 #include <sys/types.h> // constants for open
 #include <sys/stat.h>  // constants for open
+#include <sys/ioctl.h> // ioctl
+#include <sys/syscall.h>
+#include <linux/fs.h>  // FICLONE
+
+#ifndef FICLONE
+#define FICLONE _IOW(0x94, 9, int) // Linux 4.5+
+#endif
+#ifndef __NR_copy_file_range
+#define __NR_copy_file_range 326 // Linux 4.5+
+#endif
+
+#define COPY_UNSUPPORTED 0
+#define COPY_RANGE       1
+#define COPY_CLONE       2
 
 /*
  * Class:     fr_micoq_unsafe_DirectIO
@@ -84,3 +99,156 @@ JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_DirectIO_openDirect(JNIEnv *env,
   // and return it
   return ret;
 }
+
+// false if the filesystem doesn't support the mode or is full, throws an IOException on the other errors
+static jboolean fallocate_fd(JNIEnv *env, jobject fdesc, int mode, jlong offset, jlong length)
+{
+  jfieldID field_fd;
+  jclass class_fdesc, class_ioex;
+  int fd;
+
+  class_fdesc = (*env)->GetObjectClass(env, fdesc);
+  field_fd = (*env)->GetFieldID(env, class_fdesc, "fd", "I");
+  if (field_fd == NULL) {
+    return JNI_FALSE;
+  }
+  fd = (*env)->GetIntField(env, fdesc, field_fd);
+
+  if (fallocate(fd, mode, (off_t) offset, (off_t) length) != 0) {
+    if (errno == EOPNOTSUPP || errno == ENOSYS || errno == ENOSPC) {
+      return JNI_FALSE;
+    }
+    class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return JNI_FALSE;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+    return JNI_FALSE;
+  }
+  return JNI_TRUE;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_DirectIO
+ * Method:    preallocate
+ * Signature: (Ljava/io/FileDescriptor;JJ)Z
+ *
+ * Allocates the blocks of a part of the file without changing its size (FALLOC_FL_KEEP_SIZE).
+ * Returns false if the filesystem doesn't support it or is full (the preallocation is only a hint).
+ */
+JNIEXPORT jboolean JNICALL Java_fr_micoq_unsafe_DirectIO_preallocate(JNIEnv *env, jclass _ignore, jobject fdesc, jlong offset, jlong length)
+{
+  return fallocate_fd(env, fdesc, FALLOC_FL_KEEP_SIZE, offset, length);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_DirectIO
+ * Method:    deallocate
+ * Signature: (Ljava/io/FileDescriptor;JJ)Z
+ *
+ * Releases the blocks of a part of the file without changing its size (FALLOC_FL_PUNCH_HOLE).
+ * Used on the preallocated blocks after the end of the file, which a truncation to the same size may keep.
+ */
+JNIEXPORT jboolean JNICALL Java_fr_micoq_unsafe_DirectIO_deallocate(JNIEnv *env, jclass _ignore, jobject fdesc, jlong offset, jlong length)
+{
+  return fallocate_fd(env, fdesc, FALLOC_FL_PUNCH_HOLE | FALLOC_FL_KEEP_SIZE, offset, length);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_DirectIO
+ * Method:    syncfs
+ * Signature: (Ljava/io/FileDescriptor;)Z
+ *
+ * Writes back all the dirty data and metadata of the filesystem of the file (syncfs()).
+ * Returns false if the kernel doesn't support it.
+ */
+JNIEXPORT jboolean JNICALL Java_fr_micoq_unsafe_DirectIO_syncfs(JNIEnv *env, jclass _ignore, jobject fdesc)
+{
+  jfieldID field_fd;
+  jclass class_fdesc, class_ioex;
+  int fd;
+
+  class_fdesc = (*env)->GetObjectClass(env, fdesc);
+  field_fd = (*env)->GetFieldID(env, class_fdesc, "fd", "I");
+  if (field_fd == NULL) {
+    return JNI_FALSE;
+  }
+  fd = (*env)->GetIntField(env, fdesc, field_fd);
+
+  if (syncfs(fd) != 0) {
+    if (errno == ENOSYS) {
+      return JNI_FALSE;
+    }
+    class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return JNI_FALSE;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+    return JNI_FALSE;
+  }
+  return JNI_TRUE;
+}
+
+static int get_fd(JNIEnv *env, jobject fdesc)
+{
+  jclass class_fdesc = (*env)->GetObjectClass(env, fdesc);
+  jfieldID field_fd = (*env)->GetFieldID(env, class_fdesc, "fd", "I");
+  if (field_fd == NULL) {
+    return -1;
+  }
+  return (*env)->GetIntField(env, fdesc, field_fd);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_DirectIO
+ * Method:    copyFile
+ * Signature: (Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;J)I
+ *
+ * Copies the first bytes of a file into an empty file without going through the user space:
+ * shares the blocks when the filesystem can (FICLONE), otherwise copies them in the kernel
+ * (copy_file_range()). Returns COPY_UNSUPPORTED when nothing could be copied this way
+ * (different filesystems, old kernel...).
+ */
+JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_DirectIO_copyFile(JNIEnv *env, jclass _ignore, jobject srcdesc, jobject dstdesc, jlong length)
+{
+  jclass class_ioex;
+  int src, dst;
+  loff_t src_offset = 0, dst_offset = 0;
+  ssize_t ret;
+
+  src = get_fd(env, srcdesc);
+  dst = get_fd(env, dstdesc);
+  if (src < 0 || dst < 0) {
+    return COPY_UNSUPPORTED;
+  }
+
+  // The whole file at once, the length is the one of the source
+  if (ioctl(dst, FICLONE, src) == 0) {
+    return COPY_CLONE;
+  }
+
+  while (dst_offset < length) {
+    ret = (ssize_t) syscall(__NR_copy_file_range, src, &src_offset, dst, &dst_offset, (size_t) (length - dst_offset), 0);
+    if (ret < 0) {
+      if (errno == EINTR) {
+        continue;
+      }
+      if (dst_offset == 0 && (errno == EXDEV || errno == ENOSYS || errno == EOPNOTSUPP || errno == EINVAL)) {
+        return COPY_UNSUPPORTED;
+      }
+      class_ioex = (*env)->FindClass(env, "java/io/IOException");
+      if (class_ioex != NULL) {
+        (*env)->ThrowNew(env, class_ioex, strerror(errno));
+      }
+      return COPY_UNSUPPORTED;
+    }
+    if (ret == 0) {
+      class_ioex = (*env)->FindClass(env, "java/io/EOFException");
+      if (class_ioex != NULL) {
+        (*env)->ThrowNew(env, class_ioex, "The source file is shorter than expected");
+      }
+      return COPY_UNSUPPORTED;
+    }
+  }
+  return COPY_RANGE;
+}
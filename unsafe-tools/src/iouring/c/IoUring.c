@@ -0,0 +1,369 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Minimal io_uring binding (without liburing) with the raw system calls.
+ * A ring is not thread-safe: the submissions (prepare + submit) must be serialized
+ * by the caller, the completions must be reaped by a single thread.
+ */
+
+// WARNING: only for x86_64 arch !
+
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE
+#endif
+
+#include <jni.h>
+#include <string.h>    // strerror, memset
+#include <errno.h>     // errno
+#include <stdlib.h>    // malloc, free
+#include <stdint.h>    // uintptr_t
+#include <unistd.h>    // syscall, close
+#include <sys/mman.h>  // mmap, munmap
+#include <sys/syscall.h>
+#include <linux/io_uring.h>
+
+#ifndef __NR_io_uring_setup
+#define __NR_io_uring_setup    425 // Linux 5.1+
+#endif
+#ifndef __NR_io_uring_enter
+#define __NR_io_uring_enter    426
+#endif
+#ifndef __NR_io_uring_register
+#define __NR_io_uring_register 427
+#endif
+
+// Same values as the OP_* constants of IoUring.java
+#define OP_READ  0
+#define OP_WRITE 1
+#define OP_NOP   2
+
+struct ring {
+  int fd;
+  unsigned *sq_head;
+  unsigned *sq_tail;
+  unsigned *sq_mask;
+  unsigned *sq_array;
+  unsigned *cq_head;
+  unsigned *cq_tail;
+  unsigned *cq_mask;
+  struct io_uring_sqe *sqes;
+  struct io_uring_cqe *cqes;
+  void *sq_ptr;
+  size_t sq_len;
+  void *cq_ptr;
+  size_t cq_len;
+  size_t sqes_len;
+  unsigned sq_entries;
+  unsigned pending; // prepared but not submitted yet
+};
+
+static void throwIOException(JNIEnv *env, int err)
+{
+  jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+  if (class_ioex == NULL) {
+    return;
+  }
+  (*env)->ThrowNew(env, class_ioex, strerror(err));
+}
+
+static void unmapRing(struct ring *r)
+{
+  if (r->sqes != NULL && r->sqes != MAP_FAILED) {
+    munmap(r->sqes, r->sqes_len);
+  }
+  if (r->cq_ptr != NULL && r->cq_ptr != MAP_FAILED && r->cq_ptr != r->sq_ptr) {
+    munmap(r->cq_ptr, r->cq_len);
+  }
+  if (r->sq_ptr != NULL && r->sq_ptr != MAP_FAILED) {
+    munmap(r->sq_ptr, r->sq_len);
+  }
+  close(r->fd);
+}
+
+// Returns 0 or an errno
+static int setupRing(struct ring *r, unsigned entries)
+{
+  struct io_uring_params p;
+  memset(&p, 0, sizeof(p));
+  memset(r, 0, sizeof(*r));
+  int fd = (int) syscall(__NR_io_uring_setup, entries, &p);
+  if (fd < 0) {
+    return errno;
+  }
+  r->fd = fd;
+  r->sq_entries = p.sq_entries;
+  r->sq_len = p.sq_off.array + p.sq_entries * sizeof(unsigned);
+  r->cq_len = p.cq_off.cqes + p.cq_entries * sizeof(struct io_uring_cqe);
+  if (p.features & IORING_FEAT_SINGLE_MMAP) {
+    if (r->cq_len > r->sq_len) {
+      r->sq_len = r->cq_len;
+    }
+    r->cq_len = r->sq_len;
+  }
+  r->sq_ptr = mmap(NULL, r->sq_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_SQ_RING);
+  if (r->sq_ptr == MAP_FAILED) {
+    int err = errno;
+    unmapRing(r);
+    return err;
+  }
+  if (p.features & IORING_FEAT_SINGLE_MMAP) {
+    r->cq_ptr = r->sq_ptr;
+  } else {
+    r->cq_ptr = mmap(NULL, r->cq_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_CQ_RING);
+    if (r->cq_ptr == MAP_FAILED) {
+      int err = errno;
+      unmapRing(r);
+      return err;
+    }
+  }
+  r->sqes_len = p.sq_entries * sizeof(struct io_uring_sqe);
+  r->sqes = mmap(NULL, r->sqes_len, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_SQES);
+  if (r->sqes == MAP_FAILED) {
+    int err = errno;
+    unmapRing(r);
+    return err;
+  }
+  r->sq_head = (unsigned *) ((char *) r->sq_ptr + p.sq_off.head);
+  r->sq_tail = (unsigned *) ((char *) r->sq_ptr + p.sq_off.tail);
+  r->sq_mask = (unsigned *) ((char *) r->sq_ptr + p.sq_off.ring_mask);
+  r->sq_array = (unsigned *) ((char *) r->sq_ptr + p.sq_off.array);
+  r->cq_head = (unsigned *) ((char *) r->cq_ptr + p.cq_off.head);
+  r->cq_tail = (unsigned *) ((char *) r->cq_ptr + p.cq_off.tail);
+  r->cq_mask = (unsigned *) ((char *) r->cq_ptr + p.cq_off.ring_mask);
+  r->cqes = (struct io_uring_cqe *) ((char *) r->cq_ptr + p.cq_off.cqes);
+  return 0;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    probe
+ * Signature: ()Z
+ *
+ * True if the kernel can create a ring and supports IORING_OP_READ and IORING_OP_WRITE (Linux 5.6+).
+ * The system calls can also be denied by a seccomp profile (containers).
+ */
+JNIEXPORT jboolean JNICALL Java_fr_micoq_unsafe_IoUring_probe(JNIEnv *env, jclass _ignore)
+{
+  struct ring r;
+  if (setupRing(&r, 2) != 0) {
+    return JNI_FALSE;
+  }
+  size_t len = sizeof(struct io_uring_probe) + 256 * sizeof(struct io_uring_probe_op);
+  struct io_uring_probe *probe = malloc(len);
+  jboolean supported = JNI_FALSE;
+  if (probe != NULL) {
+    memset(probe, 0, len);
+    if (syscall(__NR_io_uring_register, r.fd, IORING_REGISTER_PROBE, probe, 256) == 0) {
+      supported = probe->last_op >= IORING_OP_WRITE
+          && (probe->ops[IORING_OP_READ].flags & IO_URING_OP_SUPPORTED)
+          && (probe->ops[IORING_OP_WRITE].flags & IO_URING_OP_SUPPORTED);
+    }
+    free(probe);
+  }
+  unmapRing(&r);
+  return supported;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    create0
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_fr_micoq_unsafe_IoUring_create0(JNIEnv *env, jclass _ignore, jint entries)
+{
+  struct ring *r = malloc(sizeof(struct ring));
+  if (r == NULL) {
+    throwIOException(env, ENOMEM);
+    return 0;
+  }
+  int err = setupRing(r, (unsigned) entries);
+  if (err != 0) {
+    free(r);
+    throwIOException(env, err);
+    return 0;
+  }
+  return (jlong) (uintptr_t) r;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    entries
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_IoUring_entries(JNIEnv *env, jclass _ignore, jlong ring)
+{
+  return (jint) ((struct ring *) (uintptr_t) ring)->sq_entries;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    destroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_fr_micoq_unsafe_IoUring_destroy(JNIEnv *env, jclass _ignore, jlong ring)
+{
+  struct ring *r = (struct ring *) (uintptr_t) ring;
+  unmapRing(r);
+  free(r);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    prepare
+ * Signature: (JIIJIJJ)Z
+ *
+ * Queues a request in the submission ring without submitting it.
+ * Returns false if the submission ring is full.
+ */
+JNIEXPORT jboolean JNICALL Java_fr_micoq_unsafe_IoUring_prepare(JNIEnv *env, jclass _ignore, jlong ring,
+    jint op, jint fd, jlong addr, jint length, jlong offset, jlong userData)
+{
+  struct ring *r = (struct ring *) (uintptr_t) ring;
+  unsigned head = __atomic_load_n(r->sq_head, __ATOMIC_ACQUIRE);
+  unsigned tail = *r->sq_tail;
+  if (tail - head >= r->sq_entries) {
+    return JNI_FALSE;
+  }
+  unsigned index = tail & *r->sq_mask;
+  struct io_uring_sqe *sqe = &r->sqes[index];
+  memset(sqe, 0, sizeof(*sqe));
+  switch (op) {
+    case OP_READ:
+      sqe->opcode = IORING_OP_READ;
+      break;
+    case OP_WRITE:
+      sqe->opcode = IORING_OP_WRITE;
+      break;
+    default:
+      sqe->opcode = IORING_OP_NOP;
+      fd = -1;
+      break;
+  }
+  sqe->fd = fd;
+  sqe->addr = (unsigned long long) addr;
+  sqe->len = (unsigned) length;
+  sqe->off = (unsigned long long) offset;
+  sqe->user_data = (unsigned long long) userData;
+  r->sq_array[index] = index;
+  __atomic_store_n(r->sq_tail, tail + 1, __ATOMIC_RELEASE);
+  r->pending++;
+  return JNI_TRUE;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    submit
+ * Signature: (J)I
+ *
+ * Submits the prepared requests with a single system call, returns the number of
+ * requests consumed by the kernel (maybe not all of them). Returns 0 if the kernel
+ * is short of resources (EAGAIN, or EBUSY with completions to reap): the caller
+ * tries again later. On any other error, the requests not consumed are dropped from
+ * the submission ring (they will never complete) and an IOException is thrown.
+ */
+JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_IoUring_submit(JNIEnv *env, jclass _ignore, jlong ring)
+{
+  struct ring *r = (struct ring *) (uintptr_t) ring;
+  if (r->pending == 0) {
+    return 0;
+  }
+  int ret;
+  do {
+    ret = (int) syscall(__NR_io_uring_enter, r->fd, r->pending, 0, 0, NULL, 0);
+  } while (ret < 0 && errno == EINTR);
+  if (ret < 0) {
+    int err = errno;
+    if (err == EAGAIN || err == EBUSY) {
+      return 0;
+    }
+    // Rewinds the tail to the first entry the kernel didn't consume
+    unsigned head = __atomic_load_n(r->sq_head, __ATOMIC_ACQUIRE);
+    __atomic_store_n(r->sq_tail, head, __ATOMIC_RELEASE);
+    r->pending = 0;
+    throwIOException(env, err);
+    return 0;
+  }
+  r->pending -= (unsigned) ret;
+  return ret;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    await
+ * Signature: (J[J[I)I
+ *
+ * Waits for at least one completion and reaps up to userData.length completions.
+ * Returns the number of completions copied into the arrays, the results are the
+ * number of bytes transferred or -errno.
+ */
+JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_IoUring_await(JNIEnv *env, jclass _ignore, jlong ring,
+    jlongArray userData, jintArray results)
+{
+  struct ring *r = (struct ring *) (uintptr_t) ring;
+  jsize max = (*env)->GetArrayLength(env, userData);
+  unsigned head = *r->cq_head;
+  while (__atomic_load_n(r->cq_tail, __ATOMIC_ACQUIRE) == head) {
+    int ret = (int) syscall(__NR_io_uring_enter, r->fd, 0, 1, IORING_ENTER_GETEVENTS, NULL, 0);
+    if (ret < 0 && errno != EINTR && errno != EAGAIN) {
+      throwIOException(env, errno);
+      return 0;
+    }
+  }
+  jlong data[64];
+  jint res[64];
+  jsize count = 0;
+  unsigned tail = __atomic_load_n(r->cq_tail, __ATOMIC_ACQUIRE);
+  while (head != tail && count < max && count < 64) {
+    struct io_uring_cqe *cqe = &r->cqes[head & *r->cq_mask];
+    data[count] = (jlong) cqe->user_data;
+    res[count] = (jint) cqe->res;
+    count++;
+    head++;
+  }
+  __atomic_store_n(r->cq_head, head, __ATOMIC_RELEASE);
+  (*env)->SetLongArrayRegion(env, userData, 0, count, data);
+  (*env)->SetIntArrayRegion(env, results, 0, count, res);
+  return count;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    descriptor0
+ * Signature: (Ljava/io/FileDescriptor;)I
+ */
+JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_IoUring_descriptor0(JNIEnv *env, jclass _ignore, jobject fileDescriptor)
+{
+  jclass class_fdesc = (*env)->FindClass(env, "java/io/FileDescriptor");
+  if (class_fdesc == NULL) {
+    return -1;
+  }
+  jfieldID field_fd = (*env)->GetFieldID(env, class_fdesc, "fd", "I");
+  if (field_fd == NULL) {
+    return -1;
+  }
+  return (*env)->GetIntField(env, fileDescriptor, field_fd);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_IoUring
+ * Method:    strerror
+ * Signature: (I)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_fr_micoq_unsafe_IoUring_strerror(JNIEnv *env, jclass _ignore, jint err)
+{
+  return (*env)->NewStringUTF(env, strerror(err));
+}
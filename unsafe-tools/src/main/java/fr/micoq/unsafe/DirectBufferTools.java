@@ -95,6 +95,15 @@ public class DirectBufferTools {
     return buffy.slice().order(ByteOrder.nativeOrder());
   }
   
+  // Native address of the first byte of a direct buffer (not of its position)
+  public static long address(ByteBuffer buffer) {
+    try {
+      return (Long)getAddress.invoke(buffer);
+    } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+      throw new IllegalArgumentException("Not a direct buffer", e);
+    }
+  }
+  
   public static void freeBuffer(ByteBuffer buffer) {
     if(!buffer.isDirect()) {
       return;
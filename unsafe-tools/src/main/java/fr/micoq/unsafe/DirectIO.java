@@ -30,4 +30,29 @@ public class DirectIO {
   }
 
   public static native FileDescriptor openDirect(String filename, boolean readOnly) throws IOException;
+  
+  /*
+   * Allocates the blocks of a part of a file without changing its size (fallocate() with
+   * FALLOC_FL_KEEP_SIZE), false if the filesystem doesn't support it or is full.
+   */
+  public static native boolean preallocate(FileDescriptor fd, long offset, long length) throws IOException;
+  
+  // Releases the blocks of a part of a file without changing its size (FALLOC_FL_PUNCH_HOLE)
+  public static native boolean deallocate(FileDescriptor fd, long offset, long length) throws IOException;
+  
+  /*
+   * Writes back the whole filesystem of the file (syncfs()), false if the kernel doesn't support it.
+   * Before Linux 5.8, the writeback errors of the files are not reported.
+   */
+  public static native boolean syncfs(FileDescriptor fd) throws IOException;
+  
+  public static final int COPY_UNSUPPORTED = 0; // Nothing copied, the file must be copied by the caller
+  public static final int COPY_RANGE = 1; // Copied in the kernel (copy_file_range())
+  public static final int COPY_CLONE = 2; // Blocks shared with the source (FICLONE)
+  
+  /*
+   * Copies the first bytes of a file into an empty file without going through the user space
+   * (and its page cache when the filesystem can share or copy the blocks).
+   */
+  public static native int copyFile(FileDescriptor source, FileDescriptor target, long length) throws IOException;
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.unsafe;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+/*
+ * An io_uring submission/completion ring (Linux 5.6+).
+ *
+ * Not thread-safe: prepare() and submit() must be serialized by the caller
+ * and the completions must be reaped by a single thread with await().
+ */
+public class IoUring implements Closeable {
+
+  // Same values as the OP_* defines of IoUring.c
+  private static final int OP_READ = 0;
+  private static final int OP_WRITE = 1;
+  private static final int OP_NOP = 2;
+
+  private static final boolean SUPPORTED = load();
+
+  private final long ring;
+  private final int entries;
+  private boolean closed;
+
+  private IoUring(long ring) {
+    this.ring = ring;
+    this.entries = entries(ring);
+    this.closed = false;
+  }
+
+  private static boolean load() {
+    return AccessController.doPrivileged((PrivilegedAction<Boolean>) () -> {
+      try {
+        // libIoUring.so
+        System.loadLibrary("iouring");
+      } catch (UnsatisfiedLinkError e) {
+        return false;
+      }
+      return probe();
+    });
+  }
+
+  // False if the library, the kernel or the seccomp profile doesn't allow io_uring
+  public static boolean isSupported() {
+    return SUPPORTED;
+  }
+
+  public static IoUring create(int entries) throws IOException {
+    if(!SUPPORTED)
+      throw new IOException("io_uring is not supported");
+    return new IoUring(create0(entries));
+  }
+
+  private static native boolean probe();
+  private static native long create0(int entries) throws IOException;
+  private static native int entries(long ring);
+  private static native void destroy(long ring);
+  private static native boolean prepare(long ring, int op, int fd, long addr, int length, long offset, long userData);
+  private static native int submit(long ring) throws IOException;
+  private static native int await(long ring, long[] userData, int[] results) throws IOException;
+  private static native int descriptor0(FileDescriptor fd);
+  private static native String strerror(int errno);
+
+  // The numeric descriptor to give to prepareRead() and prepareWrite()
+  public static int descriptor(FileDescriptor fd) {
+    return descriptor0(fd);
+  }
+
+  // The message of an error returned as a negative result
+  public static String errorMessage(int result) {
+    return strerror(-result);
+  }
+
+  // Size of the submission ring
+  public int getEntries() {
+    return this.entries;
+  }
+
+  /*
+   * The prepare methods queue a request without submitting it, they return false
+   * if the submission ring is full. The address must stay valid until the completion.
+   */
+  public boolean prepareRead(int fd, long addr, int length, long offset, long userData) {
+    return prepare(this.ring, OP_READ, fd, addr, length, offset, userData);
+  }
+
+  public boolean prepareWrite(int fd, long addr, int length, long offset, long userData) {
+    return prepare(this.ring, OP_WRITE, fd, addr, length, offset, userData);
+  }
+
+  public boolean prepareNop(long userData) {
+    return prepare(this.ring, OP_NOP, -1, 0L, 0, 0L, userData);
+  }
+
+  /*
+   * Submits the prepared requests with a single system call. Returns the number of
+   * requests consumed (in the order of preparation), 0 if the kernel is short of resources
+   * (try again after some completions). On failure, the requests not consumed are dropped.
+   */
+  public int submit() throws IOException {
+    return submit(this.ring);
+  }
+
+  /*
+   * Blocks until at least one request is completed. Returns the number of completions
+   * copied in the arrays, a result is the number of bytes transferred or -errno.
+   */
+  public int await(long[] userData, int[] results) throws IOException {
+    return await(this.ring, userData, results);
+  }
+
+  @Override
+  public void close() {
+    if(!this.closed) {
+      this.closed = true;
+      destroy(this.ring);
+    }
+  }
+}
@@ -20,8 +20,14 @@ import java.io.EOFException;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import sun.misc.Unsafe;
 
 /*
  * a true 64 (63 :p) bits memory-mapped file with madvise capacity
@@ -33,6 +39,7 @@ public class MappedMemory implements Closeable, AutoCloseable {
   public static final int MADV_RANDOM = 2;
   public static final int MADV_WILLNEED = 3;
   public static final int MADV_DONTNEED = 4;
+  public static final int MADV_COLD = 6; // Linux 5.4+
   
   public static final int FADV_NORMAL = 0;
   public static final int FADV_RANDOM = 1;
@@ -41,6 +48,19 @@ public class MappedMemory implements Closeable, AutoCloseable {
   public static final int FADV_DONTNEED = 4;
   public static final int FADV_NOREUSE = 5;
   
+  // Flags for mapFile()
+  public static final int MAP_POPULATE = 1; // mmap() with MAP_POPULATE
+  public static final int MAP_HUGEPAGE = 2; // 2MB aligned address and MADV_HUGEPAGE
+  public static final int MAP_POPULATE_READ = 4; // MADV_POPULATE_READ after mmap() (touch the pages on old kernels)
+  
+  // What to do with the page cache of the file when the memory is closed
+  public static final int CACHE_DROP_ALWAYS = 0; // FADV_DONTNEED on the whole file
+  public static final int CACHE_DROP_DELETED = 1; // FADV_DONTNEED only if the file is deleted
+  public static final int CACHE_DROP_NEVER = 2;
+  
+  private static final Unsafe UNSAFE = UnsafeAccessor.getUnsafe();
+  private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+  
   static {
     AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
       // libMappedMemory.so
@@ -49,114 +69,592 @@ public class MappedMemory implements Closeable, AutoCloseable {
     });
   }
   
+  private static final long PAGE_SIZE = pageSize();
+  
+  // Cleared on the first cachestat() failure (kernels older than 6.5)
+  private static volatile boolean cachestatSupported = true;
+  // Cleared on the first MADV_COLD failure (kernels older than 5.4)
+  private static volatile boolean coldSupported = true;
+  
+  // Size of the regions advised from the heatmap
+  public static final int HEAT_REGION_PAGES = 16;
+  
   private long length;
   private long addr;
-  private boolean closed;
-  private boolean dropCacheOnClose;
+  private volatile boolean closed;
+  private int cacheDropPolicy;
+  private boolean locked;
   private FileDescriptor fileDescriptor;
+  private List<Runnable> closeListeners;
+  private volatile long heatAddr; // One saturated counter (byte) per page, 0 when the heatmap is disabled
+  private long heatPages;
+  private int heatSampleRate;
   
   private MappedMemory(long addr, long length, FileDescriptor fileDescriptor) {
     this.addr = addr;
     this.length = length;
     this.closed = false;
     this.fileDescriptor = fileDescriptor;
-    this.dropCacheOnClose = true;
+    this.cacheDropPolicy = CACHE_DROP_ALWAYS;
+    this.locked = false;
+    this.closeListeners = new ArrayList<>();
+    this.heatAddr = 0L;
+    this.heatPages = 0L;
+    this.heatSampleRate = 0;
+  }
+  
+  public static MappedMemory mapFile(String path) throws IOException {
+    return mapFile(path, 0);
   }
   
-  public static native MappedMemory mapFile(String path) throws IOException;
+  public static native MappedMemory mapFile(String path, int flags) throws IOException;
   
   private static native void madvise(long addr, long length, int advice) throws IOException;
   private static native void fadvise(FileDescriptor fd, long offset, long length, int advice) throws IOException;
-  private static native int munmap(long addr, long length) throws IOException;
+  static native int munmap(long addr, long length) throws IOException;
+  private static native void populate(long addr, long length) throws IOException;
+  private static native void mlock(long addr, long length, boolean onFault) throws IOException;
+  private static native void munlock(long addr, long length) throws IOException;
+  private static native long residentPages(long addr, long length) throws IOException;
+  private static native void residency0(long addr, long length, byte[] residency) throws IOException;
+  private static native long freeMemory0();
+  private static native ByteBuffer allocateAnonymous0(long length, boolean hugePages) throws IOException;
+  private static native ByteBuffer wrapAnonymous0(long addr, long length);
+  private static native long cachedPages(FileDescriptor fd) throws IOException;
+  private static native long mappingCount0();
+  private static native long linkCount(FileDescriptor fd) throws IOException;
   private static native int pageSize();
   private static native void closeDescriptor(FileDescriptor fd) throws IOException;
   
   public byte getByte(long position) throws EOFException {
-    if(position < 0)
-      throw new BufferUnderflowException();
-    if(position >= this.length)
-      throw new EOFException("Read past EOF");
-    if(this.closed)
-      throw new EOFException("Cannot read a closed mapped memory");
-    return getByteUnsafe(position);
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(position < 0)
+        throw new BufferUnderflowException();
+      if(position >= this.length)
+        throw new EOFException("Read past EOF");
+      if(this.closed)
+        throw new EOFException("Cannot read a closed mapped memory");
+      return getByteUnsafe(position);
+    } finally {
+      reader.exit();
+    }
   }
   
   public int getBytes(byte[] out, int outOffset, long position, int size) throws EOFException {
-    if(out == null)
-      throw new NullPointerException("Cannot copy to a null array");
-    if(position < 0)
-      throw new BufferUnderflowException();
-    if(position >= this.length || this.length - position < size)
-      throw new EOFException(String.format("Read past EOF, offset: %d, size: %d, buffer size: %d", position,size, this.length));
-    if(this.closed)
-      throw new EOFException("Cannot read a closed mapped memory");
-    return getBytesUnsafe(out,outOffset,position,size);
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(out == null)
+        throw new NullPointerException("Cannot copy to a null array");
+      if(position < 0)
+        throw new BufferUnderflowException();
+      if(position >= this.length || this.length - position < size)
+        throw new EOFException(String.format("Read past EOF, offset: %d, size: %d, buffer size: %d", position,size, this.length));
+      if(this.closed)
+        throw new EOFException("Cannot read a closed mapped memory");
+      return getBytesUnsafe(out,outOffset,position,size);
+    } finally {
+      reader.exit();
+    }
   }
   
   public byte getByteUnsafe(long offset) {
-    return UnsafeAccessor.getUnsafe().getByte(this.addr+offset);
+    return UNSAFE.getByte(this.addr+offset);
+  }
+  
+  /*
+   * Single load primitive reads, the caller must check the bounds and read
+   * between MappedMemoryReader.enter() and exit(), like the other *Unsafe() methods.
+   * Big-endian like Lucene's DataInput.
+   */
+  
+  public short getShortUnsafe(long offset) {
+    short v = UNSAFE.getShort(this.addr+offset);
+    return NATIVE_BIG_ENDIAN ? v : Short.reverseBytes(v);
+  }
+  
+  public int getIntUnsafe(long offset) {
+    int v = UNSAFE.getInt(this.addr+offset);
+    return NATIVE_BIG_ENDIAN ? v : Integer.reverseBytes(v);
+  }
+  
+  public long getLongUnsafe(long offset) {
+    long v = UNSAFE.getLong(this.addr+offset);
+    return NATIVE_BIG_ENDIAN ? v : Long.reverseBytes(v);
   }
   
   public int getBytesUnsafe(byte[] out, int outOffset, long offset, int size) {
     int read = Math.min(size,out.length-outOffset);
     // We can't make a view/slice here so we don't have a choice to copy
-    UnsafeAccessor.getUnsafe().copyMemory(null, this.addr+offset, out, UnsafeAccessor.ARRAY_BYTE_BASE_OFFSET+outOffset, read);
+    UNSAFE.copyMemory(null, this.addr+offset, out, UnsafeAccessor.ARRAY_BYTE_BASE_OFFSET+outOffset, read);
     return read;
   }
   
+  /*
+   * Bulk copies of primitive arrays, the caller must check the bounds.
+   * The values are decoded in the same (big-endian) order as getIntUnsafe()
+   * and getLongUnsafe(): one copy for the whole array then a swap pass.
+   */
+  
+  public void getIntsUnsafe(int[] out, int outOffset, long offset, int count) {
+    UNSAFE.copyMemory(null, this.addr+offset, out, UnsafeAccessor.ARRAY_INT_BASE_OFFSET+((long)outOffset << 2), (long)count << 2);
+    if(!NATIVE_BIG_ENDIAN) {
+      for(int i = outOffset, end = outOffset + count; i < end; ++i) {
+        out[i] = Integer.reverseBytes(out[i]);
+      }
+    }
+  }
+  
+  public void getLongsUnsafe(long[] out, int outOffset, long offset, int count) {
+    UNSAFE.copyMemory(null, this.addr+offset, out, UnsafeAccessor.ARRAY_LONG_BASE_OFFSET+((long)outOffset << 3), (long)count << 3);
+    if(!NATIVE_BIG_ENDIAN) {
+      for(int i = outOffset, end = outOffset + count; i < end; ++i) {
+        out[i] = Long.reverseBytes(out[i]);
+      }
+    }
+  }
+  
+  public void getFloatsUnsafe(float[] out, int outOffset, long offset, int count) {
+    UNSAFE.copyMemory(null, this.addr+offset, out, UnsafeAccessor.ARRAY_FLOAT_BASE_OFFSET+((long)outOffset << 2), (long)count << 2);
+    if(!NATIVE_BIG_ENDIAN) {
+      for(int i = outOffset, end = outOffset + count; i < end; ++i) {
+        out[i] = Float.intBitsToFloat(Integer.reverseBytes(Float.floatToRawIntBits(out[i])));
+      }
+    }
+  }
+  
+  // One of the MADV_* values
+  public void advise(int advice) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(this.closed || this.addr == 0)
+        return;
+      MappedMemory.madvise(this.addr, this.length, advice);
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  // One of the MADV_* values on a part of the mapping (the range is rounded to the pages)
+  public void advise(long offset, long size, int advice) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      checkRange(offset, size);
+      if(this.closed || size == 0)
+        return;
+      MappedMemory.madvise(this.addr + offset, size, advice);
+    } finally {
+      reader.exit();
+    }
+  }
+  
   public void madviseDefault() throws IOException {
-    if(this.closed || this.addr == 0)
-      return;
-    MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_NORMAL);
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(this.closed || this.addr == 0)
+        return;
+      MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_NORMAL);
+    } finally {
+      reader.exit();
+    }
   }
   
   public void madviseRandom() throws IOException {
-    if(this.closed || this.addr == 0)
-      return;
-    MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_RANDOM);
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(this.closed || this.addr == 0)
+        return;
+      MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_RANDOM);
+    } finally {
+      reader.exit();
+    }
   }
   
   public void madviseSequential() throws IOException {
-    if(this.closed || this.addr == 0)
-      return;
-    MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_SEQUENTIAL);
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(this.closed || this.addr == 0)
+        return;
+      MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_SEQUENTIAL);
+    } finally {
+      reader.exit();
+    }
   }
   
   public void preload() throws IOException {
-    if(this.closed || this.addr == 0)
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(this.closed || this.addr == 0)
+        return;
+      MappedMemory.populate(this.addr, this.length);
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  // Populates a part of the mapping (the range is rounded to the pages)
+  public void preload(long offset, long size) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      checkRange(offset, size);
+      if(this.closed || size == 0)
+        return;
+      MappedMemory.populate(this.addr + offset, size);
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  // Bytes of the range in the page cache (the range is rounded to the pages)
+  public long residentBytes(long offset, long size) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      checkRange(offset, size);
+      if(this.closed || size == 0)
+        return 0L;
+      return Math.min(MappedMemory.residentPages(this.addr + offset, size) * PAGE_SIZE, size);
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  /*
+   * A buffer on a part of the mapping, to give the memory to the APIs taking a direct buffer
+   * (without copy). The caller must use the buffer between MappedMemoryReader.enter() and exit().
+   */
+  public ByteBuffer view(long offset, int size) throws EOFException {
+    checkRange(offset, size);
+    return MappedMemory.wrapAnonymous0(this.addr + offset, size).order(ByteOrder.nativeOrder());
+  }
+  
+  /*
+   * Removes a part of the file from the mapping and from the page cache (MADV_DONTNEED then
+   * FADV_DONTNEED). The pages still mapped by other processes stay in the cache.
+   */
+  public void evict(long offset, long size) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      checkRange(offset, size);
+      if(this.closed || size == 0)
+        return;
+      MappedMemory.madvise(this.addr + offset, size, MappedMemory.MADV_DONTNEED);
+      MappedMemory.fadvise(this.fileDescriptor, offset, size, MappedMemory.FADV_DONTNEED);
+    } finally {
+      reader.exit();
+    }
+  }
+
+  /*
+   * Residency of the pages of a range (rounded to the pages), one byte per page:
+   * 1 if the page is in the page cache, 0 otherwise.
+   */
+  public byte[] residency(long offset, long size) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      checkRange(offset, size);
+      long first = offset / PAGE_SIZE;
+      long last = (offset + size + PAGE_SIZE - 1) / PAGE_SIZE;
+      byte[] residency = new byte[(int)(last - first)];
+      if(this.closed || size == 0)
+        return residency;
+      MappedMemory.residency0(this.addr + offset, size, residency);
+      return residency;
+    } finally {
+      reader.exit();
+    }
+  }
+
+  /*
+   * Evicts the pages of a range which were not resident in a previous call to residency()
+   * on the same range: the pages already in the cache before stay there.
+   */
+  public void evictCold(long offset, long size, byte[] residency) throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      checkRange(offset, size);
+      if(this.closed || size == 0)
+        return;
+      long first = offset / PAGE_SIZE;
+      int pages = (int)((offset + size + PAGE_SIZE - 1) / PAGE_SIZE - first);
+      int i = 0;
+      while(i < pages) {
+        if(residency[i] != 0) {
+          ++i;
+          continue;
+        }
+        // One call for each run of cold pages
+        int run = i;
+        while(run < pages && residency[run] == 0)
+          ++run;
+        long start = (first + i) * PAGE_SIZE;
+        long end = Math.min((first + run) * PAGE_SIZE, this.length);
+        MappedMemory.madvise(this.addr + start, end - start, MappedMemory.MADV_DONTNEED);
+        MappedMemory.fadvise(this.fileDescriptor, start, end - start, MappedMemory.FADV_DONTNEED);
+        i = run;
+      }
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  private void checkRange(long offset, long size) throws EOFException {
+    if(offset < 0 || size < 0 || offset + size > this.length)
+      throw new EOFException("Range [" + offset + ", " + (offset + size) + ") out of the mapping of " + this.length + " bytes");
+  }
+  
+  // Bytes of the file in the page cache, with cachestat() or mincore() on older kernels
+  public long cachedBytes() throws IOException {
+    MappedMemoryReader reader = MappedMemoryReader.current();
+    reader.enter();
+    try {
+      if(this.closed || this.addr == 0)
+        return 0L;
+      if(cachestatSupported) {
+        long pages = MappedMemory.cachedPages(this.fileDescriptor);
+        if(pages >= 0)
+          return Math.min(pages * PAGE_SIZE, this.length);
+        cachestatSupported = false;
+      }
+      return residentBytes(0, this.length);
+    } finally {
+      reader.exit();
+    }
+  }
+  
+  // Number of memory mappings of the process (see vm.max_map_count), -1 if unknown
+  public static long mappingCount() {
+    return MappedMemory.mappingCount0();
+  }
+  
+  /*
+   * Page-aligned anonymous memory, not accounted in the direct memory of the JVM.
+   * Must be released with freeAnonymous() (the buffer has no cleaner).
+   */
+  public static ByteBuffer allocateAnonymous(int length, boolean hugePages) throws IOException {
+    return MappedMemory.allocateAnonymous0(length, hugePages).order(ByteOrder.nativeOrder());
+  }
+  
+  /*
+   * A new buffer on a part of an anonymous memory. Unlike a slice, it doesn't reference
+   * the whole memory: the duplicates and the slices of this buffer keep it reachable.
+   */
+  public static ByteBuffer wrapAnonymous(long address, int length) {
+    return MappedMemory.wrapAnonymous0(address, length).order(ByteOrder.nativeOrder());
+  }
+  
+  public static void freeAnonymous(ByteBuffer buffer) throws IOException {
+    MappedMemory.munmap(DirectBufferTools.address(buffer), buffer.capacity());
+  }
+  
+  // Free RAM of the host (the page cache is not counted), -1 if unknown
+  public static long freeMemory() {
+    return MappedMemory.freeMemory0();
+  }
+  
+  /*
+   * Enables the sampling of the accesses (one read out of sampleRate, see recordAccess()).
+   * Must be called before the memory is shared with the readers.
+   */
+  public synchronized void enableHeatmap(int sampleRate) {
+    if(this.closed || this.addr == 0 || this.heatAddr != 0 || sampleRate <= 0)
+      return;
+    this.heatPages = (this.length + PAGE_SIZE - 1) / PAGE_SIZE;
+    long counters = UNSAFE.allocateMemory(this.heatPages);
+    UNSAFE.setMemory(counters, this.heatPages, (byte)0);
+    this.heatSampleRate = sampleRate;
+    this.heatAddr = counters; // Published once cleared
+  }
+  
+  // 0 if the heatmap is disabled
+  public int getHeatmapSampleRate() {
+    return this.heatSampleRate;
+  }
+  
+  /*
+   * Counts a sampled access. The increment is not atomic, a lost update is not a problem.
+   * Called inside a read (see MappedMemoryReader): the counters are freed with the mapping,
+   * once no reader can still write to them.
+   */
+  public void recordAccess(long offset) {
+    long page = offset / PAGE_SIZE;
+    long counters = this.heatAddr;
+    if(counters == 0 || page < 0 || page >= this.heatPages)
+      return;
+    long counter = counters + page;
+    int heat = UNSAFE.getByte(counter) & 0xFF;
+    if(heat != 0xFF)
+      UNSAFE.putByte(counter, (byte)(heat + 1));
+  }
+  
+  /*
+   * Advises the kernel from the accesses sampled since the previous call, by regions of
+   * HEAT_REGION_PAGES pages: MADV_WILLNEED on the hot regions (contiguous regions in a
+   * single call so the pages are read with large I/Os) and MADV_COLD on the regions
+   * which just became cold. Then the counters are halved.
+   * Returns the number of hot regions (result[0]) and cold regions (result[1]).
+   */
+  public synchronized void adviseFromHeatmap(int hotThreshold, long[] result) throws IOException {
+    result[0] = 0L;
+    result[1] = 0L;
+    if(this.closed || this.heatAddr == 0)
       return;
-    MappedMemory.madvise(this.addr, this.length, MappedMemory.MADV_WILLNEED);
-    long pos = 0;
-    int pageSize = pageSize();
-    while(pos < this.length) {
-      getByteUnsafe(pos);
-      pos += pageSize;
+    long regions = (this.heatPages + HEAT_REGION_PAGES - 1) / HEAT_REGION_PAGES;
+    long hotStart = -1L;
+    long coldStart = -1L;
+    for(long region = 0; region <= regions; ++region) {
+      boolean hot = false;
+      boolean cold = false;
+      if(region < regions) {
+        long before = 0L;
+        long after = 0L;
+        long first = region * HEAT_REGION_PAGES;
+        long last = Math.min(first + HEAT_REGION_PAGES, this.heatPages);
+        for(long page = first; page < last; ++page) {
+          int heat = UNSAFE.getByte(this.heatAddr + page) & 0xFF;
+          before += heat;
+          after += heat >>> 1;
+          UNSAFE.putByte(this.heatAddr + page, (byte)(heat >>> 1));
+        }
+        hot = before >= hotThreshold;
+        cold = before > 0 && after == 0;
+      }
+      if(hot && hotStart < 0)
+        hotStart = region;
+      if(!hot && hotStart >= 0) {
+        adviseRegions(hotStart, region, MappedMemory.MADV_WILLNEED);
+        result[0] += region - hotStart;
+        hotStart = -1L;
+      }
+      if(cold && coldStart < 0)
+        coldStart = region;
+      if(!cold && coldStart >= 0) {
+        if(coldSupported) {
+          try {
+            adviseRegions(coldStart, region, MappedMemory.MADV_COLD);
+            result[1] += region - coldStart;
+          } catch (IOException e) {
+            coldSupported = false;
+          }
+        }
+        coldStart = -1L;
+      }
     }
   }
   
-  public void close() {
-    if(this.closed)
+  private void adviseRegions(long from, long to, int advice) throws IOException {
+    long start = from * HEAT_REGION_PAGES * PAGE_SIZE;
+    long end = Math.min(to * HEAT_REGION_PAGES * PAGE_SIZE, this.length);
+    MappedMemory.madvise(this.addr + start, end - start, advice);
+  }
+  
+  // One of the CACHE_DROP_* values
+  public synchronized void setCacheDropPolicy(int policy) {
+    this.cacheDropPolicy = policy;
+  }
+  
+  // Pins the pages in RAM, see mlock2(MLOCK_ONFAULT)
+  public synchronized void lock(boolean onFault) throws IOException {
+    if(this.closed || this.addr == 0 || this.locked)
       return;
+    MappedMemory.mlock(this.addr, this.length, onFault);
+    this.locked = true;
+  }
+  
+  public synchronized void unlock() throws IOException {
+    if(this.closed || !this.locked)
+      return;
+    MappedMemory.munlock(this.addr, this.length);
+    this.locked = false;
+  }
+  
+  public synchronized boolean isLocked() {
+    return this.locked;
+  }
+  
+  // The listeners are called once, after the close (outside of the lock of this memory)
+  public void addCloseListener(Runnable listener) {
+    synchronized(this) {
+      if(!this.closed) {
+        this.closeListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+  
+  /*
+   * Marks the memory closed, then it's reclaimed (unmapped, with its heatmap and its descriptor)
+   * once no reader can still be inside a read of it: immediately when nobody reads it,
+   * otherwise by the reclaimer (see MappedMemoryReclaimer). A reader which entered before
+   * the close still reads the file, a later one sees isClosed().
+   * This keeps the reads free of atomic operations and locks.
+   */
+  public void close() {
+    List<Runnable> listeners;
+    synchronized(this) {
+      if(this.closed)
+        return;
+      // Published before the retirement so the readers of the next epochs see it
+      this.closed = true;
+      listeners = this.closeListeners;
+      this.closeListeners = null;
+    }
+    MappedMemoryReclaimer.retire(this);
+    for(Runnable listener : listeners) {
+      listener.run();
+    }
+  }
+  
+  // Under the lock of the memory, like the other operations which don't enter a read
+  synchronized void reclaim() {
     if(this.addr != 0) {
       try {
         MappedMemory.munmap(this.addr, this.length);
       } catch (IOException e) {
         // ignore
       }
+      this.locked = false; // The lock goes with the mapping
     }
-    if(this.dropCacheOnClose) {
-      try {
+    long counters = this.heatAddr;
+    if(counters != 0) {
+      this.heatAddr = 0L;
+      UNSAFE.freeMemory(counters);
+    }
+    /*
+     * The pages still mapped elsewhere (by another mapping of the same file) are not
+     * dropped by FADV_DONTNEED, only the pages of the unmapped ranges are.
+     */
+    try {
+      if(this.cacheDropPolicy == CACHE_DROP_ALWAYS ||
+          (this.cacheDropPolicy == CACHE_DROP_DELETED && MappedMemory.linkCount(this.fileDescriptor) == 0)) {
         MappedMemory.fadvise(this.fileDescriptor, 0, 0, MappedMemory.FADV_DONTNEED);
-      } catch (IOException e) {
-        // ignore
       }
+    } catch (IOException e) {
+      // ignore
     }
     try {
       MappedMemory.closeDescriptor(this.fileDescriptor);
     } catch (IOException e) {
       // ignore
     }
-    this.closed = true;
+  }
+  
+  // A plain (non atomic) volatile load, cheap enough to be checked on each read
+  public boolean isClosed() {
+    return this.closed;
   }
 
   public long getLength() {
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.unsafe;
+
+import sun.misc.Unsafe;
+
+/*
+ * The epoch published by a thread while it reads a mapped memory (see MappedMemoryReclaimer).
+ * A read is enclosed in enter() and exit(), between the two the memory is not unmapped
+ * even if it's closed: the reader checks isClosed() once inside, then reads freely.
+ *
+ * There is one reader per thread, owned by the thread: enter() and exit() are stores
+ * (no read-modify-write, no lock) and can be nested. An input can keep the reader of the
+ * thread which uses it and check isCurrent() instead of looking up the thread local.
+ */
+public final class MappedMemoryReader {
+
+  private static final Unsafe UNSAFE = UnsafeAccessor.getUnsafe();
+  private static final long EPOCH_OFFSET;
+
+  static {
+    try {
+      EPOCH_OFFSET = UNSAFE.objectFieldOffset(MappedMemoryReader.class.getDeclaredField("epoch"));
+    } catch (NoSuchFieldException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static final ThreadLocal<MappedMemoryReader> current = ThreadLocal.withInitial(() -> {
+    MappedMemoryReader reader = new MappedMemoryReader(Thread.currentThread());
+    MappedMemoryReclaimer.register(reader);
+    return reader;
+  });
+
+  final Thread thread;
+  volatile long epoch; // 0 outside of a read, only written by the thread
+  private int depth;
+
+  private MappedMemoryReader(Thread thread) {
+    this.thread = thread;
+    this.epoch = 0L;
+    this.depth = 0;
+  }
+
+  public static MappedMemoryReader current() {
+    return current.get();
+  }
+
+  public boolean isCurrent() {
+    return this.thread == Thread.currentThread();
+  }
+
+  /*
+   * Publishes the current epoch. The volatile store (StoreLoad barrier) keeps the next loads
+   * (the closed flag and the memory) after it, for the compiler and for the CPU: a reader
+   * either sees the memory closed or is seen by the reclaimer.
+   */
+  public void enter() {
+    if(this.depth++ == 0)
+      this.epoch = MappedMemoryReclaimer.epoch();
+  }
+
+  // The loads of the read are done before the epoch is cleared (release store)
+  public void exit() {
+    if(--this.depth == 0)
+      UNSAFE.putOrderedLong(this, EPOCH_OFFSET, 0L);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Michaël Coquard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.micoq.unsafe;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Epoch-based reclamation of the closed mapped memories (the mapping, the heatmap and
+ * the descriptor, see MappedMemory.reclaim()).
+ *
+ * A reader publishes the global epoch when it enters a read and clears it when it leaves
+ * (see MappedMemoryReader). A closed memory is retired with the current epoch, then the
+ * epoch moves forward: a reader which published a later epoch sees the memory closed.
+ * The memory is reclaimed once every published epoch is past its retirement, by the closing
+ * thread when no reader is in the way, otherwise by the reclaimer thread.
+ *
+ * The epochs, the closed flag and the global epoch are volatile: the store of a reader and
+ * its next load of the closed flag are not reordered (StoreLoad barrier), the same for
+ * the close and the scan of the epochs. So a reader either sees the memory closed or is
+ * seen by the scan.
+ */
+final class MappedMemoryReclaimer {
+
+  private static final long MIN_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final AtomicLong epoch = new AtomicLong(1L);
+  private static final ConcurrentLinkedQueue<MappedMemoryReader> readers = new ConcurrentLinkedQueue<>();
+  private static final List<Retired> retired = new ArrayList<>(); // Guarded by itself
+
+  static {
+    AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+      Thread thread = new Thread(MappedMemoryReclaimer::reclaim, "mapped-memory-reclaimer");
+      thread.setDaemon(true);
+      thread.start();
+      return null;
+    });
+  }
+
+  private static final class Retired {
+    private final MappedMemory memory;
+    private final long epoch;
+
+    Retired(MappedMemory memory, long epoch) {
+      this.memory = memory;
+      this.epoch = epoch;
+    }
+  }
+
+  private MappedMemoryReclaimer() {
+  }
+
+  static long epoch() {
+    return epoch.get();
+  }
+
+  static void register(MappedMemoryReader reader) {
+    readers.add(reader);
+  }
+
+  // Called once the memory is marked closed
+  static void retire(MappedMemory memory) {
+    long retiredEpoch = epoch.getAndIncrement();
+    if(retiredEpoch < oldestReader()) {
+      memory.reclaim();
+      return;
+    }
+    synchronized(retired) {
+      retired.add(new Retired(memory, retiredEpoch));
+      retired.notifyAll();
+    }
+  }
+
+  // Number of closed memories waiting for their readers
+  static int pending() {
+    synchronized(retired) {
+      return retired.size();
+    }
+  }
+
+  // The oldest published epoch, Long.MAX_VALUE when no thread is reading
+  private static long oldestReader() {
+    long oldest = Long.MAX_VALUE;
+    for(Iterator<MappedMemoryReader> it = readers.iterator(); it.hasNext();) {
+      MappedMemoryReader reader = it.next();
+      long readerEpoch = reader.epoch;
+      if(readerEpoch != 0L)
+        oldest = Math.min(oldest, readerEpoch);
+      else if(!reader.thread.isAlive())
+        it.remove();
+    }
+    return oldest;
+  }
+
+  private static void reclaim() {
+    long waitNanos = MIN_WAIT_NANOS;
+    List<Retired> reclaimable = new ArrayList<>();
+    while(true) {
+      synchronized(retired) {
+        while(retired.isEmpty()) {
+          waitNanos = MIN_WAIT_NANOS;
+          try {
+            retired.wait();
+          } catch (InterruptedException e) {
+            // ignore
+          }
+        }
+      }
+      // The readers leave quickly, wait longer for a stuck one (page fault...)
+      LockSupport.parkNanos(waitNanos);
+      long oldest = oldestReader();
+      synchronized(retired) {
+        for(Iterator<Retired> it = retired.iterator(); it.hasNext();) {
+          Retired range = it.next();
+          if(range.epoch < oldest) {
+            reclaimable.add(range);
+            it.remove();
+          }
+        }
+      }
+      for(Retired range : reclaimable) {
+        range.memory.reclaim();
+      }
+      waitNanos = reclaimable.isEmpty() ? Math.min(waitNanos * 2, MAX_WAIT_NANOS) : MIN_WAIT_NANOS;
+      reclaimable.clear();
+    }
+  }
+}
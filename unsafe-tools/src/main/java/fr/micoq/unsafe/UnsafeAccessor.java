@@ -26,6 +26,9 @@ public class UnsafeAccessor {
   private static Object unsafe;
   
   public static int ARRAY_BYTE_BASE_OFFSET;
+  public static int ARRAY_INT_BASE_OFFSET;
+  public static int ARRAY_LONG_BASE_OFFSET;
+  public static int ARRAY_FLOAT_BASE_OFFSET;
   
   static {
     try {
@@ -34,6 +37,9 @@ public class UnsafeAccessor {
         f.setAccessible(true);
         unsafe = (Unsafe)f.get(null); 
         ARRAY_BYTE_BASE_OFFSET = Unsafe.ARRAY_BYTE_BASE_OFFSET;
+        ARRAY_INT_BASE_OFFSET = Unsafe.ARRAY_INT_BASE_OFFSET;
+        ARRAY_LONG_BASE_OFFSET = Unsafe.ARRAY_LONG_BASE_OFFSET;
+        ARRAY_FLOAT_BASE_OFFSET = Unsafe.ARRAY_FLOAT_BASE_OFFSET;
         return unsafe;
       });
     } catch (PrivilegedActionException e) {
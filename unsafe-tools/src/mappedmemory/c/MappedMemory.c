@@ -32,6 +32,102 @@
 #include <sys/types.h> // constants for open
 #include <sys/stat.h>  // constants for open
 #include <unistd.h>    // getpagesize, close
+#include <stdint.h>    // uintptr_t
+#include <sys/syscall.h> // SYS_mlock2
+#include <sys/sysinfo.h> // sysinfo
+#include <stdlib.h>    // malloc, free
+#include <stdio.h>     // fopen, fread
+
+#ifndef MADV_COLD
+#define MADV_COLD 20 // Linux 5.4+
+#endif
+
+#ifndef MADV_POPULATE_READ
+#define MADV_POPULATE_READ 22 // Linux 5.14+
+#endif
+
+// Same values as the MAP_* flags of MappedMemory.java
+#define FLAG_POPULATE      1
+#define FLAG_HUGEPAGE      2
+#define FLAG_POPULATE_READ 4
+
+#ifndef MLOCK_ONFAULT
+#define MLOCK_ONFAULT 1 // Linux 4.4+
+#endif
+
+#define HUGE_PAGE_SIZE (2UL * 1024 * 1024)
+
+#ifndef SYS_cachestat
+#define SYS_cachestat 451 // Linux 6.5+
+#endif
+
+struct cachestat_range {
+  uint64_t off;
+  uint64_t len;
+};
+
+struct cachestat_result {
+  uint64_t nr_cache;
+  uint64_t nr_dirty;
+  uint64_t nr_writeback;
+  uint64_t nr_evicted;
+  uint64_t nr_recently_evicted;
+};
+
+/*
+ * Populate the page tables (and read the pages from the storage if needed) in one call.
+ * Older kernels don't know MADV_POPULATE_READ so the pages are touched one by one.
+ */
+static int populate_read(void *addr, size_t length)
+{
+  if (madvise(addr, length, MADV_POPULATE_READ) == 0) {
+    return 0;
+  }
+  if (errno != EINVAL) {
+    return -1;
+  }
+  madvise(addr, length, MADV_WILLNEED);
+  size_t page = (size_t) getpagesize();
+  volatile char sink;
+  for (size_t pos = 0; pos < length; pos += page) {
+    sink = ((volatile char *) addr)[pos];
+  }
+  (void) sink;
+  return 0;
+}
+
+/*
+ * Map the file on an address aligned on the huge page size so the kernel
+ * can back the mapping with transparent huge pages.
+ */
+static void *mmap_hugepage_aligned(size_t size, int mapFlags, int fd)
+{
+  size_t page = (size_t) getpagesize();
+  size_t reserved = size + HUGE_PAGE_SIZE;
+  char *area = mmap64(0, reserved, PROT_NONE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);
+  if (area == MAP_FAILED) {
+    return MAP_FAILED;
+  }
+  char *aligned = (char *) (((uintptr_t) area + HUGE_PAGE_SIZE - 1) & ~(HUGE_PAGE_SIZE - 1));
+  void *mapAddress = mmap64(aligned, size, PROT_READ, mapFlags | MAP_FIXED, fd, 0);
+  if (mapAddress == MAP_FAILED) {
+    int error = errno;
+    munmap(area, reserved);
+    errno = error;
+    return MAP_FAILED;
+  }
+  // Release the unused parts of the reservation
+  char *end = aligned + ((size + page - 1) & ~(page - 1));
+  if (aligned > area) {
+    munmap(area, aligned - area);
+  }
+  if (area + reserved > end) {
+    munmap(end, (area + reserved) - end);
+  }
+  // Not supported on every filesystem/kernel, just a hint
+  madvise(mapAddress, size, MADV_HUGEPAGE);
+  return mapAddress;
+}
 
 /*
  * Class:     fr_micoq_unsafe_MappedMemory
@@ -141,6 +237,9 @@ JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_MappedMemory_madvise(JNIEnv *env, jc
     case 5:
       return -1;
       break;
+    case 6:
+      osAdvice = MADV_COLD; // Deactivate the pages (reclaimed first under memory pressure)
+      break;
   }
   
   if (madvise((void *) start, size, osAdvice) != 0) {
@@ -174,6 +273,318 @@ JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_MappedMemory_munmap(JNIEnv *env, jcl
   return 0;
 }
 
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    allocateAnonymous0
+ * Signature: (JZ)Ljava/nio/ByteBuffer;
+ *
+ * Page-aligned anonymous memory (outside of the Java heap and of the direct memory
+ * of the JVM) wrapped into a direct buffer, freed with munmap().
+ * With hugePages, the memory is aligned on the huge page size and advised with MADV_HUGEPAGE.
+ */
+JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_allocateAnonymous0(JNIEnv *env, jclass _ignore, jlong length, jboolean hugePages)
+{
+  void *addr;
+  if (hugePages && (size_t) length >= HUGE_PAGE_SIZE) {
+    size_t reserved = (size_t) length + HUGE_PAGE_SIZE;
+    char *area = mmap64(0, reserved, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    addr = area;
+    if (area != MAP_FAILED) {
+      char *aligned = (char *) (((uintptr_t) area + HUGE_PAGE_SIZE - 1) & ~(HUGE_PAGE_SIZE - 1));
+      char *end = aligned + length;
+      // Release the unused parts of the reservation
+      if (aligned > area) {
+        munmap(area, aligned - area);
+      }
+      if (area + reserved > end) {
+        munmap(end, (area + reserved) - end);
+      }
+      // Just a hint (transparent huge pages may be disabled)
+      madvise(aligned, (size_t) length, MADV_HUGEPAGE);
+      addr = aligned;
+    }
+  } else {
+    addr = mmap64(0, (size_t) length, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+  }
+  if (addr == MAP_FAILED) {
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return NULL;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+    return NULL;
+  }
+  return (*env)->NewDirectByteBuffer(env, addr, length);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    wrapAnonymous0
+ * Signature: (JJ)Ljava/nio/ByteBuffer;
+ *
+ * A new direct buffer on a part of a memory allocated by allocateAnonymous0().
+ */
+JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_wrapAnonymous0(JNIEnv *env, jclass _ignore, jlong addr, jlong length)
+{
+  return (*env)->NewDirectByteBuffer(env, (void *) addr, length);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    populate
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_fr_micoq_unsafe_MappedMemory_populate(JNIEnv *env, jclass _ignore, jlong address, jlong len)
+{
+  if (populate_read((void *) address, (size_t) len) != 0) {
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+  }
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    residentPages
+ * Signature: (JJ)J
+ *
+ * Number of pages of the range in the page cache (see mincore()).
+ */
+JNIEXPORT jlong JNICALL Java_fr_micoq_unsafe_MappedMemory_residentPages(JNIEnv *env, jclass _ignore, jlong address, jlong len)
+{
+  size_t page = (size_t) getpagesize();
+  uintptr_t start = ((uintptr_t) address) & ~(page - 1);
+  uintptr_t end = ((uintptr_t) address + (size_t) len + page - 1) & ~(page - 1);
+  size_t pages = (end - start) / page;
+  unsigned char *vec = malloc(pages);
+  if (vec == NULL) {
+    jclass class_oom = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+    if (class_oom != NULL) {
+      (*env)->ThrowNew(env, class_oom, "mincore vector");
+    }
+    return -1;
+  }
+  if (mincore((void *) start, end - start, vec) == -1) {
+    int error = errno;
+    free(vec);
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return -1;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(error));
+    return -1;
+  }
+  jlong resident = 0;
+  for (size_t i = 0; i < pages; ++i) {
+    resident += vec[i] & 1;
+  }
+  free(vec);
+  return resident;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    residency0
+ * Signature: (JJ[B)V
+ *
+ * Residency of each page of the range (see mincore()): 1 if the page is in the page cache,
+ * 0 otherwise. The array has one byte per page.
+ */
+JNIEXPORT void JNICALL Java_fr_micoq_unsafe_MappedMemory_residency0(JNIEnv *env, jclass _ignore, jlong address, jlong len, jbyteArray residency)
+{
+  size_t page = (size_t) getpagesize();
+  uintptr_t start = ((uintptr_t) address) & ~(page - 1);
+  uintptr_t end = ((uintptr_t) address + (size_t) len + page - 1) & ~(page - 1);
+  size_t pages = (end - start) / page;
+  if (pages > (size_t) (*env)->GetArrayLength(env, residency)) {
+    jclass class_iae = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    if (class_iae != NULL) {
+      (*env)->ThrowNew(env, class_iae, "residency array too short");
+    }
+    return;
+  }
+  unsigned char *vec = malloc(pages);
+  if (vec == NULL) {
+    jclass class_oom = (*env)->FindClass(env, "java/lang/OutOfMemoryError");
+    if (class_oom != NULL) {
+      (*env)->ThrowNew(env, class_oom, "mincore vector");
+    }
+    return;
+  }
+  if (mincore((void *) start, end - start, vec) == -1) {
+    int error = errno;
+    free(vec);
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(error));
+    return;
+  }
+  // The other bits of mincore() are reserved
+  for (size_t i = 0; i < pages; ++i) {
+    vec[i] &= 1;
+  }
+  (*env)->SetByteArrayRegion(env, residency, 0, (jsize) pages, (const jbyte *) vec);
+  free(vec);
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    cachedPages
+ * Signature: (Ljava/io/FileDescriptor;)J
+ *
+ * Number of pages of the file in the page cache (see cachestat()).
+ * Returns -1 when the kernel doesn't support cachestat().
+ */
+JNIEXPORT jlong JNICALL Java_fr_micoq_unsafe_MappedMemory_cachedPages(JNIEnv *env, jclass _ignore, jobject fileDescriptor)
+{
+  jclass class_fdesc = (*env)->FindClass(env, "java/io/FileDescriptor");
+  if (class_fdesc == NULL) {
+    return -1;
+  }
+  jfieldID field_fd = (*env)->GetFieldID(env, class_fdesc, "fd", "I");
+  if (field_fd == NULL) {
+    return -1;
+  }
+  int fd = (*env)->GetIntField(env, fileDescriptor, field_fd);
+
+  struct cachestat_range range = { 0, 0 }; // the whole file
+  struct cachestat_result result;
+  if (syscall(SYS_cachestat, fd, &range, &result, 0) == -1) {
+    if (errno == ENOSYS || errno == EPERM) {
+      return -1;
+    }
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return -1;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+    return -1;
+  }
+  return (jlong) result.nr_cache;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    mappingCount0
+ * Signature: ()J
+ *
+ * Number of memory mappings (VMAs) of the process, -1 if unknown.
+ */
+JNIEXPORT jlong JNICALL Java_fr_micoq_unsafe_MappedMemory_mappingCount0(JNIEnv *env, jclass _ignore)
+{
+  FILE *maps = fopen("/proc/self/maps", "r");
+  if (maps == NULL) {
+    return -1;
+  }
+  char buffer[65536];
+  size_t read;
+  jlong lines = 0;
+  while ((read = fread(buffer, 1, sizeof(buffer), maps)) > 0) {
+    for (size_t i = 0; i < read; ++i) {
+      lines += (buffer[i] == '\n');
+    }
+  }
+  fclose(maps);
+  return lines;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    freeMemory0
+ * Signature: ()J
+ *
+ * The free RAM of the host (without the page cache).
+ */
+JNIEXPORT jlong JNICALL Java_fr_micoq_unsafe_MappedMemory_freeMemory0(JNIEnv *env, jclass _ignore)
+{
+  struct sysinfo info;
+  if (sysinfo(&info) == -1) {
+    return -1;
+  }
+  return (jlong) info.freeram * (jlong) info.mem_unit;
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    mlock
+ * Signature: (JJZ)V
+ *
+ * With onFault, only the resident pages are locked now, the other pages
+ * are locked when they are faulted in (mlock() is used on old kernels).
+ */
+JNIEXPORT void JNICALL Java_fr_micoq_unsafe_MappedMemory_mlock(JNIEnv *env, jclass _ignore, jlong address, jlong len, jboolean onFault)
+{
+  int result = -1;
+#ifdef SYS_mlock2
+  if (onFault) {
+    result = syscall(SYS_mlock2, (void *) address, (size_t) len, MLOCK_ONFAULT);
+  }
+  if (result == -1 && (!onFault || errno == ENOSYS || errno == EINVAL)) {
+    result = mlock((void *) address, (size_t) len);
+  }
+#else
+  result = mlock((void *) address, (size_t) len);
+#endif
+  if (result == -1) {
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+  }
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    munlock
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_fr_micoq_unsafe_MappedMemory_munlock(JNIEnv *env, jclass _ignore, jlong address, jlong len)
+{
+  if (munlock((void *) address, (size_t) len) == -1) {
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+  }
+}
+
+/*
+ * Class:     fr_micoq_unsafe_MappedMemory
+ * Method:    linkCount
+ * Signature: (Ljava/io/FileDescriptor;)J
+ *
+ * Number of hard links of the file (0 once the file is deleted).
+ */
+JNIEXPORT jlong JNICALL Java_fr_micoq_unsafe_MappedMemory_linkCount(JNIEnv *env, jclass _ignore, jobject fileDescriptor)
+{
+  jclass class_fdesc = (*env)->FindClass(env, "java/io/FileDescriptor");
+  if (class_fdesc == NULL) {
+    return -1;
+  }
+  jfieldID field_fd = (*env)->GetFieldID(env, class_fdesc, "fd", "I");
+  if (field_fd == NULL) {
+    return -1;
+  }
+  int fd = (*env)->GetIntField(env, fileDescriptor, field_fd);
+
+  struct stat64 sb;
+  if (fstat64(fd, &sb) == -1) {
+    jclass class_ioex = (*env)->FindClass(env, "java/io/IOException");
+    if (class_ioex == NULL) {
+      return -1;
+    }
+    (*env)->ThrowNew(env, class_ioex, strerror(errno));
+    return -1;
+  }
+  return (jlong) sb.st_nlink;
+}
+
 /*
  * Class:     fr_micoq_unsafe_MappedMemory
  * Method:    closeDescriptor
@@ -215,9 +626,9 @@ JNIEXPORT jint JNICALL Java_fr_micoq_unsafe_MappedMemory_closeDescriptor(JNIEnv
 /*
  * Class:     fr_micoq_unsafe_MappedMemory
  * Method:    mapFile
- * Signature: (Ljava/lang/String;)Lfr/micoq/unsafe/MappedMemory;
+ * Signature: (Ljava/lang/String;I)Lfr/micoq/unsafe/MappedMemory;
  */
-JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_mapFile(JNIEnv *env, jclass _ignore, jstring filename)
+JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_mapFile(JNIEnv *env, jclass _ignore, jstring filename, jint flags)
 {
   int fd;
   char *fname;
@@ -230,6 +641,7 @@ JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_mapFile(JNIEnv *env,
   
   fname = (char *) (*env)->GetStringUTFChars(env,filename, NULL);
   fd = open(fname, O_RDONLY | O_NOATIME);
+  (*env)->ReleaseStringUTFChars(env, filename, fname);
   
   class_ioex = (*env)->FindClass(env, "java/io/IOException");
   if (class_ioex == NULL) {
@@ -253,10 +665,17 @@ JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_mapFile(JNIEnv *env,
     return NULL;
   }
   
+  int mapFlags = MAP_SHARED;
+  if (flags & FLAG_POPULATE) {
+    mapFlags |= MAP_POPULATE;
+  }
+  
   if(sb.st_size == 0) {
     mapAddress = 0; // We cannot create a mapping on zero length file
-  } else {  
-    mapAddress = mmap64(0, sb.st_size, PROT_READ, MAP_SHARED, fd, 0);
+  } else if ((flags & FLAG_HUGEPAGE) && (size_t) sb.st_size >= HUGE_PAGE_SIZE) {
+    mapAddress = mmap_hugepage_aligned(sb.st_size, mapFlags, fd);
+  } else {
+    mapAddress = mmap64(0, sb.st_size, PROT_READ, mapFlags, fd, 0);
   }
   
   if (mapAddress == MAP_FAILED) {
@@ -270,6 +689,11 @@ JNIEXPORT jobject JNICALL Java_fr_micoq_unsafe_MappedMemory_mapFile(JNIEnv *env,
     return NULL;
   }
   
+  if (mapAddress != 0 && (flags & FLAG_POPULATE_READ)) {
+    // Only a warm-up, the mapping is still usable if it fails
+    populate_read(mapAddress, sb.st_size);
+  }
+  
   class_mapped_mem = (*env)->FindClass(env, "fr/micoq/unsafe/MappedMemory");
   if (class_mapped_mem == NULL) {
     close(fd);